@@ -0,0 +1,131 @@
+package org.apache.catalina.valves;
+
+import org.apache.catalina.connector.OutputBuffer;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.varia.NullAppender;
+import org.apache.tomcat.util.buf.MessageBytes;
+
+/**
+ * Stub requests and responses for the benchmarks, built straight on top of coyote objects so no connector is needed.
+ */
+final class AccessLogFixtures {
+
+    /**
+     * A pattern made mostly of request and response headers and a cookie.
+     */
+    static final String HEADERS_PATTERN = "%h %t \"%r\" %s %b \"%{Referer}i\" \"%{User-Agent}i\" \"%{Accept}i\" "
+            + "\"%{Accept-Language}i\" \"%{Accept-Encoding}i\" %{X-Forwarded-For}i %{Host}i %{Content-Type}o "
+            + "%{Cache-Control}o %{X-Backend}o %{JSESSIONID}c";
+
+    /**
+     * The name of the request attribute the stub request carries.
+     */
+    static final String ATTRIBUTE = "org.example.trace";
+
+    private AccessLogFixtures() {
+    }
+
+    static Request request() {
+        org.apache.coyote.Request coyoteRequest = new org.apache.coyote.Request();
+        bytes(coyoteRequest.method(), "GET");
+        bytes(coyoteRequest.requestURI(), "/static/img/logo.png");
+        coyoteRequest.decodedURI().setString("/static/img/logo.png");
+        bytes(coyoteRequest.queryString(), "v=20140612");
+        bytes(coyoteRequest.protocol(), "HTTP/1.1");
+        coyoteRequest.remoteAddr().setString("192.168.10.21");
+        coyoteRequest.serverName().setString("www.example.com");
+        coyoteRequest.setServerPort(8080);
+        header(coyoteRequest, "Host", "www.example.com");
+        header(coyoteRequest, "User-Agent",
+                "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/35.0.1916.153");
+        header(coyoteRequest, "Referer", "http://www.example.com/index.html");
+        header(coyoteRequest, "Accept", "image/webp,*/*;q=0.8");
+        header(coyoteRequest, "Accept-Language", "en-US,en;q=0.8");
+        header(coyoteRequest, "Accept-Encoding", "gzip,deflate,sdch");
+        header(coyoteRequest, "X-Forwarded-For", "203.0.113.7");
+        header(coyoteRequest, "Cookie", "_ga=GA1.2.1234567890.1402579200; JSESSIONID=0123456789ABCDEF; uid=42");
+
+        Request request = new Request() {
+            @Override
+            public String getRemoteHost() {
+                return getRemoteAddr();
+            }
+        };
+        request.setCoyoteRequest(coyoteRequest);
+        coyoteRequest.setAttribute(ATTRIBUTE, "3f2a9c");
+        return request;
+    }
+
+    static Response response(final Request request) {
+        org.apache.coyote.Response coyoteResponse = new org.apache.coyote.Response();
+        coyoteResponse.setStatus(200);
+        coyoteResponse.addHeader("Content-Type", "image/png");
+        coyoteResponse.addHeader("Cache-Control", "max-age=31536000");
+        coyoteResponse.addHeader("X-Backend", "app-03");
+
+        Response response = new Response() {
+            {
+                outputBuffer = new OutputBuffer();
+            }
+        };
+        response.setCoyoteResponse(coyoteResponse);
+        response.setRequest(request);
+        return response;
+    }
+
+    /**
+     * @return the pattern for <code>headers</code>, otherwise the name itself, as pattern or alias
+     */
+    static String pattern(final String name) {
+        return name.equals("headers") ? HEADERS_PATTERN : name;
+    }
+
+    /**
+     * A valve for the given pattern that logs to a logger with a single no-op appender, started through its lifecycle
+     * in an engine that is not started itself. Stop it with {@link #stop(Log4JAccessLogValve)}.
+     */
+    static Log4JAccessLogValve valve(final String pattern, final boolean compiled) throws Exception {
+        Logger logger = Logger.getLogger("benchmark");
+        logger.removeAllAppenders();
+        logger.addAppender(new NullAppender());
+        logger.setAdditivity(false);
+        logger.setLevel(Level.INFO);
+
+        Log4JAccessLogValve valve = new Log4JAccessLogValve();
+        valve.setLoggerName("benchmark");
+        valve.setCompilePattern(compiled);
+        valve.setPattern(pattern(pattern));
+
+        // the valve takes its container's logger and MBean names on init, outside the pipeline it has no next valve
+        StandardEngine engine = new StandardEngine();
+        engine.setName("benchmark");
+        valve.setContainer(engine);
+        valve.init();
+        valve.start();
+        return valve;
+    }
+
+    static void stop(final Log4JAccessLogValve valve) throws Exception {
+        valve.stop();
+        valve.destroy();
+    }
+
+    /**
+     * Set a request line field as raw bytes, the way the connector leaves it after parsing.
+     */
+    private static void bytes(final MessageBytes field, final String value) {
+        byte[] bytes = value.getBytes();
+        field.setBytes(bytes, 0, bytes.length);
+    }
+
+    private static void header(final org.apache.coyote.Request request, final String name, final String value) {
+        // names and values as raw bytes, the way the connector leaves them after parsing
+        byte[] nameBytes = name.getBytes();
+        byte[] bytes = value.getBytes();
+        request.getMimeHeaders().addValue(nameBytes, 0, nameBytes.length).setBytes(bytes, 0, bytes.length);
+    }
+}
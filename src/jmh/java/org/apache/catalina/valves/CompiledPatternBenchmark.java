@@ -0,0 +1,64 @@
+package org.apache.catalina.valves;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Capturing and formatting one line through the compiled pattern against walking the element array.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CompiledPatternBenchmark {
+
+    @Param({ "common", "combined" })
+    public String pattern;
+
+    @Param({ "true", "false" })
+    public boolean compiled;
+
+    private Log4JAccessLogValve valve;
+
+    private Request request;
+
+    private Response response;
+
+    private AccessLogEntry entry;
+
+    private LineBuffer buf;
+
+    @Setup
+    public void setUp() throws Exception {
+        valve = AccessLogFixtures.valve(pattern, compiled);
+        request = AccessLogFixtures.request();
+        response = AccessLogFixtures.response(request);
+        entry = new AccessLogEntry();
+        buf = new LineBuffer(LineBuffer.MIN_CAPACITY);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        AccessLogFixtures.stop(valve);
+    }
+
+    @Benchmark
+    public int captureAndFormat() {
+        valve.capture(entry, valve.logElements, request, response, System.currentTimeMillis(), 42000000L, 1);
+        valve.format(buf, entry);
+        int length = buf.length();
+        buf.recycle();
+        entry.clear();
+        return length;
+    }
+}
@@ -0,0 +1,64 @@
+package org.apache.catalina.valves;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Capturing and formatting each element on its own, through the element array so the element itself is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ElementBenchmark {
+
+    @Param({ "%a", "%A", "%b", "%B", "%D", "%F", "%h", "%H", "%I", "%l", "%m", "%p", "%q", "%r", "%s", "%S", "%t",
+            "%{msec}t", "%{begin:yyyy-MM-dd'T'HH:mm:ss.SSS}t", "%T", "%{us}T", "%u", "%U", "%v", "%W",
+            "%{User-Agent}i", "%{Content-Type}o", "%{JSESSIONID}c", "%{" + AccessLogFixtures.ATTRIBUTE + "}r",
+            "%{user}s", "literal text" })
+    public String element;
+
+    private Log4JAccessLogValve valve;
+
+    private Request request;
+
+    private Response response;
+
+    private AccessLogEntry entry;
+
+    private LineBuffer buf;
+
+    @Setup
+    public void setUp() throws Exception {
+        valve = AccessLogFixtures.valve(element, false);
+        request = AccessLogFixtures.request();
+        response = AccessLogFixtures.response(request);
+        entry = new AccessLogEntry();
+        buf = new LineBuffer(LineBuffer.MIN_CAPACITY);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        AccessLogFixtures.stop(valve);
+    }
+
+    @Benchmark
+    public int captureAndFormat() {
+        valve.capture(entry, valve.logElements, request, response, System.currentTimeMillis(), 42000000L, 1);
+        valve.format(buf, entry);
+        int length = buf.length();
+        buf.recycle();
+        entry.clear();
+        return length;
+    }
+}
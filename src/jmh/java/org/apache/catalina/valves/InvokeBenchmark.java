@@ -0,0 +1,50 @@
+package org.apache.catalina.valves;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The whole of <code>invoke()</code> for one request, down to a no-op log4j appender.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class InvokeBenchmark {
+
+    @Param({ "common", "combined", "headers" })
+    public String pattern;
+
+    private Log4JAccessLogValve valve;
+
+    private Request request;
+
+    private Response response;
+
+    @Setup
+    public void setUp() throws Exception {
+        valve = AccessLogFixtures.valve(pattern, true);
+        request = AccessLogFixtures.request();
+        response = AccessLogFixtures.response(request);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        AccessLogFixtures.stop(valve);
+    }
+
+    @Benchmark
+    public void invoke() throws Exception {
+        valve.invoke(request, response);
+    }
+}
@@ -0,0 +1,47 @@
+package org.apache.catalina.valves;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Parsing a pattern into its elements, and compiling them, as done whenever the pattern is set.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PatternParsingBenchmark {
+
+    @Param({ "common", "combined", "headers" })
+    public String pattern;
+
+    private Log4JAccessLogValve valve;
+
+    @Setup
+    public void setUp() throws Exception {
+        valve = AccessLogFixtures.valve(pattern, true);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        AccessLogFixtures.stop(valve);
+    }
+
+    @Benchmark
+    public Object createLogElements() {
+        return valve.createLogElements();
+    }
+
+    @Benchmark
+    public Object compile() {
+        return new CompiledPattern(valve.createLogElements());
+    }
+}
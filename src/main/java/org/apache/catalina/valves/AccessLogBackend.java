@@ -0,0 +1,40 @@
+package org.apache.catalina.valves;
+
+/**
+ * What the valve logs its lines to when it is not writing a file itself. One backend is created each time the valve
+ * starts, named after the valve's <code>loggerName</code>, and stopped when the valve stops.
+ * <p>
+ * A line is handed over as a {@link CharSequence} over a buffer the valve reuses for its next line, it is only valid
+ * for the duration of {@link #log(CharSequence)}. A backend copies whatever it keeps, and can log a line without ever
+ * turning it into a <code>String</code>.
+ * <p>
+ * Lines are logged from many request threads at once. A custom backend needs a public no-argument constructor.
+ */
+public interface AccessLogBackend {
+
+    /**
+     * Look up the logger lines go to, called once before any line is logged.
+     *
+     * @param name
+     *        the logger name of the valve
+     */
+    void start(String name);
+
+    /**
+     * @return whether lines are logged at all, the valve checks before formatting one
+     */
+    boolean isEnabled();
+
+    /**
+     * Log a line at the INFO level.
+     *
+     * @param line
+     *        the line, without line separator, only valid during the call
+     */
+    void log(CharSequence line);
+
+    /**
+     * Log whatever is still held back, called once when the valve stops.
+     */
+    void stop();
+}
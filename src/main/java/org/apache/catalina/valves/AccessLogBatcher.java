@@ -0,0 +1,183 @@
+package org.apache.catalina.valves;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Hands finished lines to the log4j appenders in batches, from a single thread.
+ * <p>
+ * log4j 1.2 locks each logger while calling its appenders, so many request threads logging to one logger queue up on
+ * that monitor. Here request threads only create the logging event, stamped with the time the line was finished and
+ * carrying their thread name, NDC and MDC, and add it to a lock-free queue. A dispatcher thread takes up to the batch
+ * size at a time, waiting at most the linger time after the first line of a batch for it to fill, and calls the
+ * appenders for the whole batch holding the logger's lock once. Lines reach the appenders in the order they were
+ * finished.
+ * <p>
+ * The queue holds at most sixteen batches; when it is full, request threads wait for the dispatcher, or drop their
+ * line and count it should the dispatcher thread have died.
+ */
+final class AccessLogBatcher implements Runnable {
+
+    private static final String FQCN = Log4JAccessLogValve.class.getName();
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final long PRODUCER_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private static final long STOP_TIMEOUT = 10000;
+
+    private final Logger logger;
+
+    private final int maxBatchSize;
+
+    private final long maxLinger;
+
+    private final int capacity;
+
+    private final ConcurrentLinkedQueue<LoggingEvent> queue = new ConcurrentLinkedQueue<LoggingEvent>();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    private final Thread dispatcher;
+
+    /**
+     * @param maxBatchSize
+     *        most lines handed to the appenders at once
+     * @param maxLinger
+     *        most milliseconds a line waits for its batch to fill
+     */
+    AccessLogBatcher(final Logger logger, final int maxBatchSize, final long maxLinger) {
+        this.logger = logger;
+        this.maxBatchSize = maxBatchSize;
+        this.maxLinger = maxLinger;
+        this.capacity = maxBatchSize * 16;
+        dispatcher = new Thread(this, "Log4JAccessLogValve[" + logger.getName() + "]-batcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Queue a line for the next batch, waiting while the queue is full. Once closed, the line is handed to the
+     * appenders right away.
+     */
+    void add(final String message) {
+        LoggingEvent event = new LoggingEvent(FQCN, logger, System.currentTimeMillis(), Level.INFO, message, null);
+        // the thread name, NDC and MDC are looked up lazily, they have to be the request thread's and not the
+        // dispatcher's, as in log4j's AsyncAppender
+        event.getThreadName();
+        event.getNDC();
+        event.getMDCCopy();
+        while (size.get() >= capacity && running) {
+            if (!dispatcher.isAlive()) {
+                // nobody drains the queue any more
+                dropped.incrementAndGet();
+                return;
+            }
+            LockSupport.parkNanos(PRODUCER_WAIT_NANOS);
+        }
+        if (!running) {
+            append(event);
+            return;
+        }
+        // queued before it is counted, so the dispatcher woken up for a full batch finds all of it
+        queue.offer(event);
+        if (size.incrementAndGet() == maxBatchSize) {
+            LockSupport.unpark(dispatcher);
+        }
+        if (!running) {
+            // closed while queueing, the dispatcher may be gone without this line
+            LoggingEvent left;
+            while ((left = queue.poll()) != null) {
+                size.decrementAndGet();
+                append(left);
+            }
+        }
+    }
+
+    /**
+     * @return the number of lines waiting to be handed to the appenders
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * @return the number of lines dropped because the dispatcher thread had died
+     */
+    long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Hand over everything queued and stop the dispatcher thread.
+     */
+    void close() {
+        running = false;
+        LockSupport.unpark(dispatcher);
+        try {
+            dispatcher.join(STOP_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run() {
+        LoggingEvent[] batch = new LoggingEvent[maxBatchSize];
+        while (true) {
+            int count = 0;
+            while (count < maxBatchSize) {
+                LoggingEvent event = queue.poll();
+                if (event != null) {
+                    batch[count++] = event;
+                    continue;
+                }
+                if (!running) {
+                    break;
+                }
+                if (count == 0) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    continue;
+                }
+                long wait = batch[0].timeStamp + maxLinger - System.currentTimeMillis();
+                if (wait <= 0) {
+                    break;
+                }
+                LockSupport.parkNanos(this, Math.min(TimeUnit.MILLISECONDS.toNanos(wait), IDLE_PARK_NANOS));
+            }
+            if (count == 0) {
+                return;
+            }
+            size.addAndGet(-count);
+            // callAppenders takes the same lock, once it is held every line of the batch goes through uncontended
+            synchronized (logger) {
+                for (int i = 0; i < count; i++) {
+                    append(batch[i]);
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                batch[i] = null;
+            }
+        }
+    }
+
+    private void append(final LoggingEvent event) {
+        try {
+            logger.callAppenders(event);
+        } catch (Throwable e) {
+            // a failing appender must not stop the dispatcher, request threads would wait for it forever
+            LogLog.error("Log4jAccessLogValve: appender failed", e);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package org.apache.catalina.valves;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Renders timestamps for one <code>SimpleDateFormat</code> pattern without locking on the request path.
+ * <p>
+ * Everything but the milliseconds is rendered once per second into an immutable {@link Snapshot}, published through
+ * a volatile field. Formatting a timestamp then copies the pre-rendered segments and writes only the millisecond
+ * digits (for unquoted runs of <code>S</code> in the pattern). Rendering a new second is the only place a lock is
+ * taken, because <code>SimpleDateFormat</code> is not thread-safe. The previous second is kept too, so requests that
+ * straddle a second boundary do not make threads render the same two seconds over and over.
+ */
+final class AccessLogDateFormat {
+
+    /**
+     * The Common Log Format timestamp, <code>[10/Oct/2000:13:55:36 -0700]</code>.
+     */
+    static final String COMMON_LOG_FORMAT = "'['dd/MMM/yyyy:HH:mm:ss Z']'";
+
+    /**
+     * One formatter per segment between millisecond runs, null for an empty segment.
+     */
+    private final SimpleDateFormat[] formats;
+
+    /**
+     * Minimum number of digits of each millisecond run.
+     */
+    private final int[] widths;
+
+    private volatile Snapshot current = new Snapshot(Long.MIN_VALUE, null);
+
+    private volatile Snapshot previous = current;
+
+    AccessLogDateFormat(final String pattern, final Locale locale, final TimeZone timezone) {
+        List<String> segments = new ArrayList<String>();
+        List<Integer> runs = new ArrayList<Integer>();
+        StringBuilder segment = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < pattern.length(); i++) {
+            char ch = pattern.charAt(i);
+            if (ch == '\'') {
+                quoted = !quoted;
+            } else if (ch == 'S' && !quoted) {
+                int width = 1;
+                while (i + 1 < pattern.length() && pattern.charAt(i + 1) == 'S') {
+                    width++;
+                    i++;
+                }
+                segments.add(segment.toString());
+                runs.add(Integer.valueOf(width));
+                segment.setLength(0);
+                continue;
+            }
+            segment.append(ch);
+        }
+        segments.add(segment.toString());
+
+        formats = new SimpleDateFormat[segments.size()];
+        for (int i = 0; i < formats.length; i++) {
+            if (segments.get(i).length() > 0) {
+                formats[i] = new SimpleDateFormat(segments.get(i), locale);
+                formats[i].setTimeZone(timezone);
+            }
+        }
+        widths = new int[runs.size()];
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = runs.get(i).intValue();
+        }
+    }
+
+    void format(final LineBuffer buf, final long millis) {
+        long second = millis / 1000;
+        Snapshot snapshot = current;
+        if (snapshot.second != second) {
+            snapshot = previous;
+            if (snapshot.second != second) {
+                snapshot = render(second);
+            }
+        }
+
+        char[][] segments = snapshot.segments;
+        int fraction = (int) (millis % 1000);
+        for (int i = 0; i < widths.length; i++) {
+            buf.append(segments[i], 0, segments[i].length);
+            buf.appendPadded(fraction, widths[i]);
+        }
+        char[] last = segments[widths.length];
+        buf.append(last, 0, last.length);
+    }
+
+    private synchronized Snapshot render(final long second) {
+        Snapshot snapshot = current;
+        if (snapshot.second == second) {
+            return snapshot;
+        }
+
+        Date date = new Date(second * 1000);
+        char[][] segments = new char[formats.length][];
+        for (int i = 0; i < formats.length; i++) {
+            segments[i] = formats[i] == null ? new char[0] : formats[i].format(date).toCharArray();
+        }
+        Snapshot rendered = new Snapshot(second, segments);
+
+        // only a newer second replaces the current one, late requests for an older second get a private copy
+        if (second > snapshot.second) {
+            previous = snapshot;
+            current = rendered;
+        }
+        return rendered;
+    }
+
+    /**
+     * The pre-rendered text of one second.
+     */
+    private static final class Snapshot {
+
+        final long second;
+
+        final char[][] segments;
+
+        Snapshot(final long second, final char[][] segments) {
+            this.second = second;
+            this.segments = segments;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package org.apache.catalina.valves;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Command line tool turning binary access logs written with <code>outputFormat="binary"</code> back into
+ * <code>common</code> or <code>combined</code> text lines or JSON objects, one per line on standard output.
+ *
+ * <pre>
+ * java -jar log4j-valve.jar [common|combined|json] [file...]
+ * </pre>
+ *
+ * Without files standard input is read.
+ *
+ * @see BinaryAccessLogWriter BinaryAccessLogWriter for the record format
+ */
+public final class AccessLogDecoder {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String format;
+
+    private final Writer out;
+
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("[dd/MMM/yyyy:HH:mm:ss Z]", Locale.US);
+
+    private final List<String> dictionary = new ArrayList<String>();
+
+    private long lastTimestamp = 0;
+
+    /**
+     * Reused for every record, so it may hold bytes of an earlier, longer record past {@link #recordLength}.
+     */
+    private byte[] record = new byte[512];
+
+    private int recordLength = 0;
+
+    private int pos = 0;
+
+    public AccessLogDecoder(final String format, final Writer out) {
+        if (!format.equals("common") && !format.equals("combined") && !format.equals("json")) {
+            throw new IllegalArgumentException("unknown format " + format);
+        }
+        this.format = format;
+        this.out = out;
+    }
+
+    public static void main(final String[] args) throws IOException {
+        String format = "combined";
+        int first = 0;
+        if (args.length > 0 && Arrays.asList("common", "combined", "json").contains(args[0])) {
+            format = args[0];
+            first = 1;
+        }
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, UTF_8));
+        AccessLogDecoder decoder = new AccessLogDecoder(format, out);
+        if (first == args.length) {
+            decoder.decode(System.in);
+        }
+        for (int i = first; i < args.length; i++) {
+            InputStream in = new FileInputStream(args[i]);
+            try {
+                decoder.decode(in);
+            } finally {
+                in.close();
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Decode every segment in the stream.
+     */
+    public void decode(final InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        byte[] magic = new byte[BinaryAccessLogWriter.MAGIC.length];
+
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == BinaryAccessLogWriter.MAGIC[0]) {
+                // a record is never empty, so a zero length starts a new segment
+                magic[0] = (byte) b;
+                in.readFully(magic, 1, magic.length - 1);
+                if (!Arrays.equals(magic, BinaryAccessLogWriter.MAGIC)) {
+                    throw new IOException("corrupt access log, bad segment header");
+                }
+                int version = in.read();
+                if (version != BinaryAccessLogWriter.VERSION) {
+                    throw new IOException("unsupported access log version " + version);
+                }
+                dictionary.clear();
+                lastTimestamp = 0;
+                continue;
+            }
+
+            try {
+                int length = readVarint(in, b);
+                if (record.length < length) {
+                    record = new byte[Math.max(length, record.length << 1)];
+                }
+                in.readFully(record, 0, length);
+                recordLength = length;
+            } catch (EOFException e) {
+                // the valve was stopped in the middle of a record, or of its length
+                return;
+            }
+            pos = 0;
+            decodeRecord();
+        }
+    }
+
+    private void decodeRecord() throws IOException {
+        long delta = readVarint();
+        long timestamp = lastTimestamp + (delta >>> 1 ^ -(delta & 1));
+        lastTimestamp = timestamp;
+        long elapsed = readVarint();
+        long status = readVarint();
+        long bytes = readVarint();
+        long weight = readVarint();
+        String host = readString(true);
+        String user = readString(true);
+        String method = readString(true);
+        String uri = readString(false);
+        String query = readString(false);
+        String protocol = readString(true);
+        String referer = readString(false);
+        String agent = readString(true);
+
+        if (format.equals("json")) {
+            out.write("{\"host\":");
+            json(host);
+            out.write(",\"user\":");
+            json(user);
+            out.write(",\"time\":");
+            out.write(Long.toString(timestamp));
+            out.write(",\"method\":");
+            json(method);
+            out.write(",\"uri\":");
+            json(uri);
+            out.write(",\"query\":");
+            json(query);
+            out.write(",\"protocol\":");
+            json(protocol);
+            out.write(",\"status\":");
+            out.write(status == 0 ? "null" : Long.toString(status));
+            out.write(",\"bytes\":");
+            out.write(Long.toString(bytes));
+            out.write(",\"duration_us\":");
+            out.write(Long.toString(elapsed));
+            out.write(",\"weight\":");
+            out.write(Long.toString(weight));
+            out.write(",\"referer\":");
+            json(referer);
+            out.write(",\"agent\":");
+            json(agent);
+            out.write("}\n");
+            return;
+        }
+
+        out.write(host == null ? "-" : host);
+        out.write(" - ");
+        out.write(user == null ? "-" : user);
+        out.write(' ');
+        out.write(dateFormat.format(new Date(timestamp)));
+        out.write(" \"");
+        if (method != null) {
+            out.write(method);
+            out.write(' ');
+            out.write(uri);
+            if (query != null) {
+                out.write('?');
+                out.write(query);
+            }
+            out.write(' ');
+            out.write(protocol);
+        } else {
+            out.write("- - ");
+        }
+        out.write("\" ");
+        out.write(status == 0 ? "-" : Long.toString(status));
+        out.write(' ');
+        out.write(bytes == 0 ? "-" : Long.toString(bytes));
+        if (format.equals("combined")) {
+            out.write(" \"");
+            out.write(referer == null ? "-" : referer);
+            out.write("\" \"");
+            out.write(agent == null ? "-" : agent);
+            out.write('"');
+        }
+        out.write('\n');
+    }
+
+    private String readString(final boolean dictionaryField) throws IOException {
+        long tag = readVarint();
+        if (tag == 0) {
+            return null;
+        }
+        if ((tag & 1) == 0) {
+            int id = (int) (tag >>> 1) - 1;
+            if (id >= dictionary.size()) {
+                throw new IOException("corrupt access log, unknown dictionary id " + id);
+            }
+            return dictionary.get(id);
+        }
+        long length = tag >>> 1;
+        if (length > recordLength - pos) {
+            throw new IOException("corrupt access log, string past end of record");
+        }
+        String value = new String(record, pos, (int) length, UTF_8);
+        pos += (int) length;
+        if (dictionaryField && dictionary.size() < BinaryAccessLogWriter.MAX_DICTIONARY) {
+            dictionary.add(value);
+        }
+        return value;
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos == recordLength) {
+                throw new IOException("corrupt access log, number past end of record");
+            }
+            byte b = record[pos++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("corrupt access log, number longer than ten bytes");
+    }
+
+    private static int readVarint(final DataInputStream in, int b) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+            b = in.readUnsignedByte();
+        }
+        throw new IOException("corrupt access log, bad record length");
+    }
+
+    private void json(final String value) throws IOException {
+        if (value == null) {
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch == '"' || ch == '\\') {
+                out.write('\\');
+                out.write(ch);
+            } else if (ch < 0x20) {
+                out.write(String.format("\\u%04x", Integer.valueOf(ch)));
+            } else {
+                out.write(ch);
+            }
+        }
+        out.write('"');
+    }
+}
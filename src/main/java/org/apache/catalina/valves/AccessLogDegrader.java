@@ -0,0 +1,224 @@
+package org.apache.catalina.valves;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.connector.Request;
+import org.apache.juli.logging.Log;
+import org.apache.tomcat.util.threads.ResizableExecutor;
+
+/**
+ * Switches {@link Log4JAccessLogValve} to its fallback pattern while logging costs the request threads more than the
+ * budget per line, or while the worker pool of the connector is busier than the threshold, and back once both are
+ * well under again.
+ * <p>
+ * The request threads add what capturing, and when logging synchronously formatting and logging, each line cost them
+ * to {@link StripedCounters}. Once per interval one of them, whichever gets there first, takes the average over the
+ * interval and reads the worker pool of the connector its request came in on. It switches to the fallback pattern as
+ * soon as either is over its threshold.
+ * <p>
+ * On the fallback pattern the cost measured is the fallback's, which says nothing of the full pattern, so the valve
+ * holds on to the fallback for a number of intervals and then tries the full pattern again, provided the utilization
+ * is under three quarters of its threshold by then. Switching back to the fallback right after trying again doubles
+ * the hold, up to {@link #MAX_HOLD} intervals; otherwise the hold goes back to one interval. Every switch is logged
+ * and counted.
+ */
+final class AccessLogDegrader {
+
+    /**
+     * How far under its threshold the utilization must be to switch back.
+     */
+    static final double RECOVER_FRACTION = 0.75;
+
+    /**
+     * Most intervals spent on the fallback pattern before trying the full pattern again.
+     */
+    static final int MAX_HOLD = 64;
+
+    private static final int TIME = 0;
+
+    private static final int LINES = 1;
+
+    private static final int DEGRADED_LINES = 2;
+
+    private static final int COUNTERS = 3;
+
+    private final long budget;
+
+    private final double utilization;
+
+    private final long interval;
+
+    private final String name;
+
+    private final Log log;
+
+    private final StripedCounters counters;
+
+    /**
+     * When the next evaluation is due in <code>nanoTime</code>, {@link Long#MAX_VALUE} while one is running.
+     */
+    private final AtomicLong nextCheck;
+
+    private final AtomicLong degradations = new AtomicLong();
+
+    private volatile boolean degraded = false;
+
+    // only touched by the thread evaluating, published by the write to nextCheck
+
+    private long lastTime = 0;
+
+    private long lastLines = 0;
+
+    /**
+     * Intervals to hold on to the fallback pattern for after the last switch to it.
+     */
+    private int hold = 1;
+
+    /**
+     * Intervals left before trying the full pattern again.
+     */
+    private int remaining = 0;
+
+    /**
+     * Whether the interval being measured is the first one back on the full pattern.
+     */
+    private boolean retrying = false;
+
+    /**
+     * @param budget
+     *        average nanoseconds per line from which to switch, 0 for no budget
+     * @param utilization
+     *        fraction of busy worker threads from which to switch, 0 for no threshold
+     * @param interval
+     *        nanoseconds between evaluations
+     */
+    AccessLogDegrader(final long budget, final double utilization, final long interval, final String name,
+                      final Log log) {
+        this.budget = budget;
+        this.utilization = utilization;
+        this.interval = interval;
+        this.name = name;
+        this.log = log;
+        counters = new StripedCounters(COUNTERS, StripedCounters.stripes(16));
+        nextCheck = new AtomicLong(System.nanoTime() + interval);
+    }
+
+    /**
+     * @return whether lines are to be written with the fallback pattern
+     */
+    boolean degraded() {
+        return degraded;
+    }
+
+    /**
+     * @return the number of times the valve switched to the fallback pattern
+     */
+    long degradations() {
+        return degradations.get();
+    }
+
+    /**
+     * @return the number of lines written with the fallback pattern
+     */
+    long degradedLines() {
+        return counters.sum(DEGRADED_LINES);
+    }
+
+    /**
+     * Count what logging a request cost the request thread, evaluating the interval when it is over.
+     *
+     * @param cost
+     *        nanoseconds spent logging the request
+     * @param fallback
+     *        whether the request was logged with the fallback pattern
+     * @param now
+     *        <code>nanoTime</code> when done logging the request
+     */
+    void record(final long cost, final boolean fallback, final long now, final Request request) {
+        int stripe = counters.stripe();
+        counters.add(stripe, TIME, cost);
+        counters.add(stripe, LINES, 1);
+        if (fallback) {
+            counters.add(stripe, DEGRADED_LINES, 1);
+        }
+        long due = nextCheck.get();
+        if (now - due >= 0 && nextCheck.compareAndSet(due, Long.MAX_VALUE)) {
+            try {
+                evaluate(request);
+            } finally {
+                nextCheck.set(now + interval);
+            }
+        }
+    }
+
+    private void evaluate(final Request request) {
+        long time = counters.sum(TIME);
+        long lines = counters.sum(LINES);
+        long cost = lines > lastLines ? (time - lastTime) / (lines - lastLines) : -1;
+        lastTime = time;
+        lastLines = lines;
+        double busy = utilization > 0 ? workerUtilization(request) : -1;
+
+        if (!degraded) {
+            boolean retried = retrying;
+            retrying = false;
+            if (budget > 0 && cost > budget || utilization > 0 && busy >= utilization) {
+                hold = retried ? Math.min(hold << 1, MAX_HOLD) : 1;
+                remaining = hold;
+                degraded = true;
+                degradations.incrementAndGet();
+                if (log != null) {
+                    log.info("Log4jAccessLogValve[" + name + "]: switched to the fallback pattern for at least "
+                            + hold + " interval(s), " + describe(cost, busy));
+                }
+            }
+            return;
+        }
+        if (--remaining > 0 || utilization > 0 && busy >= utilization * RECOVER_FRACTION) {
+            return;
+        }
+        degraded = false;
+        retrying = true;
+        if (log != null) {
+            log.info("Log4jAccessLogValve[" + name + "]: switched back to the pattern, "
+                    + (utilization > 0 ? describe(-1, busy) : "trying it again"));
+        }
+    }
+
+    private String describe(final long cost, final double busy) {
+        StringBuilder message = new StringBuilder();
+        if (cost >= 0) {
+            message.append(cost).append("ns per line");
+            if (budget > 0) {
+                message.append(" for a budget of ").append(budget).append("ns");
+            }
+        }
+        if (utilization > 0) {
+            message.append(message.length() > 0 ? ", worker threads " : "worker threads ");
+            message.append(busy < 0 ? "unknown" : Math.round(busy * 100) + "% busy");
+            message.append(" for a threshold of ").append(Math.round(utilization * 100)).append('%');
+        }
+        return message.toString();
+    }
+
+    /**
+     * @return the fraction of busy worker threads of the connector the request came in on, -1 when unknown
+     */
+    static double workerUtilization(final Request request) {
+        Connector connector = request != null ? request.getConnector() : null;
+        Executor executor = connector != null && connector.getProtocolHandler() != null
+                ? connector.getProtocolHandler().getExecutor() : null;
+        if (executor instanceof ResizableExecutor) {
+            ResizableExecutor pool = (ResizableExecutor) executor;
+            return pool.getMaxThreads() > 0 ? (double) pool.getActiveCount() / pool.getMaxThreads() : -1;
+        }
+        if (executor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            return pool.getMaximumPoolSize() > 0 ? (double) pool.getActiveCount() / pool.getMaximumPoolSize() : -1;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,202 @@
+package org.apache.catalina.valves;
+
+import org.apache.coyote.Request;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
+
+/**
+ * The raw fields of one request that the access log pattern needs. An entry is filled in on the request thread by
+ * {@link Log4JAccessLogValve.AccessLogElement#capture} and formatted later, possibly on another thread, by
+ * {@link Log4JAccessLogValve.AccessLogElement#addElement}. Entries are reused, so nothing in here may refer to the
+ * request or response once capture is over.
+ */
+final class AccessLogEntry {
+
+    static final int RAW_METHOD = 0;
+
+    static final int RAW_REQUEST_URI = 1;
+
+    static final int RAW_QUERY_STRING = 2;
+
+    static final int RAW_PROTOCOL = 3;
+
+    /**
+     * The elements this entry was captured for, they are also the ones used to format it.
+     */
+    Log4JAccessLogValve.AccessLogElement[] elements;
+
+    /**
+     * The request being captured into this entry, and what has been looked up from it, only set during capture.
+     */
+    final CaptureContext context = new CaptureContext();
+
+    /**
+     * Per element values (headers, cookies, attributes), indexed by the position of the element in the pattern.
+     */
+    Object[] values;
+
+    /**
+     * When the request entered the valve, in milliseconds since the epoch.
+     */
+    long startTime;
+
+    /**
+     * When the rest of the pipeline returned, in milliseconds since the epoch.
+     */
+    long endTime;
+
+    /**
+     * Time the rest of the pipeline took, in nanoseconds.
+     */
+    long elapsed;
+
+    /**
+     * Time until the response was committed, in milliseconds.
+     */
+    long commitTime;
+
+    /**
+     * Number of requests this entry stands for when sampling.
+     */
+    long sampleWeight;
+
+    /**
+     * A bit for each of the {@link AccessLogOutputs} whose filter accepted the request.
+     */
+    long outputs;
+
+    boolean hasRequest;
+
+    boolean hasResponse;
+
+    int status;
+
+    long bytesSent;
+
+    int serverPort;
+
+    String method;
+
+    String requestURI;
+
+    String queryString;
+
+    String protocol;
+
+    String remoteAddr;
+
+    String remoteHost;
+
+    String remoteUser;
+
+    String serverName;
+
+    String sessionId;
+
+    String threadName;
+
+    /**
+     * Whether the method, request URI, query string and protocol were captured as the connector's raw ISO-8859-1
+     * bytes into {@link #raw} rather than as strings.
+     */
+    boolean hasRaw;
+
+    /**
+     * Raw bytes of the request line fields, reused from one request to the next.
+     */
+    byte[] raw = new byte[128];
+
+    /**
+     * Where each raw field starts in {@link #raw}, indexed by <code>RAW_METHOD</code> and so on.
+     */
+    final int[] rawStart = new int[4];
+
+    /**
+     * Where each raw field ends in {@link #raw}, the query string is empty when there is none.
+     */
+    final int[] rawEnd = new int[4];
+
+    /**
+     * Whether the raw request line has a query string, possibly empty as in <code>/a?</code>, which is logged with
+     * its '?' like the query string captured as a string.
+     */
+    boolean hasRawQuery;
+
+    /**
+     * Make this entry ready to capture a request for the given elements.
+     */
+    void prepare(final Log4JAccessLogValve.AccessLogElement[] elements) {
+        this.elements = elements;
+        if (values == null || values.length < elements.length) {
+            values = new Object[elements.length];
+        }
+    }
+
+    /**
+     * Copy the request line fields as raw bytes, leaving them to be captured as strings when the connector did not
+     * leave them all as bytes.
+     *
+     * @return whether they were copied
+     */
+    boolean captureRaw(final Request request) {
+        hasRaw = false;
+        if (request == null || !isRaw(request.method()) || !isRaw(request.requestURI())
+                || !isRaw(request.protocol())
+                || !request.queryString().isNull() && !isRaw(request.queryString())) {
+            return false;
+        }
+        int length = 0;
+        length = copyRaw(RAW_METHOD, request.method(), length);
+        length = copyRaw(RAW_REQUEST_URI, request.requestURI(), length);
+        length = copyRaw(RAW_QUERY_STRING, request.queryString(), length);
+        copyRaw(RAW_PROTOCOL, request.protocol(), length);
+        hasRawQuery = !request.queryString().isNull();
+        hasRaw = true;
+        return true;
+    }
+
+    /**
+     * Drop every reference so a parked entry does not keep request data alive.
+     */
+    void clear() {
+        elements = null;
+        hasRaw = false;
+        if (values != null) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = null;
+            }
+        }
+        method = null;
+        requestURI = null;
+        queryString = null;
+        protocol = null;
+        remoteAddr = null;
+        remoteHost = null;
+        remoteUser = null;
+        serverName = null;
+        sessionId = null;
+        threadName = null;
+    }
+
+    private static boolean isRaw(final MessageBytes bytes) {
+        return bytes.getType() == MessageBytes.T_BYTES
+                && ByteChunk.DEFAULT_CHARSET.equals(bytes.getByteChunk().getCharset());
+    }
+
+    private int copyRaw(final int field, final MessageBytes bytes, final int offset) {
+        int length = 0;
+        if (!bytes.isNull()) {
+            ByteChunk chunk = bytes.getByteChunk();
+            length = chunk.getLength();
+            if (offset + length > raw.length) {
+                byte[] grown = new byte[Math.max(offset + length, raw.length << 1)];
+                System.arraycopy(raw, 0, grown, 0, offset);
+                raw = grown;
+            }
+            System.arraycopy(chunk.getBuffer(), chunk.getStart(), raw, offset, length);
+        }
+        rawStart[field] = offset;
+        rawEnd[field] = offset + length;
+        return offset + length;
+    }
+}
@@ -0,0 +1,507 @@
+package org.apache.catalina.valves;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+
+/**
+ * A filter expression deciding which requests are logged, compiled once into a tree of statically dispatched nodes.
+ * <p>
+ * An expression combines predicates with <code>and</code>, <code>or</code>, <code>not</code> (or
+ * <code>&amp;&amp;</code>, <code>||</code>, <code>!</code>) and parentheses. Predicates take comma separated values,
+ * any of which may match:
+ * <ul>
+ * <li><code>status:4xx,500-503,200</code> status classes, ranges or codes</li>
+ * <li><code>method:GET,HEAD</code> request methods</li>
+ * <li><code>uri:/static/*,*.css,/health</code> URI prefixes, suffixes or exact URIs</li>
+ * <li><code>header:X-Debug</code> present request headers</li>
+ * <li><code>attribute:name</code> present request attributes</li>
+ * <li><code>duration&gt;500</code> time taken, also <code>&gt;=</code>, <code>&lt;</code> and <code>&lt;=</code>, in
+ * milliseconds or with a <code>us</code>, <code>ms</code> or <code>s</code> unit</li>
+ * </ul>
+ * For example <code>not uri:/health,/static/* or status:5xx or duration&gt;=1s</code>. URI prefixes and suffixes
+ * are looked up in tries, and the <code>uri</code> predicates directly under one <code>or</code> are merged into one
+ * lookup, so the number of prefixes hardly matters.
+ */
+final class AccessLogFilter {
+
+    private static final int AND = 0;
+
+    private static final int OR = 1;
+
+    private static final int NOT = 2;
+
+    private static final int STATUS = 3;
+
+    private static final int METHOD = 4;
+
+    private static final int URI = 5;
+
+    private static final int HEADER = 6;
+
+    private static final int ATTRIBUTE = 7;
+
+    private static final int DURATION_ABOVE = 8;
+
+    private static final int DURATION_BELOW = 9;
+
+    private final Node root;
+
+    /**
+     * Tokens of the expression being compiled.
+     */
+    private List<String> tokens;
+
+    private int next;
+
+    /**
+     * @throws IllegalArgumentException
+     *         if the expression does not parse
+     */
+    AccessLogFilter(final String expression) {
+        tokens = tokenize(expression);
+        next = 0;
+        Node node = parseOr();
+        if (next < tokens.size()) {
+            throw error("unexpected " + tokens.get(next));
+        }
+        root = node;
+        tokens = null;
+    }
+
+    /**
+     * A filter that only logs requests without the given attribute, as the <code>condition</code> property does.
+     */
+    static AccessLogFilter unlessAttribute(final String attribute, final AccessLogFilter filter) {
+        Node node = new Node(NOT);
+        node.children = new Node[] { new Node(ATTRIBUTE) };
+        node.children[0].names = new String[] { attribute };
+        if (filter != null) {
+            Node and = new Node(AND);
+            and.children = new Node[] { node, filter.root };
+            node = and;
+        }
+        return new AccessLogFilter(node);
+    }
+
+    private AccessLogFilter(final Node root) {
+        this.root = root;
+    }
+
+    /**
+     * @param elapsed
+     *        time the request took, in nanoseconds
+     * @return true if the request is to be logged
+     */
+    boolean accept(final Request request, final Response response, final long elapsed) {
+        return matches(root, request, response, elapsed);
+    }
+
+    private static boolean matches(final Node node, final Request request, final Response response,
+                                   final long elapsed) {
+        switch(node.op) {
+            case AND :
+                for (Node child : node.children) {
+                    if (!matches(child, request, response, elapsed)) {
+                        return false;
+                    }
+                }
+                return true;
+            case OR :
+                for (Node child : node.children) {
+                    if (matches(child, request, response, elapsed)) {
+                        return true;
+                    }
+                }
+                return false;
+            case NOT :
+                return !matches(node.children[0], request, response, elapsed);
+            case STATUS :
+                int status = response.getStatus();
+                int[] ranges = node.ranges;
+                for (int i = 0; i < ranges.length; i += 2) {
+                    if (status >= ranges[i] && status <= ranges[i + 1]) {
+                        return true;
+                    }
+                }
+                return false;
+            case METHOD :
+                String method = request.getMethod();
+                for (String name : node.names) {
+                    if (name.equals(method)) {
+                        return true;
+                    }
+                }
+                return false;
+            case URI :
+                return node.uris.matches(request.getRequestURI());
+            case HEADER :
+                for (String name : node.names) {
+                    if (request.getHeader(name) != null) {
+                        return true;
+                    }
+                }
+                return false;
+            case ATTRIBUTE :
+                for (String name : node.names) {
+                    if (request.getRequest().getAttribute(name) != null) {
+                        return true;
+                    }
+                }
+                return false;
+            case DURATION_ABOVE :
+                return elapsed >= node.nanos;
+            default:
+                return elapsed < node.nanos;
+        }
+    }
+
+    private Node parseOr() {
+        List<Node> children = new ArrayList<Node>();
+        children.add(parseAnd());
+        while (accept("or") || accept("||")) {
+            children.add(parseAnd());
+        }
+
+        // one trie lookup for all the uri predicates of this or
+        UriMatcher merged = null;
+        for (int i = 0; i < children.size(); i++) {
+            Node child = children.get(i);
+            if (child.op == URI) {
+                if (merged == null) {
+                    merged = child.uris;
+                } else {
+                    merged.addAll(child.uris);
+                    children.remove(i--);
+                }
+            }
+        }
+        return combine(OR, children);
+    }
+
+    private Node parseAnd() {
+        List<Node> children = new ArrayList<Node>();
+        children.add(parseNot());
+        while (accept("and") || accept("&&")) {
+            children.add(parseNot());
+        }
+        return combine(AND, children);
+    }
+
+    private Node parseNot() {
+        if (accept("not") || accept("!")) {
+            Node node = new Node(NOT);
+            node.children = new Node[] { parseNot() };
+            return node;
+        }
+        if (accept("(")) {
+            Node node = parseOr();
+            if (!accept(")")) {
+                throw error("missing )");
+            }
+            return node;
+        }
+        if (next == tokens.size()) {
+            throw error("unexpected end");
+        }
+        return parsePredicate(tokens.get(next++));
+    }
+
+    private Node parsePredicate(final String token) {
+        String lower = token.toLowerCase(Locale.ENGLISH);
+        if (lower.startsWith("duration")) {
+            String rest = token.substring("duration".length());
+            boolean above = rest.startsWith(">");
+            if (!above && !rest.startsWith("<")) {
+                throw error("expected duration followed by >, >=, < or <=: " + token);
+            }
+            boolean inclusive = rest.startsWith("=", 1);
+            long nanos = parseDuration(rest.substring(inclusive ? 2 : 1));
+            // everything is turned into >= and <
+            Node node = new Node(above ? DURATION_ABOVE : DURATION_BELOW);
+            node.nanos = above != inclusive ? nanos + 1 : nanos;
+            return node;
+        }
+
+        int colon = token.indexOf(':');
+        if (colon <= 0 || colon == token.length() - 1) {
+            throw error("expected name:value, got " + token);
+        }
+        String name = lower.substring(0, colon);
+        String[] values = token.substring(colon + 1).split(",");
+        for (int i = 0; i < values.length; i++) {
+            values[i] = values[i].trim();
+            if (values[i].length() == 0) {
+                throw error("empty value in " + token);
+            }
+        }
+
+        Node node;
+        if (name.equals("status")) {
+            node = new Node(STATUS);
+            node.ranges = new int[values.length * 2];
+            for (int i = 0; i < values.length; i++) {
+                parseStatus(values[i], node.ranges, i * 2);
+            }
+        } else if (name.equals("method")) {
+            node = new Node(METHOD);
+            node.names = values;
+        } else if (name.equals("uri")) {
+            node = new Node(URI);
+            node.uris = new UriMatcher();
+            for (String value : values) {
+                node.uris.add(value);
+            }
+        } else if (name.equals("header")) {
+            node = new Node(HEADER);
+            node.names = values;
+        } else if (name.equals("attribute")) {
+            node = new Node(ATTRIBUTE);
+            node.names = values;
+        } else {
+            throw error("unknown predicate " + name);
+        }
+        return node;
+    }
+
+    private void parseStatus(final String value, final int[] ranges, final int index) {
+        try {
+            if (value.length() == 3 && value.substring(1).equalsIgnoreCase("xx")) {
+                int status = Integer.parseInt(value.substring(0, 1)) * 100;
+                ranges[index] = status;
+                ranges[index + 1] = status + 99;
+                return;
+            }
+            int dash = value.indexOf('-');
+            if (dash > 0) {
+                ranges[index] = Integer.parseInt(value.substring(0, dash).trim());
+                ranges[index + 1] = Integer.parseInt(value.substring(dash + 1).trim());
+            } else {
+                ranges[index] = ranges[index + 1] = Integer.parseInt(value);
+            }
+        } catch (NumberFormatException e) {
+            throw error("bad status " + value);
+        }
+    }
+
+    private long parseDuration(final String value) {
+        String number = value.trim();
+        TimeUnit unit = TimeUnit.MILLISECONDS;
+        if (number.endsWith("us")) {
+            unit = TimeUnit.MICROSECONDS;
+            number = number.substring(0, number.length() - 2);
+        } else if (number.endsWith("ms")) {
+            number = number.substring(0, number.length() - 2);
+        } else if (number.endsWith("s")) {
+            unit = TimeUnit.SECONDS;
+            number = number.substring(0, number.length() - 1);
+        }
+        try {
+            return unit.toNanos(Long.parseLong(number.trim()));
+        } catch (NumberFormatException e) {
+            throw error("bad duration " + value);
+        }
+    }
+
+    private boolean accept(final String token) {
+        if (next < tokens.size() && tokens.get(next).equalsIgnoreCase(token)) {
+            next++;
+            return true;
+        }
+        return false;
+    }
+
+    private static Node combine(final int op, final List<Node> children) {
+        if (children.size() == 1) {
+            return children.get(0);
+        }
+        Node node = new Node(op);
+        node.children = children.toArray(new Node[children.size()]);
+        return node;
+    }
+
+    private static IllegalArgumentException error(final String message) {
+        return new IllegalArgumentException("Log4jAccessLogValve: bad filter, " + message);
+    }
+
+    /**
+     * Split into parentheses, <code>!</code>, <code>&amp;&amp;</code>, <code>||</code> and words, a duration
+     * comparison being one word even with blanks around its operator.
+     */
+    private static List<String> tokenize(final String expression) {
+        List<String> result = new ArrayList<String>();
+        int i = 0;
+        int length = expression.length();
+        while (i < length) {
+            char ch = expression.charAt(i);
+            if (Character.isWhitespace(ch)) {
+                i++;
+            } else if (ch == '(' || ch == ')' || ch == '!') {
+                result.add(String.valueOf(ch));
+                i++;
+            } else if (expression.startsWith("&&", i) || expression.startsWith("||", i)) {
+                result.add(expression.substring(i, i + 2));
+                i += 2;
+            } else {
+                int start = i;
+                while (i < length && !Character.isWhitespace(expression.charAt(i)) && expression.charAt(i) != '('
+                        && expression.charAt(i) != ')') {
+                    i++;
+                }
+                String word = expression.substring(start, i);
+                if (word.toLowerCase(Locale.ENGLISH).startsWith("duration")) {
+                    // glue "duration > 500ms" back together
+                    while (i < length && (word.endsWith("duration") || word.endsWith(">") || word.endsWith("<")
+                            || word.endsWith("="))) {
+                        while (i < length && Character.isWhitespace(expression.charAt(i))) {
+                            i++;
+                        }
+                        start = i;
+                        while (i < length && !Character.isWhitespace(expression.charAt(i))
+                                && expression.charAt(i) != ')') {
+                            i++;
+                        }
+                        if (start == i) {
+                            break;
+                        }
+                        word += expression.substring(start, i);
+                    }
+                }
+                result.add(word);
+            }
+        }
+        return result;
+    }
+
+    private static final class Node {
+
+        final int op;
+
+        Node[] children;
+
+        /**
+         * Inclusive status ranges, as low and high pairs.
+         */
+        int[] ranges;
+
+        String[] names;
+
+        UriMatcher uris;
+
+        long nanos;
+
+        Node(final int op) {
+            this.op = op;
+        }
+    }
+
+    /**
+     * Matches a URI against exact URIs, prefixes and suffixes. Prefixes and exact URIs share a trie walked from the
+     * start of the URI, suffixes a trie walked from its end, so a lookup is one pass over the URI at most.
+     */
+    private static final class UriMatcher {
+
+        private final TrieNode forward = new TrieNode();
+
+        private final TrieNode backward = new TrieNode();
+
+        void add(final String pattern) {
+            if (pattern.endsWith("*")) {
+                forward.add(pattern.substring(0, pattern.length() - 1), false, true);
+            } else if (pattern.startsWith("*")) {
+                backward.add(pattern.substring(1), true, true);
+            } else {
+                forward.add(pattern, false, false);
+            }
+        }
+
+        void addAll(final UriMatcher other) {
+            forward.addAll(other.forward);
+            backward.addAll(other.backward);
+        }
+
+        boolean matches(final String uri) {
+            if (uri == null) {
+                return false;
+            }
+            return forward.matches(uri, false) || backward.matches(uri, true);
+        }
+    }
+
+    private static final class TrieNode {
+
+        private char[] labels = new char[0];
+
+        private TrieNode[] children = new TrieNode[0];
+
+        /**
+         * Any string reaching this node matches.
+         */
+        private boolean prefix = false;
+
+        /**
+         * A string ending on this node matches.
+         */
+        private boolean exact = false;
+
+        void add(final String key, final boolean reverse, final boolean isPrefix) {
+            TrieNode node = this;
+            for (int i = 0; i < key.length(); i++) {
+                node = node.child(key.charAt(reverse ? key.length() - 1 - i : i), true);
+            }
+            if (isPrefix) {
+                node.prefix = true;
+            } else {
+                node.exact = true;
+            }
+        }
+
+        void addAll(final TrieNode other) {
+            prefix |= other.prefix;
+            exact |= other.exact;
+            for (int i = 0; i < other.labels.length; i++) {
+                child(other.labels[i], true).addAll(other.children[i]);
+            }
+        }
+
+        boolean matches(final String key, final boolean reverse) {
+            TrieNode node = this;
+            int length = key.length();
+            for (int i = 0; i < length; i++) {
+                if (node.prefix) {
+                    return true;
+                }
+                node = node.child(key.charAt(reverse ? length - 1 - i : i), false);
+                if (node == null) {
+                    return false;
+                }
+            }
+            return node.prefix || node.exact;
+        }
+
+        private TrieNode child(final char label, final boolean create) {
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i] == label) {
+                    return children[i];
+                }
+            }
+            if (!create) {
+                return null;
+            }
+            char[] grownLabels = new char[labels.length + 1];
+            System.arraycopy(labels, 0, grownLabels, 0, labels.length);
+            TrieNode[] grownChildren = new TrieNode[children.length + 1];
+            System.arraycopy(children, 0, grownChildren, 0, children.length);
+            TrieNode node = new TrieNode();
+            grownLabels[labels.length] = label;
+            grownChildren[children.length] = node;
+            labels = grownLabels;
+            children = grownChildren;
+            return node;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package org.apache.catalina.valves;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import org.apache.catalina.Host;
+import org.apache.catalina.connector.Request;
+
+/**
+ * Counts requests and records their latency in one {@link LatencyHistogram} per status class and method, and
+ * optionally per virtual host. Histograms are created on first use, so only the combinations actually seen cost
+ * memory. Recording takes two atomic additions and no lock.
+ * <p>
+ * A histogram takes {@link LatencyHistogram#STRIPE_BYTES} bytes per stripe, about 4KB. With up to {@link #MAX_STRIPES}
+ * stripes and the 48 status class and method combinations, the metrics take at most about 800KB. Broken down by host,
+ * histograms get {@link #MAX_STRIPES_BY_HOST} stripes, so each of up to 65 hosts takes at most about 400KB; in practice
+ * a host only sees a handful of the combinations.
+ */
+final class AccessLogMetrics implements AccessLogMetricsMBean {
+
+    private static final String[] STATUS_CLASSES = { "other", "1xx", "2xx", "3xx", "4xx", "5xx" };
+
+    private static final String[] METHODS = { "GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH", "other" };
+
+    private static final int CELLS = STATUS_CLASSES.length * METHODS.length;
+
+    /**
+     * Most virtual hosts broken down, the others are counted under {@link #OTHER_HOST}.
+     */
+    private static final int MAX_HOSTS = 64;
+
+    /**
+     * Most stripes per histogram: past a few, spreading request threads further saves less contention than the extra
+     * copies of the buckets cost in memory.
+     */
+    static final int MAX_STRIPES = 4;
+
+    static final int MAX_STRIPES_BY_HOST = 2;
+
+    private static final String ANY_HOST = "*";
+
+    private static final String OTHER_HOST = "other";
+
+    private static final String[] COLUMNS = { "host", "status", "method", "count", "meanMicros", "p50Micros",
+            "p90Micros", "p99Micros", "p999Micros", "maxMicros" };
+
+    private final boolean byHost;
+
+    private final int stripes;
+
+    private final AtomicReferenceArray<LatencyHistogram> allHosts = new AtomicReferenceArray<LatencyHistogram>(CELLS);
+
+    private final ConcurrentMap<String, AtomicReferenceArray<LatencyHistogram>> hosts =
+            new ConcurrentHashMap<String, AtomicReferenceArray<LatencyHistogram>>();
+
+    private final TabularType tabularType;
+
+    private final CompositeType rowType;
+
+    AccessLogMetrics(final boolean byHost) {
+        this.byHost = byHost;
+        stripes = StripedCounters.stripes(byHost ? MAX_STRIPES_BY_HOST : MAX_STRIPES);
+        try {
+            OpenType<?>[] types = new OpenType<?>[COLUMNS.length];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = i < 3 ? SimpleType.STRING : SimpleType.LONG;
+            }
+            rowType = new CompositeType("AccessLogLatency",
+                    "requests and latency of one host, status class and method", COLUMNS, COLUMNS, types);
+            tabularType = new TabularType("AccessLogLatencies",
+                    "requests and latency by host, status class and method", rowType, Arrays.copyOf(COLUMNS, 3));
+        } catch (OpenDataException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param elapsed
+     *        time the request took, in nanoseconds
+     */
+    void record(final Request request, final int status, final long elapsed) {
+        AtomicReferenceArray<LatencyHistogram> histograms = byHost ? host(request) : allHosts;
+        int cell = statusClass(status) * METHODS.length + method(request.getMethod());
+        LatencyHistogram histogram = histograms.get(cell);
+        if (histogram == null) {
+            histograms.compareAndSet(cell, null, new LatencyHistogram(stripes));
+            histogram = histograms.get(cell);
+        }
+        histogram.record(TimeUnit.NANOSECONDS.toMicros(elapsed));
+    }
+
+    public boolean getByHost() {
+        return byHost;
+    }
+
+    public long getRequestCount() {
+        long count = 0;
+        long[] buckets = new long[LatencyHistogram.BUCKETS];
+        for (Map.Entry<String, AtomicReferenceArray<LatencyHistogram>> entry : histograms().entrySet()) {
+            AtomicReferenceArray<LatencyHistogram> histograms = entry.getValue();
+            for (int cell = 0; cell < CELLS; cell++) {
+                LatencyHistogram histogram = histograms.get(cell);
+                if (histogram != null) {
+                    histogram.drain(buckets, false);
+                }
+            }
+        }
+        for (long bucket : buckets) {
+            count += bucket;
+        }
+        return count;
+    }
+
+    public TabularData snapshot() throws OpenDataException {
+        return snapshot(false);
+    }
+
+    public TabularData snapshotAndReset() throws OpenDataException {
+        return snapshot(true);
+    }
+
+    public void reset() {
+        long[] buckets = new long[LatencyHistogram.BUCKETS];
+        for (AtomicReferenceArray<LatencyHistogram> histograms : histograms().values()) {
+            for (int cell = 0; cell < CELLS; cell++) {
+                LatencyHistogram histogram = histograms.get(cell);
+                if (histogram != null) {
+                    histogram.drain(buckets, true);
+                }
+            }
+        }
+    }
+
+    private TabularData snapshot(final boolean reset) throws OpenDataException {
+        TabularData result = new TabularDataSupport(tabularType);
+        long[] buckets = new long[LatencyHistogram.BUCKETS];
+        for (Map.Entry<String, AtomicReferenceArray<LatencyHistogram>> entry : histograms().entrySet()) {
+            AtomicReferenceArray<LatencyHistogram> histograms = entry.getValue();
+            for (int cell = 0; cell < CELLS; cell++) {
+                LatencyHistogram histogram = histograms.get(cell);
+                if (histogram == null) {
+                    continue;
+                }
+                Arrays.fill(buckets, 0);
+                long sum = histogram.drain(buckets, reset);
+                long count = 0;
+                int highest = 0;
+                for (int i = 0; i < buckets.length; i++) {
+                    count += buckets[i];
+                    if (buckets[i] > 0) {
+                        highest = i;
+                    }
+                }
+                if (count == 0) {
+                    continue;
+                }
+                Object[] values = { entry.getKey(), STATUS_CLASSES[cell / METHODS.length],
+                        METHODS[cell % METHODS.length], Long.valueOf(count), Long.valueOf(sum / count),
+                        Long.valueOf(LatencyHistogram.percentile(buckets, count, 0.5)),
+                        Long.valueOf(LatencyHistogram.percentile(buckets, count, 0.9)),
+                        Long.valueOf(LatencyHistogram.percentile(buckets, count, 0.99)),
+                        Long.valueOf(LatencyHistogram.percentile(buckets, count, 0.999)),
+                        Long.valueOf(LatencyHistogram.highest(highest)) };
+                result.put(new CompositeDataSupport(rowType, COLUMNS, values));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the histograms of every host, the ones of all hosts together when not broken down by host
+     */
+    private Map<String, AtomicReferenceArray<LatencyHistogram>> histograms() {
+        if (byHost) {
+            return hosts;
+        }
+        return Collections.singletonMap(ANY_HOST, allHosts);
+    }
+
+    private AtomicReferenceArray<LatencyHistogram> host(final Request request) {
+        Host host = request.getHost();
+        String name = host == null ? ANY_HOST : host.getName();
+        AtomicReferenceArray<LatencyHistogram> histograms = hosts.get(name);
+        if (histograms == null) {
+            if (hosts.size() >= MAX_HOSTS) {
+                name = OTHER_HOST;
+            }
+            hosts.putIfAbsent(name, new AtomicReferenceArray<LatencyHistogram>(CELLS));
+            histograms = hosts.get(name);
+        }
+        return histograms;
+    }
+
+    private static int statusClass(final int status) {
+        int statusClass = status / 100;
+        return statusClass >= 1 && statusClass <= 5 ? statusClass : 0;
+    }
+
+    private static int method(final String method) {
+        if (method == null) {
+            return METHODS.length - 1;
+        }
+        switch(method) {
+            case "GET" :
+                return 0;
+            case "POST" :
+                return 1;
+            case "PUT" :
+                return 2;
+            case "DELETE" :
+                return 3;
+            case "HEAD" :
+                return 4;
+            case "OPTIONS" :
+                return 5;
+            case "PATCH" :
+                return 6;
+            default:
+                return METHODS.length - 1;
+        }
+    }
+}
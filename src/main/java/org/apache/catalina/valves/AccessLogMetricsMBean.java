@@ -0,0 +1,37 @@
+package org.apache.catalina.valves;
+
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.TabularData;
+
+/**
+ * Request counters and latency histograms kept by {@link Log4JAccessLogValve}, as registered over JMX when its
+ * <code>metrics</code> property is set.
+ */
+public interface AccessLogMetricsMBean {
+
+    /**
+     * @return Returns the number of requests recorded since the start or the last reset.
+     */
+    long getRequestCount();
+
+    /**
+     * @return Returns whether requests are also broken down by virtual host.
+     */
+    boolean getByHost();
+
+    /**
+     * One row per host, status class and method seen: request count, mean and maximum latency, and the 50th, 90th,
+     * 99th and 99.9th percentiles, in microseconds.
+     */
+    TabularData snapshot() throws OpenDataException;
+
+    /**
+     * Take a snapshot and start counting from zero again, without losing requests recorded in between.
+     */
+    TabularData snapshotAndReset() throws OpenDataException;
+
+    /**
+     * Start counting from zero again.
+     */
+    void reset();
+}
@@ -0,0 +1,139 @@
+package org.apache.catalina.valves;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.Log4JAccessLogValve.AccessLogElement;
+
+/**
+ * Several lines, each with its own pattern, logger and optional filter, written from one capture of the request.
+ * <p>
+ * The patterns are parsed together and an element that appears in more than one of them, <code>%r</code> or
+ * <code>%{User-Agent}i</code> say, is one and the same instance with one value slot. The capture walks the union of
+ * the elements, {@link #elements()}, so each field is read from the request once whatever the number of outputs, and
+ * every output formats its own elements from that one entry.
+ * <p>
+ * The filters are evaluated on the request thread, and the outputs that accepted the request are kept in
+ * {@link AccessLogEntry#outputs}, at most 64 of them.
+ */
+final class AccessLogOutputs {
+
+    static final int MAX_OUTPUTS = Long.SIZE;
+
+    /**
+     * What an output is configured with, <code>output.&lt;name&gt;.pattern</code> and so on.
+     */
+    static final class Definition {
+
+        final String name;
+
+        String loggerName;
+
+        String pattern;
+
+        String filter;
+
+        Definition(final String name) {
+            this.name = name;
+        }
+    }
+
+    private final AccessLogElement[] elements;
+
+    private final String[] names;
+
+    private final String[] loggerNames;
+
+    private final AccessLogElement[][] outputElements;
+
+    /**
+     * The patterns of the outputs compiled, null when compilePattern is off.
+     */
+    private final CompiledPattern[] compiled;
+
+    private final AccessLogFilter[] filters;
+
+    /**
+     * The outputs without a filter, they accept every request.
+     */
+    private final long unfiltered;
+
+    /**
+     * @param elements
+     *        the distinct elements of all outputs, each at the index of its value slot
+     * @param loggerNames
+     *        the logger of each output, null for the valve's own
+     * @param filters
+     *        the filter of each output, null entries where there is none
+     */
+    AccessLogOutputs(final AccessLogElement[] elements, final String[] names, final String[] loggerNames,
+                     final AccessLogElement[][] outputElements, final AccessLogFilter[] filters,
+                     final boolean compile) {
+        if (names.length > MAX_OUTPUTS) {
+            throw new IllegalArgumentException("Log4jAccessLogValve: more than " + MAX_OUTPUTS + " outputs");
+        }
+        this.elements = elements;
+        this.names = names;
+        this.loggerNames = loggerNames;
+        this.outputElements = outputElements;
+        this.filters = filters;
+        this.compiled = compile ? new CompiledPattern[names.length] : null;
+        long all = 0;
+        for (int i = 0; i < names.length; i++) {
+            if (compile) {
+                compiled[i] = new CompiledPattern(outputElements[i]);
+            }
+            if (filters[i] == null) {
+                all |= 1L << i;
+            }
+        }
+        this.unfiltered = all;
+    }
+
+    /**
+     * @return the elements of all outputs, each once, the ones an entry is captured for
+     */
+    AccessLogElement[] elements() {
+        return elements;
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    String name(final int output) {
+        return names[output];
+    }
+
+    /**
+     * @return the logger of the output, null for the one logged to the valve's own logger
+     */
+    String loggerName(final int output) {
+        return loggerNames[output];
+    }
+
+    /**
+     * @return a bit for each output whose filter accepts the request, 0 if none does
+     */
+    long accept(final Request request, final Response response, final long elapsed) {
+        long accepted = unfiltered;
+        for (int i = 0; i < filters.length; i++) {
+            if (filters[i] != null && filters[i].accept(request, response, elapsed)) {
+                accepted |= 1L << i;
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * Write the line of one output for a captured entry into the buffer.
+     */
+    void format(final int output, final LineBuffer buf, final AccessLogEntry entry) {
+        if (compiled != null) {
+            compiled[output].format(buf, entry);
+            return;
+        }
+        for (AccessLogElement logElement : outputElements[output]) {
+            logElement.addElement(buf, entry);
+        }
+    }
+}
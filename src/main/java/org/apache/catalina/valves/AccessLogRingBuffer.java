@@ -0,0 +1,118 @@
+package org.apache.catalina.valves;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free ring of preallocated {@link AccessLogEntry} slots that any number of request threads write to
+ * and any number of consumer threads read from.
+ * <p>
+ * Every slot carries a sequence number. A slot with sequence <code>s</code> is free for the producer that claims
+ * position <code>s</code>, holds a published entry for the consumer at position <code>s</code> when its sequence is
+ * <code>s + 1</code>, and becomes free again for the next lap once the consumer releases it.
+ */
+final class AccessLogRingBuffer {
+
+    private final AccessLogEntry[] entries;
+
+    private final AtomicLongArray sequences;
+
+    private final int mask;
+
+    /**
+     * Next position a producer will claim.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Next position a consumer will take.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * @param capacity
+     *        the requested number of slots, rounded up to a power of two
+     */
+    AccessLogRingBuffer(final int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        entries = new AccessLogEntry[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            entries[i] = new AccessLogEntry();
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    int capacity() {
+        return entries.length;
+    }
+
+    /**
+     * Claim a free slot for writing.
+     *
+     * @return the position of the claimed slot, or -1 if the ring is full
+     */
+    long claim() {
+        while (true) {
+            long pos = tail.get();
+            long seq = sequences.get((int) pos & mask);
+            if (seq == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    return pos;
+                }
+            } else if (seq < pos) {
+                return -1;
+            }
+        }
+    }
+
+    AccessLogEntry get(final long pos) {
+        return entries[(int) pos & mask];
+    }
+
+    /**
+     * Hand a claimed and filled slot over to the consumers.
+     */
+    void publish(final long pos) {
+        sequences.lazySet((int) pos & mask, pos + 1);
+    }
+
+    /**
+     * Take the next published slot for reading.
+     *
+     * @return the position of the slot, or -1 if nothing has been published
+     */
+    long poll() {
+        while (true) {
+            long pos = head.get();
+            long seq = sequences.get((int) pos & mask);
+            if (seq == pos + 1) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    return pos;
+                }
+            } else if (seq <= pos) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Clear a slot taken by {@link #poll()} and give it back to the producers.
+     */
+    void release(final long pos) {
+        entries[(int) pos & mask].clear();
+        sequences.lazySet((int) pos & mask, pos + entries.length);
+    }
+
+    /**
+     * @return the number of claimed slots that have not been released yet
+     */
+    int size() {
+        long size = tail.get() - head.get();
+        return size < 0 ? 0 : (int) size;
+    }
+}
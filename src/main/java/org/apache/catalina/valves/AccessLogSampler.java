@@ -0,0 +1,219 @@
+package org.apache.catalina.valves;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which requests get an access log line, before anything is captured for them.
+ * <p>
+ * Every rate is turned into "one in <i>n</i>": a kept line stands for <i>n</i> requests, and that weight is what
+ * <code>%W</code> writes, so totals can be reconstructed by summing the weights. The rate of a request is the one of
+ * the longest matching URI prefix rule, else the one of its status class, else the default rate. Client and server
+ * errors (status 400 and up) and requests slower than the threshold are always kept, with weight 1.
+ * <p>
+ * With a target, the rates are scaled down further, once a second, so the lines kept stay around the target number
+ * of lines per second. The scale is worked out from the lines the configured rates alone would keep, which does not
+ * depend on the scale itself, so it settles instead of oscillating.
+ */
+final class AccessLogSampler {
+
+    /**
+     * Fixed point unit of {@link #expected}.
+     */
+    private static final long ONE = 1 << 16;
+
+    private static final long WINDOW = 1000;
+
+    /**
+     * One in how many requests is kept by default, 0 for none.
+     */
+    private final long every;
+
+    /**
+     * One in how many requests is kept per status class (status / 100), -1 for the default.
+     */
+    private final long[] statusEvery = { -1, -1, -1, -1, -1, -1 };
+
+    /**
+     * URI prefixes, longest first, and their one in how many.
+     */
+    private final String[] prefixes;
+
+    private final long[] prefixEvery;
+
+    /**
+     * Requests taking this many nanoseconds or more are always kept, 0 for no threshold.
+     */
+    private final long slowThreshold;
+
+    /**
+     * Lines per second to aim at, 0 to keep the configured rates.
+     */
+    private final long target;
+
+    /**
+     * Lines the configured rates would have kept in the current window, in units of {@link #ONE}.
+     */
+    private final AtomicLong expected = new AtomicLong();
+
+    private final AtomicLong windowStart;
+
+    /**
+     * Smoothed lines per second the configured rates would keep.
+     */
+    private volatile long expectedRate = 0;
+
+    /**
+     * What the target multiplies the one in how many by.
+     */
+    private volatile long scale = 1;
+
+    /**
+     * @param rate
+     *        the default rate, between 0 and 1
+     * @param rules
+     *        comma separated <code>2xx=0.1</code> or <code>/prefix=0.01</code> rules, may be null
+     * @param slowThreshold
+     *        milliseconds above which requests are always kept, 0 for none
+     * @param target
+     *        lines per second to adapt the rates to, 0 for none
+     */
+    AccessLogSampler(final double rate, final String rules, final long slowThreshold, final long target,
+                     final long now) {
+        this.every = every(rate);
+        this.slowThreshold = TimeUnit.MILLISECONDS.toNanos(slowThreshold);
+        this.target = target;
+        this.windowStart = new AtomicLong(now);
+
+        final List<String> names = new ArrayList<String>();
+        final List<Long> values = new ArrayList<Long>();
+        if (rules != null) {
+            for (String rule : rules.split(",")) {
+                rule = rule.trim();
+                if (rule.length() == 0) {
+                    continue;
+                }
+                int eq = rule.lastIndexOf('=');
+                if (eq <= 0) {
+                    throw new IllegalArgumentException("Log4jAccessLogValve: sample rule without rate: " + rule);
+                }
+                String name = rule.substring(0, eq).trim();
+                long n;
+                try {
+                    n = every(Double.parseDouble(rule.substring(eq + 1).trim()));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Log4jAccessLogValve: bad rate in sample rule: " + rule);
+                }
+                if (name.startsWith("/")) {
+                    names.add(name);
+                    values.add(Long.valueOf(n));
+                } else if (name.length() == 3 && name.charAt(0) >= '1' && name.charAt(0) <= '5'
+                        && name.substring(1).equalsIgnoreCase("xx")) {
+                    statusEvery[name.charAt(0) - '0'] = n;
+                } else {
+                    throw new IllegalArgumentException("Log4jAccessLogValve: unknown sample rule: " + rule);
+                }
+            }
+        }
+
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < names.size(); i++) {
+            order.add(Integer.valueOf(i));
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            public int compare(final Integer a, final Integer b) {
+                return names.get(b.intValue()).length() - names.get(a.intValue()).length();
+            }
+        });
+        prefixes = new String[order.size()];
+        prefixEvery = new long[order.size()];
+        for (int i = 0; i < prefixes.length; i++) {
+            prefixes[i] = names.get(order.get(i).intValue());
+            prefixEvery[i] = values.get(order.get(i).intValue()).longValue();
+        }
+    }
+
+    /**
+     * @return the lines per second the configured rates would keep, smoothed
+     */
+    long getExpectedRate() {
+        return expectedRate;
+    }
+
+    /**
+     * @return what the target currently multiplies the configured one in how many by
+     */
+    long getScale() {
+        return scale;
+    }
+
+    /**
+     * @param elapsed
+     *        time the request took, in nanoseconds
+     * @param now
+     *        current time in milliseconds
+     * @return the weight of the line, 0 if the request is not logged
+     */
+    long sample(final int status, final String uri, final long elapsed, final long now) {
+        if (status >= 400 || slowThreshold > 0 && elapsed >= slowThreshold) {
+            return 1;
+        }
+
+        long n = this.every;
+        int statusClass = status / 100;
+        if (statusClass >= 0 && statusClass < statusEvery.length && statusEvery[statusClass] >= 0) {
+            n = statusEvery[statusClass];
+        }
+        if (uri != null) {
+            for (int i = 0; i < prefixes.length; i++) {
+                if (uri.startsWith(prefixes[i])) {
+                    n = prefixEvery[i];
+                    break;
+                }
+            }
+        }
+        if (n == 0) {
+            return 0;
+        }
+
+        if (target > 0) {
+            expected.addAndGet(ONE / n);
+            long start = windowStart.get();
+            if (now - start >= WINDOW && windowStart.compareAndSet(start, now)) {
+                adapt(now - start);
+            }
+            n *= scale;
+        }
+        if (n == 1 || ThreadLocalRandom.current().nextLong(n) == 0) {
+            return n;
+        }
+        return 0;
+    }
+
+    /**
+     * Work out the scale for the next window from the lines expected in the last one.
+     */
+    private void adapt(final long window) {
+        long rate = expected.getAndSet(0) * 1000 / window / ONE;
+        if (expectedRate > 0) {
+            rate = (expectedRate + rate) / 2;
+        }
+        expectedRate = rate;
+        scale = Math.max(1, (rate + target - 1) / target);
+    }
+
+    /**
+     * @return one in how many requests a rate keeps, 0 for none
+     */
+    private static long every(final double rate) {
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException("Log4jAccessLogValve: sample rate not between 0 and 1: " + rate);
+        }
+        return rate == 0 ? 0 : Math.max(1, Math.round(1 / rate));
+    }
+}
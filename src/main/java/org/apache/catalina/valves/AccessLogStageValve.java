@@ -0,0 +1,60 @@
+package org.apache.catalina.valves;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+
+/**
+ * Marks a stage of the pipeline in the deep trace of a {@link Log4JAccessLogValve} with a
+ * <code>traceThreshold</code>: the trace of a slow request then tells how long it took the request to get here and
+ * how long it spent in the rest of the pipeline from here on. Added first to the pipeline of a
+ * <code>Context</code>, it splits the time before the web application from the time in its filters and servlets:
+ *
+ * <pre>
+ * &lt;Valve className="org.apache.catalina.valves.AccessLogStageValve" stage="context"/&gt;
+ * </pre>
+ *
+ * Requests that are not traced go straight through.
+ */
+public final class AccessLogStageValve extends ValveBase {
+
+    private String stage = "context";
+
+    public AccessLogStageValve() {
+        super();
+        setAsyncSupported(true);
+    }
+
+    /**
+     * @return Returns the name of the stage in the trace.
+     */
+    public String getStage() {
+        return stage;
+    }
+
+    @Override
+    public void invoke(final Request request, final Response response) throws IOException, ServletException {
+        RequestTrace trace = RequestTrace.current(request);
+        if (trace == null) {
+            getNext().invoke(request, response);
+            return;
+        }
+        int index = trace.enter(stage, System.nanoTime());
+        try {
+            getNext().invoke(request, response);
+        } finally {
+            trace.exit(index, System.nanoTime());
+        }
+    }
+
+    /**
+     * @param stage
+     *        name of the stage in the trace, default <code>context</code>
+     */
+    public void setStage(final String stage) {
+        this.stage = stage;
+    }
+}
@@ -0,0 +1,153 @@
+package org.apache.catalina.valves;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the logging pipeline, striped by thread with {@link StripedCounters} so request threads and async
+ * consumers do not contend on them. The gauges (buffer occupancy) are read from the valve when asked for.
+ */
+final class AccessLogStats implements AccessLogStatsMBean {
+
+    static final int LOGGED = 0;
+
+    static final int FILTERED = 1;
+
+    static final int SAMPLED_OUT = 2;
+
+    static final int DROPPED = 3;
+
+    static final int CAPTURE_TIME = 4;
+
+    static final int FORMAT_TIME = 5;
+
+    static final int LOG_TIME = 6;
+
+    static final int CAPTURED = 7;
+
+    static final int FORMATTED = 8;
+
+    static final int LINE_LENGTH = 9;
+
+    private static final int COUNTERS = 10;
+
+    private final Log4JAccessLogValve valve;
+
+    private final StripedCounters counters;
+
+    private final AtomicLong maxLineLength = new AtomicLong();
+
+    AccessLogStats(final Log4JAccessLogValve valve) {
+        this.valve = valve;
+        counters = new StripedCounters(COUNTERS, StripedCounters.stripes(16));
+    }
+
+    void add(final int counter, final long delta) {
+        counters.add(counter, delta);
+    }
+
+    void lineLength(final int length) {
+        add(LINE_LENGTH, length);
+        long max = maxLineLength.get();
+        while (length > max && !maxLineLength.compareAndSet(max, length)) {
+            max = maxLineLength.get();
+        }
+    }
+
+    public long getLinesLogged() {
+        return counters.sum(LOGGED);
+    }
+
+    public long getLinesFiltered() {
+        return counters.sum(FILTERED);
+    }
+
+    public long getLinesSampledOut() {
+        return counters.sum(SAMPLED_OUT);
+    }
+
+    public long getLinesDropped() {
+        return counters.sum(DROPPED);
+    }
+
+    public long getCaptureTime() {
+        return counters.sum(CAPTURE_TIME);
+    }
+
+    public long getFormatTime() {
+        return counters.sum(FORMAT_TIME);
+    }
+
+    public long getLogTime() {
+        return counters.sum(LOG_TIME);
+    }
+
+    public long getAverageCaptureTime() {
+        return average(CAPTURE_TIME, CAPTURED);
+    }
+
+    public long getAverageFormatTime() {
+        return average(FORMAT_TIME, FORMATTED);
+    }
+
+    public long getAverageLogTime() {
+        return average(LOG_TIME, LOGGED);
+    }
+
+    public long getAverageLineLength() {
+        return average(LINE_LENGTH, FORMATTED);
+    }
+
+    public long getMaxLineLength() {
+        return maxLineLength.get();
+    }
+
+    public long getAsyncBufferSize() {
+        AccessLogRingBuffer ring = valve.ringBuffer();
+        return ring == null ? 0 : ring.size();
+    }
+
+    public long getAsyncBufferCapacity() {
+        AccessLogRingBuffer ring = valve.ringBuffer();
+        return ring == null ? 0 : ring.capacity();
+    }
+
+    public long getFileBufferedBytes() {
+        FileAccessLogSink sink = valve.fileSink();
+        return sink == null ? 0 : sink.buffered();
+    }
+
+    public long getBatchQueueSize() {
+        AccessLogBatcher batcher = valve.batcher();
+        return batcher == null ? 0 : batcher.size();
+    }
+
+    public long getBatchLinesDropped() {
+        AccessLogBatcher batcher = valve.batcher();
+        return batcher == null ? 0 : batcher.dropped();
+    }
+
+    public boolean getDegraded() {
+        AccessLogDegrader degrader = valve.degrader();
+        return degrader != null && degrader.degraded();
+    }
+
+    public long getDegradeCount() {
+        AccessLogDegrader degrader = valve.degrader();
+        return degrader == null ? 0 : degrader.degradations();
+    }
+
+    public long getLinesDegraded() {
+        AccessLogDegrader degrader = valve.degrader();
+        return degrader == null ? 0 : degrader.degradedLines();
+    }
+
+    public void reset() {
+        counters.reset();
+        maxLineLength.set(0);
+    }
+
+    private long average(final int total, final int count) {
+        long n = counters.sum(count);
+        return n == 0 ? 0 : counters.sum(total) / n;
+    }
+}
@@ -0,0 +1,99 @@
+package org.apache.catalina.valves;
+
+/**
+ * What the logging pipeline of {@link Log4JAccessLogValve} itself costs, as registered over JMX when its
+ * <code>stats</code> property is set. Counts and times accumulate since the start or the last reset; times are in
+ * nanoseconds.
+ */
+public interface AccessLogStatsMBean {
+
+    /**
+     * @return Returns the number of lines written out.
+     */
+    long getLinesLogged();
+
+    /**
+     * @return Returns the number of requests not logged because of the condition or the filter.
+     */
+    long getLinesFiltered();
+
+    /**
+     * @return Returns the number of requests not logged because of sampling.
+     */
+    long getLinesSampledOut();
+
+    /**
+     * @return Returns the number of lines lost because the async buffer was full, whatever the overflow policy.
+     */
+    long getLinesDropped();
+
+    /**
+     * @return Returns the time spent copying fields out of requests on the request threads.
+     */
+    long getCaptureTime();
+
+    /**
+     * @return Returns the time spent formatting lines with the elements.
+     */
+    long getFormatTime();
+
+    /**
+     * @return Returns the time spent handing lines to log4j, the file or the binary writer.
+     */
+    long getLogTime();
+
+    long getAverageCaptureTime();
+
+    long getAverageFormatTime();
+
+    long getAverageLogTime();
+
+    long getAverageLineLength();
+
+    long getMaxLineLength();
+
+    /**
+     * @return Returns the number of entries waiting in the async buffer, 0 when logging synchronously.
+     */
+    long getAsyncBufferSize();
+
+    /**
+     * @return Returns the number of slots of the async buffer, 0 when logging synchronously.
+     */
+    long getAsyncBufferCapacity();
+
+    /**
+     * @return Returns the number of bytes waiting in the active file buffer, 0 when not writing text to a file.
+     */
+    long getFileBufferedBytes();
+
+    /**
+     * @return Returns the number of lines waiting to be handed to log4j in a batch, 0 when not batching.
+     */
+    long getBatchQueueSize();
+
+    /**
+     * @return Returns the number of lines dropped because the batch dispatcher thread had died.
+     */
+    long getBatchLinesDropped();
+
+    /**
+     * @return Returns whether lines are currently written with the fallback pattern.
+     */
+    boolean getDegraded();
+
+    /**
+     * @return Returns the number of times the valve switched to the fallback pattern since the start, not reset.
+     */
+    long getDegradeCount();
+
+    /**
+     * @return Returns the number of lines written with the fallback pattern since the start, not reset.
+     */
+    long getLinesDegraded();
+
+    /**
+     * Start counting from zero again.
+     */
+    void reset();
+}
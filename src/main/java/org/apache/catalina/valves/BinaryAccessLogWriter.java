@@ -0,0 +1,345 @@
+package org.apache.catalina.valves;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.juli.logging.Log;
+
+/**
+ * Writes access log entries in a compact binary record format, decoded again by {@link AccessLogDecoder}.
+ * <p>
+ * A file is a sequence of segments. Each segment starts with the {@link #MAGIC} bytes and a version byte, and is
+ * followed by records. The magic starts with a zero byte, which no record length can be. A record is its length as a
+ * varint followed by:
+ * <ol>
+ * <li>the end timestamp, as a zigzag varint of the milliseconds since the previous record of the segment (since the
+ * epoch for the first record)</li>
+ * <li>the elapsed time in microseconds, the status, the bytes sent and the sample weight, as varints</li>
+ * <li>remote host, remote user, method, URI, query string, protocol, referer and user agent as strings</li>
+ * </ol>
+ * A string is a varint tag: 0 for null, an even number <code>2 * (id + 1)</code> for a dictionary reference, or an
+ * odd number <code>2 * length + 1</code> followed by that many UTF-8 bytes. A literal in a dictionary field (host,
+ * user, method, protocol, user agent) also becomes the next dictionary id of the segment, on both sides, until the
+ * dictionary is full. Every time a file is opened a new segment starts, so appending to an existing file is safe.
+ * <p>
+ * Like {@link FileAccessLogSink}, producers only encode their record into one of two buffers under the lock; a
+ * dedicated writer thread writes the full buffer out, or the active one once the flush interval has passed.
+ */
+final class BinaryAccessLogWriter {
+
+    static final byte[] MAGIC = { 0, 'T', 'A', 'L', 'B' };
+
+    static final int VERSION = 2;
+
+    /**
+     * Most strings the dictionary of one segment holds.
+     */
+    static final int MAX_DICTIONARY = 4096;
+
+    /**
+     * Where the referer and user agent headers are captured in the entry values.
+     */
+    static final int REFERER = 5;
+
+    static final int USER_AGENT = 6;
+
+    private final String file;
+
+    private final long flushInterval;
+
+    private final Log log;
+
+    /**
+     * Only used by the writer thread once it is started.
+     */
+    private final FileOutputStream out;
+
+    private final Object lock = new Object();
+
+    // the encoding state of the segment, guarded by the lock
+
+    private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+    private long lastTimestamp = 0;
+
+    /**
+     * The record being encoded.
+     */
+    private byte[] record = new byte[512];
+
+    private int length = 0;
+
+    /**
+     * The buffer records are appended to.
+     */
+    private byte[] active;
+
+    private int activeLength = 0;
+
+    /**
+     * A full buffer waiting for or being written by the writer thread, null when there is none.
+     */
+    private byte[] pending = null;
+
+    private int pendingLength = 0;
+
+    /**
+     * The free buffer, null while the other one is pending.
+     */
+    private byte[] spare;
+
+    private boolean running = true;
+
+    private final Thread writer;
+
+    /**
+     * @param bufferSize
+     *        size in bytes of each of the two buffers
+     * @param flushInterval
+     *        most milliseconds a record waits in the buffer before it is written
+     */
+    BinaryAccessLogWriter(final String file, final int bufferSize, final long flushInterval, final Log log)
+            throws IOException {
+        this.file = file;
+        this.flushInterval = flushInterval;
+        this.log = log;
+        out = new FileOutputStream(file, true);
+        active = new byte[bufferSize];
+        spare = new byte[bufferSize];
+        System.arraycopy(MAGIC, 0, active, 0, MAGIC.length);
+        active[MAGIC.length] = VERSION;
+        activeLength = MAGIC.length + 1;
+
+        writer = new Thread(new Writer(), "Log4JAccessLogValve[" + new File(file).getName() + "]-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    void write(final AccessLogEntry entry) {
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            length = 0;
+            writeVarint(zigzag(entry.endTime - lastTimestamp));
+            lastTimestamp = entry.endTime;
+            writeVarint(entry.elapsed / 1000);
+            writeVarint(entry.hasResponse ? entry.status : 0);
+            writeVarint(Math.max(entry.bytesSent, 0));
+            writeVarint(entry.sampleWeight);
+            writeString(entry.remoteHost, true);
+            writeString(entry.remoteUser, true);
+            writeString(entry.method, true);
+            writeString(entry.requestURI, false);
+            writeString(entry.queryString, false);
+            writeString(entry.protocol, true);
+            writeString((String) entry.values[REFERER], false);
+            writeString((String) entry.values[USER_AGENT], true);
+
+            // the length varint takes at most five bytes
+            if (active.length - activeLength < length + 5) {
+                handOver();
+                if (active.length < length + 5) {
+                    // a record larger than a buffer, the larger buffer stays in use from here on
+                    active = new byte[length + 5];
+                }
+            }
+            int size = length;
+            do {
+                int b = size & 0x7F;
+                size >>>= 7;
+                active[activeLength++] = (byte) (size == 0 ? b : b | 0x80);
+            } while (size != 0);
+            System.arraycopy(record, 0, active, activeLength, length);
+            activeLength += length;
+        }
+    }
+
+    /**
+     * Write out everything buffered, stop the writer thread and close the file.
+     */
+    void close() throws IOException {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        out.close();
+    }
+
+    /**
+     * Hand the active buffer to the writer thread, waiting for the spare one if it is still being written. Called
+     * holding the lock.
+     */
+    private void handOver() {
+        boolean interrupted = false;
+        while (spare == null) {
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        pending = active;
+        pendingLength = activeLength;
+        active = spare;
+        activeLength = 0;
+        spare = null;
+        lock.notifyAll();
+    }
+
+    private void writeString(final String value, final boolean dictionaryField) {
+        if (value == null) {
+            writeVarint(0);
+            return;
+        }
+        if (dictionaryField) {
+            Integer id = dictionary.get(value);
+            if (id != null) {
+                writeVarint((id.longValue() + 1) << 1);
+                return;
+            }
+            if (dictionary.size() < MAX_DICTIONARY) {
+                dictionary.put(value, Integer.valueOf(dictionary.size()));
+            }
+        }
+
+        int bytes = utf8Length(value);
+        writeVarint(((long) bytes << 1) | 1);
+        ensureCapacity(length + bytes);
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch < 0x80) {
+                record[length++] = (byte) ch;
+            } else if (ch < 0x800) {
+                record[length++] = (byte) (0xC0 | ch >> 6);
+                record[length++] = (byte) (0x80 | ch & 0x3F);
+            } else if (Character.isHighSurrogate(ch) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(ch, value.charAt(++i));
+                record[length++] = (byte) (0xF0 | cp >> 18);
+                record[length++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                record[length++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                record[length++] = (byte) (0x80 | cp & 0x3F);
+            } else if (Character.isSurrogate(ch)) {
+                record[length++] = (byte) '?';
+            } else {
+                record[length++] = (byte) (0xE0 | ch >> 12);
+                record[length++] = (byte) (0x80 | ch >> 6 & 0x3F);
+                record[length++] = (byte) (0x80 | ch & 0x3F);
+            }
+        }
+    }
+
+    private void writeVarint(long value) {
+        ensureCapacity(length + 10);
+        while ((value & ~0x7FL) != 0) {
+            record[length++] = (byte) (value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        record[length++] = (byte) value;
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity > record.length) {
+            byte[] grown = new byte[Math.max(capacity, record.length << 1)];
+            System.arraycopy(record, 0, grown, 0, length);
+            record = grown;
+        }
+    }
+
+    private static long zigzag(final long value) {
+        return value << 1 ^ value >> 63;
+    }
+
+    /**
+     * The number of bytes the UTF-8 encoding of a string takes, unpaired surrogates counting as one '?'.
+     */
+    static int utf8Length(final String value) {
+        int bytes = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch < 0x80) {
+                bytes++;
+            } else if (ch < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(ch) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(ch)) {
+                bytes++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the full buffers out to the file, and the active one once the flush interval has passed.
+     */
+    private class Writer implements Runnable {
+
+        public void run() {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushInterval);
+            while (true) {
+                byte[] batch;
+                int batchLength;
+                boolean stopping;
+                synchronized (lock) {
+                    long wait;
+                    while (pending == null && running && (wait = deadline - System.nanoTime()) > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.timedWait(lock, wait);
+                        } catch (InterruptedException e) {
+                            running = false;
+                        }
+                    }
+                    if (pending == null && activeLength > 0) {
+                        pending = active;
+                        pendingLength = activeLength;
+                        active = spare;
+                        activeLength = 0;
+                        spare = null;
+                    }
+                    batch = pending;
+                    batchLength = pendingLength;
+                    stopping = !running;
+                }
+                deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushInterval);
+
+                if (batch != null) {
+                    try {
+                        out.write(batch, 0, batchLength);
+                    } catch (IOException e) {
+                        if (log != null) {
+                            log.error("Log4jAccessLogValve: cannot write to " + file + ", " + batchLength
+                                    + " bytes lost", e);
+                        }
+                    }
+                    synchronized (lock) {
+                        pending = null;
+                        spare = batch;
+                        lock.notifyAll();
+                    }
+                }
+
+                if (stopping && batch == null) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package org.apache.catalina.valves;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The UTF-8 counterpart of {@link LineBuffer}, for lines that go straight to a file. Bytes the connector left raw
+ * are copied in as they are, so they are never decoded to chars only to be encoded again.
+ * <p>
+ * Like {@link LineBuffer} it belongs to one thread at a time and gives back memory after an oversized line.
+ */
+final class ByteLineBuffer {
+
+    private byte[] bytes;
+
+    private int length = 0;
+
+    /**
+     * Running average of the line lengths written through this buffer.
+     */
+    private int average;
+
+    ByteLineBuffer(final int capacity) {
+        bytes = new byte[Math.max(capacity, LineBuffer.MIN_CAPACITY)];
+        average = bytes.length / 2;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * @return the backing array, valid up to {@link #length()}
+     */
+    byte[] bytes() {
+        return bytes;
+    }
+
+    /**
+     * Empty the buffer for the next line, remembering the length of the line just written.
+     */
+    void recycle() {
+        average += (length - average) >> 3;
+        length = 0;
+        if (bytes.length > LineBuffer.MIN_CAPACITY && bytes.length > average << 2) {
+            bytes = new byte[Math.max(average << 1, LineBuffer.MIN_CAPACITY)];
+        }
+    }
+
+    /**
+     * Append bytes already encoded as UTF-8.
+     */
+    ByteLineBuffer append(final byte[] src, final int offset, final int len) {
+        ensureCapacity(length + len);
+        System.arraycopy(src, offset, bytes, length, len);
+        length += len;
+        return this;
+    }
+
+    /**
+     * Append ISO-8859-1 bytes, the charset the connector decodes the request line with, as UTF-8. Plain ASCII, by far
+     * the usual case, is copied as is.
+     */
+    ByteLineBuffer appendLatin1(final byte[] src, final int offset, final int len) {
+        ensureCapacity(length + len * 2);
+        byte[] dst = bytes;
+        int pos = length;
+        for (int i = offset, end = offset + len; i < end; i++) {
+            byte b = src[i];
+            if (b >= 0) {
+                dst[pos++] = b;
+            } else {
+                dst[pos++] = (byte) (0xC0 | (b & 0xFF) >> 6);
+                dst[pos++] = (byte) (0x80 | b & 0x3F);
+            }
+        }
+        length = pos;
+        return this;
+    }
+
+    /**
+     * Append chars encoded as UTF-8, an unpaired surrogate as <code>'?'</code>.
+     */
+    ByteLineBuffer append(final char[] chars, final int offset, final int len) {
+        ensureCapacity(length + len * 3);
+        byte[] dst = bytes;
+        int pos = length;
+        for (int i = offset, end = offset + len; i < end; i++) {
+            char ch = chars[i];
+            if (ch < 0x80) {
+                dst[pos++] = (byte) ch;
+            } else if (ch < 0x800) {
+                dst[pos++] = (byte) (0xC0 | ch >> 6);
+                dst[pos++] = (byte) (0x80 | ch & 0x3F);
+            } else if (Character.isHighSurrogate(ch) && i + 1 < end && Character.isLowSurrogate(chars[i + 1])) {
+                int cp = Character.toCodePoint(ch, chars[++i]);
+                dst[pos++] = (byte) (0xF0 | cp >> 18);
+                dst[pos++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                dst[pos++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                dst[pos++] = (byte) (0x80 | cp & 0x3F);
+            } else if (Character.isSurrogate(ch)) {
+                dst[pos++] = (byte) '?';
+            } else {
+                dst[pos++] = (byte) (0xE0 | ch >> 12);
+                dst[pos++] = (byte) (0x80 | ch >> 6 & 0x3F);
+                dst[pos++] = (byte) (0x80 | ch & 0x3F);
+            }
+        }
+        length = pos;
+        return this;
+    }
+
+    ByteLineBuffer append(final byte b) {
+        ensureCapacity(length + 1);
+        bytes[length++] = b;
+        return this;
+    }
+
+    /**
+     * @return the line decoded back into text
+     */
+    @Override
+    public String toString() {
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity > bytes.length) {
+            byte[] grown = new byte[Math.max(capacity, bytes.length << 1)];
+            System.arraycopy(bytes, 0, grown, 0, length);
+            bytes = grown;
+        }
+    }
+}
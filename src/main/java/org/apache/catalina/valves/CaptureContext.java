@@ -0,0 +1,143 @@
+package org.apache.catalina.valves;
+
+import org.apache.catalina.AccessLog;
+import org.apache.catalina.Session;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+
+/**
+ * The request and response being captured, with the values several elements need looked up lazily, at most once
+ * per request. <code>%r</code>, <code>%m</code> and <code>%q</code> share one query string and method, <code>%S</code>
+ * and every <code>%{xxx}s</code> share one session lookup, and so on.
+ * <p>
+ * A context is owned by an {@link AccessLogEntry} and only holds on to the request while that entry is being captured.
+ */
+final class CaptureContext {
+
+    private static final int METHOD = 1;
+
+    private static final int REQUEST_URI = 1 << 1;
+
+    private static final int QUERY_STRING = 1 << 2;
+
+    private static final int PROTOCOL = 1 << 3;
+
+    private static final int REMOTE_ADDR = 1 << 4;
+
+    private static final int SESSION = 1 << 5;
+
+    private Request request;
+
+    private Response response;
+
+    /**
+     * Whether the remote address and the protocol are taken from {@link AccessLog#REMOTE_ADDR_ATTRIBUTE} and
+     * {@link AccessLog#PROTOCOL_ATTRIBUTE} when set.
+     */
+    private boolean requestAttributes;
+
+    /**
+     * Which of the values below have been looked up for the current request.
+     */
+    private int resolved;
+
+    private String method;
+
+    private String requestURI;
+
+    private String queryString;
+
+    private String protocol;
+
+    private String remoteAddr;
+
+    private Session session;
+
+    /**
+     * Start capturing a request.
+     */
+    void reset(final Request request, final Response response, final boolean requestAttributes) {
+        this.request = request;
+        this.response = response;
+        this.requestAttributes = requestAttributes;
+        this.resolved = 0;
+    }
+
+    /**
+     * Drop the request and everything looked up from it once capture is over.
+     */
+    void clear() {
+        request = null;
+        response = null;
+        resolved = 0;
+        method = null;
+        requestURI = null;
+        queryString = null;
+        protocol = null;
+        remoteAddr = null;
+        session = null;
+    }
+
+    Request request() {
+        return request;
+    }
+
+    Response response() {
+        return response;
+    }
+
+    String method() {
+        if ((resolved & METHOD) == 0) {
+            method = request != null ? request.getMethod() : null;
+            resolved |= METHOD;
+        }
+        return method;
+    }
+
+    String requestURI() {
+        if ((resolved & REQUEST_URI) == 0) {
+            requestURI = request != null ? request.getRequestURI() : null;
+            resolved |= REQUEST_URI;
+        }
+        return requestURI;
+    }
+
+    String queryString() {
+        if ((resolved & QUERY_STRING) == 0) {
+            queryString = request != null ? request.getQueryString() : null;
+            resolved |= QUERY_STRING;
+        }
+        return queryString;
+    }
+
+    String protocol() {
+        if ((resolved & PROTOCOL) == 0) {
+            Object attribute = requestAttributes && request != null
+                    ? request.getAttribute(AccessLog.PROTOCOL_ATTRIBUTE) : null;
+            protocol = attribute != null ? attribute.toString() : request != null ? request.getProtocol() : null;
+            resolved |= PROTOCOL;
+        }
+        return protocol;
+    }
+
+    String remoteAddr() {
+        if ((resolved & REMOTE_ADDR) == 0) {
+            Object attribute = requestAttributes && request != null
+                    ? request.getAttribute(AccessLog.REMOTE_ADDR_ATTRIBUTE) : null;
+            remoteAddr = attribute != null ? attribute.toString() : request != null ? request.getRemoteAddr() : null;
+            resolved |= REMOTE_ADDR;
+        }
+        return remoteAddr;
+    }
+
+    /**
+     * @return the valid session of the request, null if it has none, without creating one
+     */
+    Session session() {
+        if ((resolved & SESSION) == 0) {
+            session = request != null ? request.getSessionInternal(false) : null;
+            resolved |= SESSION;
+        }
+        return session;
+    }
+}
@@ -0,0 +1,511 @@
+package org.apache.catalina.valves;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.valves.Log4JAccessLogValve.AccessLogElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.ByteSentElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.CommitTimeElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.CookieElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.DateAndTimeElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.ElapsedTimeElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.HeaderElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.HostElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.HttpStatusCodeElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.LocalAddrElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.LocalPortElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.LocalServerNameElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.LogicalUserNameElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.MethodElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.ProtocolElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.QueryElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.RemoteAddrElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.RequestAttributeElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.RequestElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.RequestURIElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.ResponseHeaderElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.SampleWeightElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.SessionAttributeElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.SessionIdElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.StringElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.ThreadNameElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.UserElement;
+
+/**
+ * An access log pattern compiled from its {@link AccessLogElement} array into a flat program.
+ * <p>
+ * Walking the element array makes one interface call per element per request, and with twenty or so element classes
+ * behind it that call site is megamorphic, so the JIT can neither inline nor even cache it. The compiled program
+ * turns every step into a <code>switch</code> case with a call through the concrete element class, which the JIT
+ * binds statically and inlines. On top of that adjacent literals are merged into one <code>char[]</code>, elements
+ * whose output never changes (<code>%A</code>, <code>%l</code>) are folded into those literals, and elements that
+ * capture nothing are left out of the capture program. Request and response headers are captured together, in one
+ * pass each, by a {@link HeaderCapture}, and cookies in one scan of the <code>Cookie</code> header by a
+ * {@link CookieCapture}.
+ * <p>
+ * For lines going straight to a file the program can also format into a {@link ByteLineBuffer}: the literals are
+ * encoded to UTF-8 once, here, and the request line fields are copied from the connector's raw bytes, captured by
+ * {@link AccessLogEntry#captureRaw}, without ever becoming strings.
+ * <p>
+ * Elements of any other class, including subclasses of the built-in ones, still work through a generic step.
+ */
+final class CompiledPattern {
+
+    private static final int LITERAL = 0;
+
+    private static final int GENERIC = 1;
+
+    private static final int BYTES_SENT = 2;
+
+    private static final int COOKIE = 3;
+
+    private static final int DATE_AND_TIME = 4;
+
+    private static final int ELAPSED_TIME = 5;
+
+    private static final int HEADER = 6;
+
+    private static final int HOST = 7;
+
+    private static final int STATUS = 8;
+
+    private static final int LOCAL_PORT = 9;
+
+    private static final int LOCAL_SERVER_NAME = 10;
+
+    private static final int METHOD = 11;
+
+    private static final int PROTOCOL = 12;
+
+    private static final int QUERY = 13;
+
+    private static final int REMOTE_ADDR = 14;
+
+    private static final int REQUEST_ATTRIBUTE = 15;
+
+    private static final int REQUEST = 16;
+
+    private static final int REQUEST_URI = 17;
+
+    private static final int RESPONSE_HEADER = 18;
+
+    private static final int SESSION_ATTRIBUTE = 19;
+
+    private static final int SESSION_ID = 20;
+
+    private static final int THREAD_NAME = 21;
+
+    private static final int USER = 22;
+
+    private static final int COMMIT_TIME = 23;
+
+    private static final int SAMPLE_WEIGHT = 24;
+
+    /**
+     * The elements this program was compiled from.
+     */
+    private final AccessLogElement[] elements;
+
+    private final int[] formatOps;
+
+    private final AccessLogElement[] formatTargets;
+
+    private final char[][] literals;
+
+    private final byte[][] literalBytes;
+
+    private final int[] captureOps;
+
+    private final AccessLogElement[] captureTargets;
+
+    /**
+     * Whether any element writes one of the request line fields.
+     */
+    private final boolean captureRaw;
+
+    /**
+     * The headers of the pattern, null if it has none.
+     */
+    private final HeaderCapture headers;
+
+    /**
+     * The cookies of the pattern, null if it has none.
+     */
+    private final CookieCapture cookies;
+
+    CompiledPattern(final AccessLogElement[] elements) {
+        this.elements = elements;
+
+        List<AccessLogElement> targets = new ArrayList<AccessLogElement>();
+        List<char[]> texts = new ArrayList<char[]>();
+        LineBuffer literal = new LineBuffer(0);
+        for (AccessLogElement element : elements) {
+            if (isConstant(element)) {
+                element.addElement(literal, null);
+                continue;
+            }
+            if (literal.length() > 0) {
+                targets.add(null);
+                texts.add(copy(literal));
+                literal.recycle();
+            }
+            targets.add(element);
+            texts.add(null);
+        }
+        if (literal.length() > 0) {
+            targets.add(null);
+            texts.add(copy(literal));
+        }
+
+        formatTargets = targets.toArray(new AccessLogElement[targets.size()]);
+        literals = texts.toArray(new char[texts.size()][]);
+        literalBytes = new byte[literals.length][];
+        formatOps = new int[formatTargets.length];
+        for (int i = 0; i < formatTargets.length; i++) {
+            formatOps[i] = formatTargets[i] == null ? LITERAL : opcode(formatTargets[i]);
+            if (literals[i] != null) {
+                ByteLineBuffer encoded = new ByteLineBuffer(0);
+                encoded.append(literals[i], 0, literals[i].length);
+                literalBytes[i] = Arrays.copyOf(encoded.bytes(), encoded.length());
+            }
+        }
+
+        headers = HeaderCapture.create(elements);
+        cookies = CookieCapture.create(elements);
+        targets.clear();
+        for (AccessLogElement element : elements) {
+            int op = opcode(element);
+            if (op != DATE_AND_TIME && op != ELAPSED_TIME && op != SAMPLE_WEIGHT && !isConstant(element)
+                    && !HeaderCapture.captures(element) && !CookieCapture.captures(element)) {
+                targets.add(element);
+            }
+        }
+        captureTargets = targets.toArray(new AccessLogElement[targets.size()]);
+        captureOps = new int[captureTargets.length];
+        boolean requestLine = false;
+        for (int i = 0; i < captureTargets.length; i++) {
+            captureOps[i] = opcode(captureTargets[i]);
+            requestLine |= captureOps[i] == METHOD || captureOps[i] == PROTOCOL || captureOps[i] == QUERY
+                    || captureOps[i] == REQUEST || captureOps[i] == REQUEST_URI;
+        }
+        captureRaw = requestLine;
+    }
+
+    /**
+     * @return the element array this program was compiled from
+     */
+    AccessLogElement[] elements() {
+        return elements;
+    }
+
+    /**
+     * @param raw
+     *        whether the request line fields may be captured as raw bytes, for {@link #formatBytes}
+     */
+    void capture(final AccessLogEntry entry, final CaptureContext context, final boolean raw) {
+        Request request = context.request();
+        if (headers != null) {
+            headers.capture(entry, request, context.response());
+        }
+        if (cookies != null) {
+            cookies.capture(entry, request);
+        }
+        boolean hasRaw = raw && captureRaw && request != null && entry.captureRaw(request.getCoyoteRequest());
+        final int[] ops = captureOps;
+        final AccessLogElement[] targets = captureTargets;
+        for (int i = 0; i < ops.length; i++) {
+            switch(ops[i]) {
+                case BYTES_SENT :
+                    ((ByteSentElement) targets[i]).capture(entry, context);
+                    break;
+                case HOST :
+                    ((HostElement) targets[i]).capture(entry, context);
+                    break;
+                case STATUS :
+                    ((HttpStatusCodeElement) targets[i]).capture(entry, context);
+                    break;
+                case LOCAL_PORT :
+                    ((LocalPortElement) targets[i]).capture(entry, context);
+                    break;
+                case LOCAL_SERVER_NAME :
+                    ((LocalServerNameElement) targets[i]).capture(entry, context);
+                    break;
+                case METHOD :
+                    if (!hasRaw) {
+                        ((MethodElement) targets[i]).capture(entry, context);
+                    }
+                    break;
+                case PROTOCOL :
+                    if (!hasRaw) {
+                        ((ProtocolElement) targets[i]).capture(entry, context);
+                    }
+                    break;
+                case QUERY :
+                    if (!hasRaw) {
+                        ((QueryElement) targets[i]).capture(entry, context);
+                    }
+                    break;
+                case REMOTE_ADDR :
+                    ((RemoteAddrElement) targets[i]).capture(entry, context);
+                    break;
+                case REQUEST_ATTRIBUTE :
+                    ((RequestAttributeElement) targets[i]).capture(entry, context);
+                    break;
+                case REQUEST :
+                    if (!hasRaw) {
+                        ((RequestElement) targets[i]).capture(entry, context);
+                    }
+                    break;
+                case REQUEST_URI :
+                    if (!hasRaw) {
+                        ((RequestURIElement) targets[i]).capture(entry, context);
+                    }
+                    break;
+                case SESSION_ATTRIBUTE :
+                    ((SessionAttributeElement) targets[i]).capture(entry, context);
+                    break;
+                case SESSION_ID :
+                    ((SessionIdElement) targets[i]).capture(entry, context);
+                    break;
+                case THREAD_NAME :
+                    ((ThreadNameElement) targets[i]).capture(entry, context);
+                    break;
+                case USER :
+                    ((UserElement) targets[i]).capture(entry, context);
+                    break;
+                case COMMIT_TIME :
+                    ((CommitTimeElement) targets[i]).capture(entry, context);
+                    break;
+                default:
+                    targets[i].capture(entry, context);
+                    break;
+            }
+        }
+    }
+
+    void format(final LineBuffer buf, final AccessLogEntry entry) {
+        final int[] ops = formatOps;
+        final AccessLogElement[] targets = formatTargets;
+        for (int i = 0; i < ops.length; i++) {
+            switch(ops[i]) {
+                case LITERAL :
+                    char[] literal = literals[i];
+                    buf.append(literal, 0, literal.length);
+                    break;
+                case BYTES_SENT :
+                    ((ByteSentElement) targets[i]).addElement(buf, entry);
+                    break;
+                case COOKIE :
+                    ((CookieElement) targets[i]).addElement(buf, entry);
+                    break;
+                case DATE_AND_TIME :
+                    ((DateAndTimeElement) targets[i]).addElement(buf, entry);
+                    break;
+                case ELAPSED_TIME :
+                    ((ElapsedTimeElement) targets[i]).addElement(buf, entry);
+                    break;
+                case HEADER :
+                    ((HeaderElement) targets[i]).addElement(buf, entry);
+                    break;
+                case HOST :
+                    ((HostElement) targets[i]).addElement(buf, entry);
+                    break;
+                case STATUS :
+                    ((HttpStatusCodeElement) targets[i]).addElement(buf, entry);
+                    break;
+                case LOCAL_PORT :
+                    ((LocalPortElement) targets[i]).addElement(buf, entry);
+                    break;
+                case LOCAL_SERVER_NAME :
+                    ((LocalServerNameElement) targets[i]).addElement(buf, entry);
+                    break;
+                case METHOD :
+                    ((MethodElement) targets[i]).addElement(buf, entry);
+                    break;
+                case PROTOCOL :
+                    ((ProtocolElement) targets[i]).addElement(buf, entry);
+                    break;
+                case QUERY :
+                    ((QueryElement) targets[i]).addElement(buf, entry);
+                    break;
+                case REMOTE_ADDR :
+                    ((RemoteAddrElement) targets[i]).addElement(buf, entry);
+                    break;
+                case REQUEST_ATTRIBUTE :
+                    ((RequestAttributeElement) targets[i]).addElement(buf, entry);
+                    break;
+                case REQUEST :
+                    ((RequestElement) targets[i]).addElement(buf, entry);
+                    break;
+                case REQUEST_URI :
+                    ((RequestURIElement) targets[i]).addElement(buf, entry);
+                    break;
+                case RESPONSE_HEADER :
+                    ((ResponseHeaderElement) targets[i]).addElement(buf, entry);
+                    break;
+                case SESSION_ATTRIBUTE :
+                    ((SessionAttributeElement) targets[i]).addElement(buf, entry);
+                    break;
+                case SESSION_ID :
+                    ((SessionIdElement) targets[i]).addElement(buf, entry);
+                    break;
+                case THREAD_NAME :
+                    ((ThreadNameElement) targets[i]).addElement(buf, entry);
+                    break;
+                case USER :
+                    ((UserElement) targets[i]).addElement(buf, entry);
+                    break;
+                case COMMIT_TIME :
+                    ((CommitTimeElement) targets[i]).addElement(buf, entry);
+                    break;
+                case SAMPLE_WEIGHT :
+                    ((SampleWeightElement) targets[i]).addElement(buf, entry);
+                    break;
+                default:
+                    targets[i].addElement(buf, entry);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Format an entry as UTF-8. Elements without a byte level step are formatted into <code>scratch</code> and
+     * encoded from there.
+     */
+    void formatBytes(final ByteLineBuffer buf, final LineBuffer scratch, final AccessLogEntry entry) {
+        final int[] ops = formatOps;
+        final AccessLogElement[] targets = formatTargets;
+        final boolean hasRaw = entry.hasRaw;
+        for (int i = 0; i < ops.length; i++) {
+            switch(ops[i]) {
+                case LITERAL :
+                    byte[] literal = literalBytes[i];
+                    buf.append(literal, 0, literal.length);
+                    continue;
+                case METHOD :
+                    if (hasRaw) {
+                        appendRaw(buf, entry, AccessLogEntry.RAW_METHOD);
+                        continue;
+                    }
+                    break;
+                case PROTOCOL :
+                    if (hasRaw) {
+                        appendRaw(buf, entry, AccessLogEntry.RAW_PROTOCOL);
+                        continue;
+                    }
+                    break;
+                case QUERY :
+                    if (hasRaw) {
+                        appendQuery(buf, entry);
+                        continue;
+                    }
+                    break;
+                case REQUEST :
+                    if (hasRaw) {
+                        appendRaw(buf, entry, AccessLogEntry.RAW_METHOD);
+                        buf.append((byte) ' ');
+                        appendRaw(buf, entry, AccessLogEntry.RAW_REQUEST_URI);
+                        appendQuery(buf, entry);
+                        buf.append((byte) ' ');
+                        appendRaw(buf, entry, AccessLogEntry.RAW_PROTOCOL);
+                        continue;
+                    }
+                    break;
+                case REQUEST_URI :
+                    if (hasRaw) {
+                        appendRaw(buf, entry, AccessLogEntry.RAW_REQUEST_URI);
+                        continue;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            targets[i].addElement(scratch, entry);
+            buf.append(scratch.array(), 0, scratch.length());
+            scratch.setLength(0);
+        }
+    }
+
+    /**
+     * Elements whose output is the same for every request and can be folded into the surrounding literal.
+     */
+    private static boolean isConstant(final AccessLogElement element) {
+        Class<?> type = element.getClass();
+        return type == StringElement.class || type == LocalAddrElement.class || type == LogicalUserNameElement.class;
+    }
+
+    /**
+     * Only the exact built-in classes get their own step, a subclass may override the methods.
+     */
+    private static int opcode(final AccessLogElement element) {
+        Class<?> type = element.getClass();
+        if (type == ByteSentElement.class) {
+            return BYTES_SENT;
+        } else if (type == CookieElement.class) {
+            return COOKIE;
+        } else if (type == DateAndTimeElement.class) {
+            return DATE_AND_TIME;
+        } else if (type == ElapsedTimeElement.class) {
+            return ELAPSED_TIME;
+        } else if (type == HeaderElement.class) {
+            return HEADER;
+        } else if (type == HostElement.class) {
+            return HOST;
+        } else if (type == HttpStatusCodeElement.class) {
+            return STATUS;
+        } else if (type == LocalPortElement.class) {
+            return LOCAL_PORT;
+        } else if (type == LocalServerNameElement.class) {
+            return LOCAL_SERVER_NAME;
+        } else if (type == MethodElement.class) {
+            return METHOD;
+        } else if (type == ProtocolElement.class) {
+            return PROTOCOL;
+        } else if (type == QueryElement.class) {
+            return QUERY;
+        } else if (type == RemoteAddrElement.class) {
+            return REMOTE_ADDR;
+        } else if (type == RequestAttributeElement.class) {
+            return REQUEST_ATTRIBUTE;
+        } else if (type == RequestElement.class) {
+            return REQUEST;
+        } else if (type == RequestURIElement.class) {
+            return REQUEST_URI;
+        } else if (type == ResponseHeaderElement.class) {
+            return RESPONSE_HEADER;
+        } else if (type == SessionAttributeElement.class) {
+            return SESSION_ATTRIBUTE;
+        } else if (type == SessionIdElement.class) {
+            return SESSION_ID;
+        } else if (type == ThreadNameElement.class) {
+            return THREAD_NAME;
+        } else if (type == UserElement.class) {
+            return USER;
+        } else if (type == CommitTimeElement.class) {
+            return COMMIT_TIME;
+        } else if (type == SampleWeightElement.class) {
+            return SAMPLE_WEIGHT;
+        }
+        return GENERIC;
+    }
+
+    private static void appendRaw(final ByteLineBuffer buf, final AccessLogEntry entry, final int field) {
+        int start = entry.rawStart[field];
+        buf.appendLatin1(entry.raw, start, entry.rawEnd[field] - start);
+    }
+
+    private static void appendQuery(final ByteLineBuffer buf, final AccessLogEntry entry) {
+        if (entry.hasRawQuery) {
+            buf.append((byte) '?');
+            appendRaw(buf, entry, AccessLogEntry.RAW_QUERY_STRING);
+        }
+    }
+
+    private static char[] copy(final LineBuffer literal) {
+        char[] chars = new char[literal.length()];
+        System.arraycopy(literal.array(), 0, chars, 0, chars.length);
+        return chars;
+    }
+}
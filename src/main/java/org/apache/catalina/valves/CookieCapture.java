@@ -0,0 +1,207 @@
+package org.apache.catalina.valves;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.Cookie;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.valves.Log4JAccessLogValve.AccessLogElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.CookieElement;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.apache.tomcat.util.http.MimeHeaders;
+
+/**
+ * Captures the <code>%{xxx}c</code> cookies of a pattern in one scan of the raw <code>Cookie</code> headers.
+ * <p>
+ * {@link Request#getCookies()} parses every cookie the client sent into a <code>Cookie</code> object, and would then
+ * be searched once per element. Here the header bytes are walked once, only the names of the pattern are compared,
+ * and only their values become strings; cookie parsing is left untouched for the application. The first cookie of a
+ * name wins, as with <code>getCookies()</code>, and its value is logged as sent. A quoted value, as version 1 cookies
+ * have, runs to its closing quote whatever semicolons it contains, as in Tomcat's own cookie parser. A cookie that is
+ * not sent logs <code>-</code>.
+ * <p>
+ * Headers that are not raw bytes, which a connector never produces, fall back to <code>getCookies()</code>.
+ */
+final class CookieCapture {
+
+    private static final String COOKIE = "Cookie";
+
+    private static final byte[] COOKIE_LOWER_CASE = "cookie".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final String[] names;
+
+    private final byte[][] nameBytes;
+
+    private final int[] indexes;
+
+    CookieCapture(final String[] names, final int[] indexes) {
+        this.names = names;
+        this.indexes = indexes;
+        this.nameBytes = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            // a name that is not ISO-8859-1 never matches
+            if (StandardCharsets.ISO_8859_1.newEncoder().canEncode(names[i])) {
+                nameBytes[i] = names[i].getBytes(StandardCharsets.ISO_8859_1);
+            }
+        }
+    }
+
+    /**
+     * @return the capture of the cookie elements among the given ones, null if there are none
+     */
+    static CookieCapture create(final AccessLogElement[] elements) {
+        List<String> names = new ArrayList<String>();
+        List<Integer> indexes = new ArrayList<Integer>();
+        for (AccessLogElement element : elements) {
+            if (captures(element)) {
+                CookieElement cookie = (CookieElement) element;
+                names.add(cookie.getName());
+                indexes.add(Integer.valueOf(cookie.getIndex()));
+            }
+        }
+        if (names.isEmpty()) {
+            return null;
+        }
+        int[] result = new int[indexes.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = indexes.get(i).intValue();
+        }
+        return new CookieCapture(names.toArray(new String[names.size()]), result);
+    }
+
+    /**
+     * Only the exact built-in class is captured here, a subclass may override the methods.
+     *
+     * @return whether the element is captured by this class rather than by itself
+     */
+    static boolean captures(final AccessLogElement element) {
+        return element.getClass() == CookieElement.class;
+    }
+
+    void capture(final AccessLogEntry entry, final Request request) {
+        final Object[] values = entry.values;
+        for (int k = 0; k < indexes.length; k++) {
+            values[indexes[k]] = null;
+        }
+        if (request != null && request.getCoyoteRequest() != null) {
+            MimeHeaders headers = request.getCoyoteRequest().getMimeHeaders();
+            int missing = indexes.length;
+            for (int i = 0, size = headers.size(); i < size && missing > 0; i++) {
+                if (!HeaderCapture.nameEquals(headers.getName(i), COOKIE_LOWER_CASE, COOKIE)) {
+                    continue;
+                }
+                MessageBytes value = headers.getValue(i);
+                if (value.getType() != MessageBytes.T_BYTES) {
+                    captureParsed(values, request);
+                    return;
+                }
+                ByteChunk chunk = value.getByteChunk();
+                missing = scan(values, chunk.getBuffer(), chunk.getStart(), chunk.getEnd(), missing);
+            }
+        }
+        for (int k = 0; k < indexes.length; k++) {
+            if (values[indexes[k]] == null) {
+                values[indexes[k]] = "-";
+            }
+        }
+    }
+
+    /**
+     * Walk the <code>name=value</code> pairs of one header, separated by semicolons.
+     *
+     * @return the number of cookies of the pattern still missing
+     */
+    private int scan(final Object[] values, final byte[] bytes, final int start, final int end, int missing) {
+        int pos = start;
+        while (pos < end && missing > 0) {
+            while (pos < end && (bytes[pos] == ' ' || bytes[pos] == '\t' || bytes[pos] == ';')) {
+                pos++;
+            }
+            int nameStart = pos;
+            while (pos < end && bytes[pos] != '=' && bytes[pos] != ';') {
+                pos++;
+            }
+            int nameEnd = trim(bytes, nameStart, pos);
+            int valueStart = pos;
+            int valueEnd = pos;
+            if (pos < end && bytes[pos] == '=') {
+                pos++;
+                while (pos < end && (bytes[pos] == ' ' || bytes[pos] == '\t')) {
+                    pos++;
+                }
+                valueStart = pos;
+                if (pos < end && bytes[pos] == '"') {
+                    pos = quotedEnd(bytes, pos + 1, end);
+                }
+                while (pos < end && bytes[pos] != ';') {
+                    pos++;
+                }
+                valueEnd = trim(bytes, valueStart, pos);
+            }
+            for (int k = 0; k < nameBytes.length; k++) {
+                if (values[indexes[k]] == null && equals(nameBytes[k], bytes, nameStart, nameEnd)) {
+                    values[indexes[k]] = new String(bytes, valueStart, valueEnd - valueStart,
+                            StandardCharsets.ISO_8859_1);
+                    missing--;
+                }
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * @return the position after the closing quote of a value, or the start again when it is never closed, so the
+     *         value ends at the next semicolon as an unquoted one would
+     */
+    private static int quotedEnd(final byte[] bytes, final int start, final int end) {
+        for (int pos = start; pos < end; pos++) {
+            if (bytes[pos] == '\\') {
+                pos++;
+            } else if (bytes[pos] == '"') {
+                return pos + 1;
+            }
+        }
+        return start;
+    }
+
+    private void captureParsed(final Object[] values, final Request request) {
+        Cookie[] cookies = request.getCookies();
+        for (int k = 0; k < names.length; k++) {
+            String value = "-";
+            if (cookies != null) {
+                for (Cookie cookie : cookies) {
+                    if (names[k].equals(cookie.getName())) {
+                        value = cookie.getValue();
+                        break;
+                    }
+                }
+            }
+            values[indexes[k]] = value;
+        }
+    }
+
+    /**
+     * @return the end of the range without its trailing blanks
+     */
+    private static int trim(final byte[] bytes, final int start, int end) {
+        while (end > start && (bytes[end - 1] == ' ' || bytes[end - 1] == '\t')) {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean equals(final byte[] name, final byte[] bytes, final int start, final int end) {
+        if (name == null || end - start != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (bytes[start + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
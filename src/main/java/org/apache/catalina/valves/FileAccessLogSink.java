@@ -0,0 +1,521 @@
+package org.apache.catalina.valves;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.catalina.valves.Log4JAccessLogValve.FsyncPolicy;
+import org.apache.catalina.valves.Log4JAccessLogValve.Rotation;
+import org.apache.juli.logging.Log;
+
+/**
+ * Writes access log lines straight to a file, without going through log4j.
+ * <p>
+ * Lines are encoded as UTF-8 into one of two direct buffers. When the active buffer fills up, or when the flush
+ * interval has passed, it is handed to a dedicated writer thread and the other buffer takes its place. Producers only
+ * hold the lock while encoding their line and swapping buffers; they wait only when both buffers are full, which means
+ * the disk is not keeping up. The writer thread is also the only one touching the file, and it hands a buffer back as
+ * soon as its bytes are written, before forcing them to disk; forcing and rotating never hold the lock, so they only
+ * stall a producer that fills up a whole buffer meanwhile. It parks between batches and is unparked by a producer
+ * handing over a buffer, by a compressor thread done with a block, or by closing. Closing the file is left to it as
+ * well, once it is done writing.
+ * <p>
+ * A rotated file is renamed to <code>file.yyyy-MM-dd</code> (<code>file.yyyy-MM-dd-HH</code> for hourly rotation)
+ * after the period it covers, with <code>.1</code>, <code>.2</code>, ... appended when that name is taken.
+ * <p>
+ * With compression threads the file is written as gzip by a {@link GzipBlockCompressor}, which the writer thread
+ * hands its buffers to instead of writing them; a <code>.gz</code> extension stays at the end of rotated names.
+ */
+final class FileAccessLogSink {
+
+    private final File file;
+
+    private final long flushInterval;
+
+    private final Rotation rotation;
+
+    private final long rotateSize;
+
+    private final FsyncPolicy fsync;
+
+    private final Log log;
+
+    /**
+     * Compresses the buffers on their way to the file, null to write them as they are.
+     */
+    private final GzipBlockCompressor compressor;
+
+    private final Object lock = new Object();
+
+    /**
+     * The buffer lines are encoded into.
+     */
+    private ByteBuffer active;
+
+    /**
+     * A full buffer waiting for or being written by the writer thread, null when there is none.
+     */
+    private ByteBuffer pending = null;
+
+    /**
+     * The free buffer, null while the other one is pending.
+     */
+    private ByteBuffer spare;
+
+    private boolean running = true;
+
+    private final Thread writer;
+
+    /**
+     * Only used by the writer thread from here on.
+     */
+    private FileChannel channel;
+
+    private long size;
+
+    private long periodStart;
+
+    private long nextRotation;
+
+    /**
+     * @param compressThreads
+     *        number of threads compressing the file as gzip, 0 to write it uncompressed
+     * @param compressBlockSize
+     *        number of bytes compressed together into one gzip member
+     * @param log
+     *        where write and rotation failures are reported, null to drop them
+     */
+    FileAccessLogSink(final String file, final int bufferSize, final long flushInterval, final Rotation rotation,
+                      final long rotateSize, final FsyncPolicy fsync, final int compressThreads,
+                      final int compressBlockSize, final Log log) throws IOException {
+        this.file = new File(file).getAbsoluteFile();
+        this.flushInterval = flushInterval;
+        this.rotation = rotation;
+        this.rotateSize = rotateSize;
+        this.fsync = fsync;
+        this.log = log;
+        this.compressor = compressThreads > 0
+                ? new GzipBlockCompressor(compressThreads, compressBlockSize, this.file.getName(), new Runnable() {
+
+                    public void run() {
+                        LockSupport.unpark(writer);
+                    }
+                }) : null;
+
+        active = ByteBuffer.allocateDirect(bufferSize);
+        spare = ByteBuffer.allocateDirect(bufferSize);
+
+        // an existing file still belongs to the period it was last written in
+        open(this.file.exists() ? this.file.lastModified() : System.currentTimeMillis());
+
+        writer = new Thread(new Writer(), "Log4JAccessLogValve[" + this.file.getName() + "]-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Append a line, followed by a newline.
+     */
+    void write(final LineBuffer line) {
+        char[] chars = line.array();
+        int length = line.length();
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            ByteBuffer buf = active;
+            if (buf.remaining() <= length * 3 && buf.capacity() > length * 3) {
+                // start a new buffer rather than split the line over two writes, and maybe two files
+                buf = handOver();
+            }
+            if (buf.remaining() > length * 3) {
+                // enough room for any encoding of the line
+                encode(buf, chars, 0, length, length);
+                buf.put((byte) '\n');
+                return;
+            }
+            // a line longer than a buffer, encode what fits and continue in the next one
+            int i = 0;
+            while (i < length) {
+                if (buf.remaining() < 6) {
+                    buf = handOver();
+                }
+                i = encode(buf, chars, i, Math.min(length, i + buf.remaining() / 3), length);
+            }
+            if (!buf.hasRemaining()) {
+                buf = handOver();
+            }
+            buf.put((byte) '\n');
+        }
+    }
+
+    /**
+     * Append a line already encoded as UTF-8, followed by a newline.
+     */
+    void write(final ByteLineBuffer line) {
+        byte[] bytes = line.bytes();
+        int length = line.length();
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            ByteBuffer buf = active;
+            if (buf.remaining() <= length && buf.capacity() > length) {
+                // start a new buffer rather than split the line over two writes, and maybe two files
+                buf = handOver();
+            }
+            int i = 0;
+            while (i < length) {
+                if (!buf.hasRemaining()) {
+                    buf = handOver();
+                }
+                int chunk = Math.min(length - i, buf.remaining());
+                buf.put(bytes, i, chunk);
+                i += chunk;
+            }
+            if (!buf.hasRemaining()) {
+                buf = handOver();
+            }
+            buf.put((byte) '\n');
+        }
+    }
+
+    /**
+     * @return the number of bytes in the active buffer
+     */
+    int buffered() {
+        synchronized (lock) {
+            return active.position();
+        }
+    }
+
+    /**
+     * Stop the writer thread and wait for it to write out everything buffered. The writer thread closes the file on
+     * its way out, so an interrupted wait leaves it to finish on its own rather than closing the file under it.
+     */
+    void close() {
+        synchronized (lock) {
+            running = false;
+        }
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Hand the active buffer to the writer thread, waiting for the spare one if it is still being written. Called
+     * holding the lock.
+     *
+     * @return the new active buffer
+     */
+    private ByteBuffer handOver() {
+        boolean interrupted = false;
+        while (spare == null) {
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        pending = active;
+        active = spare;
+        spare = null;
+        LockSupport.unpark(writer);
+        return active;
+    }
+
+    /**
+     * Encode chars up to <code>end</code> as UTF-8, stopping before a surrogate pair that would be split there. The
+     * buffer must have room for three bytes per char.
+     *
+     * @return the index of the first char not encoded
+     */
+    private static int encode(final ByteBuffer buf, final char[] chars, int i, final int end, final int length) {
+        for (; i < end; i++) {
+            char ch = chars[i];
+            if (ch < 0x80) {
+                buf.put((byte) ch);
+            } else if (ch < 0x800) {
+                buf.put((byte) (0xC0 | ch >> 6));
+                buf.put((byte) (0x80 | ch & 0x3F));
+            } else if (Character.isHighSurrogate(ch) && i + 1 < length && Character.isLowSurrogate(chars[i + 1])) {
+                if (i + 1 == end) {
+                    return i;
+                }
+                int cp = Character.toCodePoint(ch, chars[++i]);
+                buf.put((byte) (0xF0 | cp >> 18));
+                buf.put((byte) (0x80 | cp >> 12 & 0x3F));
+                buf.put((byte) (0x80 | cp >> 6 & 0x3F));
+                buf.put((byte) (0x80 | cp & 0x3F));
+            } else if (Character.isSurrogate(ch)) {
+                buf.put((byte) '?');
+            } else {
+                buf.put((byte) (0xE0 | ch >> 12));
+                buf.put((byte) (0x80 | ch >> 6 & 0x3F));
+                buf.put((byte) (0x80 | ch & 0x3F));
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Open the file for appending and work out when it is due for rotation.
+     */
+    private void open(final long periodStart) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("cannot create directory " + parent);
+        }
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        size = channel.size();
+        channel.position(size);
+        this.periodStart = periodStart;
+        nextRotation = nextPeriod(periodStart);
+    }
+
+    private long nextPeriod(final long time) {
+        if (rotation == Rotation.NONE) {
+            return Long.MAX_VALUE;
+        }
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        if (rotation == Rotation.HOURLY) {
+            calendar.add(Calendar.HOUR_OF_DAY, 1);
+        } else {
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * Close the current file, move it out of the way and start a new one. Called by the writer thread.
+     */
+    private void rotate(final long now) throws IOException {
+        if (size == 0) {
+            // nothing to keep, the empty file simply carries on into the new period
+            periodStart = now;
+            nextRotation = nextPeriod(now);
+            return;
+        }
+        if (fsync != FsyncPolicy.NONE) {
+            channel.force(false);
+        }
+        channel.close();
+        channel = null;
+
+        String suffix = new SimpleDateFormat(rotation == Rotation.HOURLY ? "yyyy-MM-dd-HH" : "yyyy-MM-dd")
+                .format(new Date(periodStart));
+        String path = file.getPath();
+        String extension = "";
+        if (compressor != null && path.endsWith(".gz")) {
+            // keep the extension last so tools still recognize the rotated files
+            extension = ".gz";
+            path = path.substring(0, path.length() - extension.length());
+        }
+        File target = new File(path + "." + suffix + extension);
+        for (int i = 1; target.exists(); i++) {
+            target = new File(path + "." + suffix + "." + i + extension);
+        }
+        if (!file.renameTo(target) && log != null) {
+            log.warn("Log4jAccessLogValve: cannot rename " + file + " to " + target + ", appending to it");
+        }
+        open(now);
+    }
+
+    /**
+     * Writes the full buffers out to the file, and the active one once the flush interval has passed.
+     */
+    private class Writer implements Runnable {
+
+        public void run() {
+            try {
+                writeUntilClosed();
+            } finally {
+                closeFile();
+            }
+        }
+
+        private void writeUntilClosed() {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushInterval);
+            while (true) {
+                ByteBuffer batch;
+                boolean stopping;
+                boolean flush;
+                while (true) {
+                    synchronized (lock) {
+                        if (pending != null || !running) {
+                            break;
+                        }
+                    }
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0 || compressor != null && compressor.ready()) {
+                        break;
+                    }
+                    // a wake up between the checks and parking leaves a permit, parking then returns at once
+                    LockSupport.parkNanos(this, wait);
+                    if (Thread.interrupted()) {
+                        synchronized (lock) {
+                            running = false;
+                        }
+                    }
+                }
+                synchronized (lock) {
+                    // not when only woken up by a compressed block
+                    flush = pending == null && (!running || deadline - System.nanoTime() <= 0);
+                    if (flush && active.position() > 0) {
+                        pending = active;
+                        active = spare;
+                        spare = null;
+                    }
+                    batch = pending;
+                    stopping = !running;
+                }
+                if (batch != null || flush) {
+                    deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushInterval);
+                }
+
+                if (batch != null) {
+                    boolean written = write(batch);
+                    synchronized (lock) {
+                        pending = null;
+                        spare = batch;
+                        lock.notifyAll();
+                    }
+                    if (written && fsync == FsyncPolicy.BATCH) {
+                        // with the buffer back, producers no longer wait for the disk
+                        force();
+                    }
+                }
+                if (compressor != null) {
+                    if (flush) {
+                        compressor.flush();
+                    }
+                    writeCompressed(stopping);
+                }
+
+                long now = System.currentTimeMillis();
+                if (channel != null && (now >= nextRotation || rotateSize > 0 && size >= rotateSize)) {
+                    try {
+                        if (compressor != null) {
+                            // every block so far belongs to the file being rotated
+                            compressor.flush();
+                            writeCompressed(true);
+                        }
+                        rotate(now);
+                    } catch (IOException e) {
+                        if (log != null) {
+                            log.error("Log4jAccessLogValve: cannot rotate " + file, e);
+                        }
+                    }
+                }
+
+                if (stopping && batch == null) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Close the file and stop the compressor threads, once nothing is left to write.
+         */
+        private void closeFile() {
+            try {
+                if (channel != null) {
+                    if (fsync != FsyncPolicy.NONE) {
+                        channel.force(false);
+                    }
+                    channel.close();
+                    channel = null;
+                }
+            } catch (IOException e) {
+                if (log != null) {
+                    log.error("Log4jAccessLogValve: cannot close " + file, e);
+                }
+            } finally {
+                if (compressor != null) {
+                    compressor.close();
+                }
+            }
+        }
+
+        /**
+         * Write the compressed blocks that are done, or wait for all of them.
+         */
+        private void writeCompressed(final boolean all) {
+            try {
+                if (channel == null) {
+                    // the last rotation failed to open the new file
+                    open(System.currentTimeMillis());
+                }
+                long written = compressor.writeTo(channel, all);
+                size += written;
+                if (written > 0 && fsync == FsyncPolicy.BATCH) {
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                if (log != null) {
+                    log.error("Log4jAccessLogValve: cannot write to " + file, e);
+                }
+            }
+        }
+
+        private void force() {
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                if (log != null) {
+                    log.error("Log4jAccessLogValve: cannot write to " + file, e);
+                }
+            }
+        }
+
+        /**
+         * Write a buffer to the file, or hand it to the compressor. The buffer can be reused on return.
+         *
+         * @return whether the buffer was written to the file, which then needs forcing under the batch policy
+         */
+        private boolean write(final ByteBuffer batch) {
+            batch.flip();
+            if (compressor != null) {
+                compressor.add(batch);
+                batch.clear();
+                return false;
+            }
+            try {
+                if (channel == null) {
+                    // the last rotation failed to open the new file
+                    open(System.currentTimeMillis());
+                }
+                while (batch.hasRemaining()) {
+                    size += channel.write(batch);
+                }
+                return true;
+            } catch (IOException e) {
+                if (log != null) {
+                    log.error("Log4jAccessLogValve: cannot write to " + file + ", " + batch.remaining()
+                            + " bytes lost", e);
+                }
+                return false;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package org.apache.catalina.valves;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses what {@link FileAccessLogSink} writes into a multi-member gzip stream, which <code>gzip -d</code>,
+ * <code>zcat</code> and <code>GZIPInputStream</code> read as one.
+ * <p>
+ * The bytes are cut into fixed-size blocks and every block is compressed into a gzip member of its own, so blocks are
+ * compressed independently, in parallel, by a small pool of threads each borrowing a {@link Deflater} from a pool.
+ * The writer thread of the sink copies its buffers into blocks and writes the members out in order once they are
+ * done; it only waits for compression before rotating or closing the file, or when as many blocks as four per thread
+ * are still waiting to be compressed. Request threads never wait for it.
+ * <p>
+ * Everything but the compression itself runs on the writer thread. A compressor thread done with a block notifies a
+ * monitor of the compressor's own, in case the writer thread waits for that block, and runs a callback waking the
+ * writer thread up; it never takes the lock request threads write under.
+ */
+final class GzipBlockCompressor {
+
+    /**
+     * Member header: magic, deflate, no flags, no modification time, no extra flags, unknown OS.
+     */
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static final int TRAILER_LENGTH = 8;
+
+    private final int blockSize;
+
+    private final int maxInFlight;
+
+    /**
+     * Notified whenever a block is done, the writer thread waits on it for blocks it cannot do without.
+     */
+    private final Object signal = new Object();
+
+    /**
+     * Run whenever a block is done, by the thread that compressed it.
+     */
+    private final Runnable compressed;
+
+    private final ExecutorService pool;
+
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+
+    /**
+     * Blocks submitted and not written yet, oldest first.
+     */
+    private final ArrayDeque<Block> inFlight = new ArrayDeque<Block>();
+
+    private final ArrayDeque<Block> free = new ArrayDeque<Block>();
+
+    /**
+     * The block being filled, null when there is none.
+     */
+    private Block current = null;
+
+    /**
+     * @param compressed
+     *        run by a compressor thread every time it is done with a block, to wake the writer thread up
+     */
+    GzipBlockCompressor(final int threads, final int blockSize, final String name, final Runnable compressed) {
+        this.blockSize = blockSize;
+        this.maxInFlight = threads * 4;
+        this.compressed = compressed;
+        final AtomicInteger count = new AtomicInteger();
+        pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+
+                    public Thread newThread(final Runnable task) {
+                        Thread thread = new Thread(task, "Log4JAccessLogValve[" + name + "]-compressor-"
+                                + count.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Copy a buffer into blocks, submitting every block that fills up. The buffer can be reused on return.
+     */
+    void add(final ByteBuffer batch) {
+        while (batch.hasRemaining()) {
+            if (current == null) {
+                current = free.isEmpty() ? new Block(blockSize) : free.poll();
+            }
+            int chunk = Math.min(batch.remaining(), blockSize - current.length);
+            batch.get(current.data, current.length, chunk);
+            current.length += chunk;
+            if (current.length == blockSize) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Submit the block being filled, however full it is.
+     */
+    void flush() {
+        Block block = current;
+        if (block == null || block.length == 0) {
+            return;
+        }
+        current = null;
+        boolean interrupted = false;
+        synchronized (signal) {
+            while (pending() >= maxInFlight) {
+                // compression is not keeping up, hold the writer back rather than pile up blocks
+                interrupted |= waitForSignal();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        inFlight.add(block);
+        pool.execute(block);
+    }
+
+    /**
+     * Write the compressed blocks out, in order, as long as they are done, or every block submitted when waiting.
+     *
+     * @return the number of bytes written
+     */
+    long writeTo(final FileChannel channel, final boolean wait) throws IOException {
+        long written = 0;
+        while (!inFlight.isEmpty()) {
+            Block block = inFlight.peek();
+            if (!block.done) {
+                if (!wait) {
+                    break;
+                }
+                boolean interrupted = false;
+                synchronized (signal) {
+                    while (!block.done) {
+                        interrupted |= waitForSignal();
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            inFlight.poll();
+            try {
+                ByteBuffer out = ByteBuffer.wrap(block.out, 0, block.outLength);
+                while (out.hasRemaining()) {
+                    written += channel.write(out);
+                }
+            } finally {
+                block.recycle();
+                free.add(block);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * @return whether the oldest block submitted is done and can be written
+     */
+    boolean ready() {
+        Block block = inFlight.peek();
+        return block != null && block.done;
+    }
+
+    /**
+     * Stop the compressor threads and free the deflaters, once everything has been written.
+     */
+    void close() {
+        pool.shutdown();
+        try {
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null) {
+            deflater.end();
+        }
+    }
+
+    private int pending() {
+        int result = 0;
+        for (Block block : inFlight) {
+            if (!block.done) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return whether the thread was interrupted while waiting
+     */
+    private boolean waitForSignal() {
+        try {
+            signal.wait();
+            return false;
+        } catch (InterruptedException e) {
+            return true;
+        }
+    }
+
+    /**
+     * A block of bytes and, once done, the gzip member it compresses to. Reused once written.
+     */
+    private final class Block implements Runnable {
+
+        final byte[] data;
+
+        int length = 0;
+
+        byte[] out;
+
+        int outLength = 0;
+
+        final CRC32 crc = new CRC32();
+
+        volatile boolean done = false;
+
+        Block(final int size) {
+            data = new byte[size];
+            out = new byte[size / 2 + HEADER.length + TRAILER_LENGTH];
+        }
+
+        public void run() {
+            Deflater deflater = deflaters.poll();
+            if (deflater == null) {
+                deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            }
+            try {
+                compress(deflater);
+            } finally {
+                deflater.reset();
+                deflaters.offer(deflater);
+                done = true;
+                synchronized (signal) {
+                    signal.notifyAll();
+                }
+                compressed.run();
+            }
+        }
+
+        private void compress(final Deflater deflater) {
+            System.arraycopy(HEADER, 0, out, 0, HEADER.length);
+            int pos = HEADER.length;
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (pos == out.length) {
+                    out = Arrays.copyOf(out, out.length << 1);
+                }
+                pos += deflater.deflate(out, pos, out.length - pos);
+            }
+            if (out.length - pos < TRAILER_LENGTH) {
+                out = Arrays.copyOf(out, pos + TRAILER_LENGTH);
+            }
+            crc.reset();
+            crc.update(data, 0, length);
+            pos = putIntLittleEndian(out, pos, (int) crc.getValue());
+            outLength = putIntLittleEndian(out, pos, length);
+        }
+
+        void recycle() {
+            length = 0;
+            outLength = 0;
+            done = false;
+        }
+    }
+
+    private static int putIntLittleEndian(final byte[] bytes, final int pos, final int value) {
+        bytes[pos] = (byte) value;
+        bytes[pos + 1] = (byte) (value >>> 8);
+        bytes[pos + 2] = (byte) (value >>> 16);
+        bytes[pos + 3] = (byte) (value >>> 24);
+        return pos + 4;
+    }
+}
@@ -0,0 +1,188 @@
+package org.apache.catalina.valves;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.Log4JAccessLogValve.AccessLogElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.HeaderElement;
+import org.apache.catalina.valves.Log4JAccessLogValve.ResponseHeaderElement;
+import org.apache.tomcat.util.buf.Ascii;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.apache.tomcat.util.http.MimeHeaders;
+
+/**
+ * Captures every <code>%{xxx}i</code> and <code>%{xxx}o</code> of a pattern in one pass over the request headers and
+ * one over the response headers, instead of one lookup per element.
+ * <p>
+ * Header names the connector parsed are still raw bytes, they are compared byte by byte with the lower cased names of
+ * the pattern, so a header that is not logged is never turned into a <code>String</code>. Only the values logged are.
+ * A request header logs its first value, as {@link Request#getHeader} does, a response header all of its values
+ * joined with commas.
+ */
+final class HeaderCapture {
+
+    private final byte[][] requestNames;
+
+    private final String[] requestHeaders;
+
+    private final int[] requestIndexes;
+
+    private final String[] responseHeaders;
+
+    private final int[] responseIndexes;
+
+    private HeaderCapture(final List<String> requestHeaders, final List<Integer> requestIndexes,
+                          final List<String> responseHeaders, final List<Integer> responseIndexes) {
+        this.requestHeaders = requestHeaders.toArray(new String[requestHeaders.size()]);
+        this.requestIndexes = toArray(requestIndexes);
+        this.responseHeaders = responseHeaders.toArray(new String[responseHeaders.size()]);
+        this.responseIndexes = toArray(responseIndexes);
+        this.requestNames = new byte[this.requestHeaders.length][];
+        for (int i = 0; i < requestNames.length; i++) {
+            String name = this.requestHeaders[i].toLowerCase(Locale.ENGLISH);
+            if (isLatin1(name)) {
+                requestNames[i] = name.getBytes(StandardCharsets.ISO_8859_1);
+            }
+        }
+    }
+
+    /**
+     * @return the capture of the header elements among the given ones, null if there are none
+     */
+    static HeaderCapture create(final AccessLogElement[] elements) {
+        List<String> requestHeaders = new ArrayList<String>();
+        List<Integer> requestIndexes = new ArrayList<Integer>();
+        List<String> responseHeaders = new ArrayList<String>();
+        List<Integer> responseIndexes = new ArrayList<Integer>();
+        for (AccessLogElement element : elements) {
+            if (element.getClass() == HeaderElement.class) {
+                HeaderElement header = (HeaderElement) element;
+                requestHeaders.add(header.getHeader());
+                requestIndexes.add(Integer.valueOf(header.getIndex()));
+            } else if (element.getClass() == ResponseHeaderElement.class) {
+                ResponseHeaderElement header = (ResponseHeaderElement) element;
+                responseHeaders.add(header.getHeader());
+                responseIndexes.add(Integer.valueOf(header.getIndex()));
+            }
+        }
+        if (requestHeaders.isEmpty() && responseHeaders.isEmpty()) {
+            return null;
+        }
+        return new HeaderCapture(requestHeaders, requestIndexes, responseHeaders, responseIndexes);
+    }
+
+    /**
+     * Only the exact built-in classes are captured here, a subclass may override the methods.
+     *
+     * @return whether the element is captured by this class rather than by itself
+     */
+    static boolean captures(final AccessLogElement element) {
+        return element.getClass() == HeaderElement.class || element.getClass() == ResponseHeaderElement.class;
+    }
+
+    /**
+     * @return all values of the header joined with commas, null if there is none
+     */
+    static String values(final MimeHeaders headers, final String header) {
+        String result = null;
+        for (int i = 0, size = headers.size(); i < size; i++) {
+            if (headers.getName(i).equalsIgnoreCase(header)) {
+                String value = headers.getValue(i).toString();
+                result = result == null ? value : result + ',' + value;
+            }
+        }
+        return result;
+    }
+
+    void capture(final AccessLogEntry entry, final Request request, final Response response) {
+        final Object[] values = entry.values;
+        final int[] indexes = requestIndexes;
+        for (int k = 0; k < indexes.length; k++) {
+            values[indexes[k]] = null;
+        }
+        if (indexes.length > 0 && request != null && request.getCoyoteRequest() != null) {
+            MimeHeaders headers = request.getCoyoteRequest().getMimeHeaders();
+            int missing = indexes.length;
+            for (int i = 0, size = headers.size(); i < size && missing > 0; i++) {
+                MessageBytes name = headers.getName(i);
+                for (int k = 0; k < indexes.length; k++) {
+                    if (values[indexes[k]] == null && matches(name, k)) {
+                        values[indexes[k]] = headers.getValue(i).toString();
+                        missing--;
+                    }
+                }
+            }
+        }
+
+        final int[] responseIndexes = this.responseIndexes;
+        for (int k = 0; k < responseIndexes.length; k++) {
+            values[responseIndexes[k]] = null;
+        }
+        if (responseIndexes.length > 0 && response != null && response.getCoyoteResponse() != null) {
+            MimeHeaders headers = response.getCoyoteResponse().getMimeHeaders();
+            for (int i = 0, size = headers.size(); i < size; i++) {
+                MessageBytes name = headers.getName(i);
+                for (int k = 0; k < responseIndexes.length; k++) {
+                    if (name.equalsIgnoreCase(responseHeaders[k])) {
+                        String value = headers.getValue(i).toString();
+                        Object previous = values[responseIndexes[k]];
+                        values[responseIndexes[k]] = previous == null ? value : previous + "," + value;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether a header name is the k-th request header of the pattern
+     */
+    private boolean matches(final MessageBytes name, final int k) {
+        return nameEquals(name, requestNames[k], requestHeaders[k]);
+    }
+
+    /**
+     * Compare a header name with one known in advance, byte by byte when the connector left the name raw.
+     *
+     * @param lowerCase
+     *        the ISO-8859-1 bytes of the expected name in lower case, null to compare as strings
+     */
+    static boolean nameEquals(final MessageBytes name, final byte[] lowerCase, final String expected) {
+        if (name.getType() != MessageBytes.T_BYTES || lowerCase == null) {
+            return name.equalsIgnoreCase(expected);
+        }
+        ByteChunk chunk = name.getByteChunk();
+        if (chunk.getLength() != lowerCase.length) {
+            return false;
+        }
+        byte[] bytes = chunk.getBuffer();
+        int start = chunk.getStart();
+        for (int j = 0; j < lowerCase.length; j++) {
+            if (Ascii.toLower(bytes[start + j]) != (lowerCase[j] & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isLatin1(final String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) > 0xff) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] toArray(final List<Integer> list) {
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = list.get(i).intValue();
+        }
+        return result;
+    }
+}
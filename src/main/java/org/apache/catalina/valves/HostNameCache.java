@@ -0,0 +1,145 @@
+package org.apache.catalina.valves;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Host names of remote addresses, resolved in the background so a slow DNS server never holds up a request.
+ * <p>
+ * An address not in the cache is written as is, and queued for a reverse lookup on one of the resolver threads;
+ * later requests from it get the name. Names are kept for a time to live, after which the stale name is still served
+ * while it is looked up again. Failed lookups are cached as the address itself, so an address without a name is not
+ * looked up on every request. The cache holds at most a given number of addresses, the queue of lookups as many;
+ * lookups that do not fit are skipped, and retried by a later request.
+ */
+final class HostNameCache {
+
+    private final int maxSize;
+
+    private final long ttl;
+
+    private final ConcurrentMap<String, Resolved> names;
+
+    /**
+     * Addresses queued or being looked up, so each is looked up once at a time.
+     */
+    private final ConcurrentMap<String, Boolean> pending = new ConcurrentHashMap<String, Boolean>();
+
+    private final ThreadPoolExecutor resolvers;
+
+    /**
+     * @param maxSize
+     *        most addresses kept
+     * @param ttl
+     *        milliseconds a name is served before it is looked up again
+     * @param threads
+     *        number of resolver threads
+     * @param name
+     *        what the resolver threads are named after
+     */
+    HostNameCache(final int maxSize, final long ttl, final int threads, final String name) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        this.names = new ConcurrentHashMap<String, Resolved>(Math.min(maxSize, 1024));
+        this.resolvers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(maxSize), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(final Runnable runnable) {
+                        Thread thread = new Thread(runnable, "Log4JAccessLogValve[" + name + "]-resolver-"
+                                + count.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * @param now
+     *        current time in milliseconds
+     * @return the host name of the address if known, else the address itself
+     */
+    String lookup(final String address, final long now) {
+        if (address == null) {
+            return null;
+        }
+        Resolved resolved = names.get(address);
+        if (resolved == null || resolved.expires <= now) {
+            resolve(address);
+        }
+        return resolved == null ? address : resolved.name;
+    }
+
+    /**
+     * Stop the resolver threads, without waiting for the lookups under way.
+     */
+    void close() {
+        resolvers.shutdownNow();
+    }
+
+    private void resolve(final String address) {
+        if (pending.putIfAbsent(address, Boolean.TRUE) != null) {
+            return;
+        }
+        try {
+            resolvers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        store(address, InetAddress.getByName(address).getCanonicalHostName());
+                    } catch (UnknownHostException e) {
+                        store(address, address);
+                    } finally {
+                        pending.remove(address);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(address);
+        }
+    }
+
+    private void store(final String address, final String name) {
+        long now = System.currentTimeMillis();
+        if (names.size() >= maxSize && !names.containsKey(address)) {
+            evict(now);
+        }
+        names.put(address, new Resolved(name, now + ttl));
+    }
+
+    /**
+     * Make room by dropping the expired names, or any name if none has expired.
+     */
+    private void evict(final long now) {
+        for (Iterator<Resolved> it = names.values().iterator(); it.hasNext();) {
+            if (it.next().expires <= now) {
+                it.remove();
+            }
+        }
+        Iterator<String> it = names.keySet().iterator();
+        while (names.size() >= maxSize && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static final class Resolved {
+
+        final String name;
+
+        final long expires;
+
+        Resolved(final String name, final long expires) {
+            this.name = name;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.apache.catalina.valves;
+
+/**
+ * A striped, log-linear latency histogram in the style of HdrHistogram, recording microseconds without locks.
+ * <p>
+ * Values below {@link #SUB_BUCKETS} microseconds get a bucket each. Above that each power of two is split into
+ * {@link #SUB_BUCKETS} linear buckets, so a value is known to within 1/16th, over a range of up to
+ * 2<sup>{@value #MAX_MAGNITUDE} + 1</sup> microseconds (about nine hours), in a few hundred buckets.
+ * <p>
+ * The buckets are {@link StripedCounters}, so request threads do not contend on the same cache lines. Each copy of
+ * the buckets, or stripe, takes {@link #STRIPE_BYTES} bytes. A snapshot adds the copies up.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    static final int MAX_MAGNITUDE = 35;
+
+    static final int BUCKETS = SUB_BUCKETS + (MAX_MAGNITUDE - SUB_BITS + 1) * SUB_BUCKETS;
+
+    /**
+     * Slot of the sum of all values in a stripe, after the buckets.
+     */
+    private static final int SUM = BUCKETS;
+
+    /**
+     * Memory each stripe takes.
+     */
+    static final int STRIPE_BYTES = StripedCounters.stride(SUM + 1) * 8;
+
+    private final StripedCounters counts;
+
+    /**
+     * @param stripes
+     *        number of copies of the buckets, a power of two
+     */
+    LatencyHistogram(final int stripes) {
+        counts = new StripedCounters(SUM + 1, stripes);
+    }
+
+    void record(final long micros) {
+        int stripe = counts.stripe();
+        counts.add(stripe, bucket(micros), 1);
+        counts.add(stripe, SUM, micros);
+    }
+
+    /**
+     * Add the stripes up into <code>buckets</code>, which must have {@link #BUCKETS} slots, optionally clearing them
+     * on the way so nothing recorded meanwhile is lost.
+     *
+     * @return the sum of all values
+     */
+    long drain(final long[] buckets, final boolean reset) {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] += counts.sum(i, reset);
+        }
+        return counts.sum(SUM, reset);
+    }
+
+    static int bucket(final long micros) {
+        if (micros < SUB_BUCKETS) {
+            return micros < 0 ? 0 : (int) micros;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+        if (magnitude > MAX_MAGNITUDE) {
+            return BUCKETS - 1;
+        }
+        int shift = magnitude - SUB_BITS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) (micros >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @return the highest value a bucket holds
+     */
+    static long highest(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+
+    /**
+     * @return the value below which the given share of the counted values lies, as the highest value of its bucket
+     */
+    static long percentile(final long[] buckets, final long count, final double share) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * share);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank && buckets[i] > 0) {
+                return highest(i);
+            }
+        }
+        return highest(buckets.length - 1);
+    }
+}
@@ -0,0 +1,171 @@
+package org.apache.catalina.valves;
+
+/**
+ * A reusable, unsynchronized character buffer that access log lines are formatted into. Unlike
+ * <code>StringBuffer</code> it takes no lock per append and writes numbers digit by digit straight into its array,
+ * so formatting a line allocates nothing once the buffer has grown to the usual line length.
+ * <p>
+ * A buffer belongs to one thread at a time: the request thread when logging synchronously, or an async consumer.
+ * {@link #recycle()} keeps a running average of the line lengths and gives back memory when a single oversized line
+ * has blown the array up far beyond it.
+ */
+final class LineBuffer implements CharSequence {
+
+    /**
+     * Never shrink below this many characters.
+     */
+    static final int MIN_CAPACITY = 256;
+
+    private char[] chars;
+
+    private int length = 0;
+
+    /**
+     * Running average of the line lengths written through this buffer.
+     */
+    private int average;
+
+    /**
+     * Number of lines written through this buffer.
+     */
+    private int lines = 0;
+
+    LineBuffer(final int capacity) {
+        chars = new char[Math.max(capacity, MIN_CAPACITY)];
+        average = chars.length / 2;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public char charAt(final int index) {
+        if (index >= length) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+        return chars[index];
+    }
+
+    public CharSequence subSequence(final int start, final int end) {
+        return new String(chars, start, end - start);
+    }
+
+    /**
+     * @return the backing array, valid up to {@link #length()}
+     */
+    char[] array() {
+        return chars;
+    }
+
+    int averageLength() {
+        return average;
+    }
+
+    int lines() {
+        return lines;
+    }
+
+    /**
+     * Cut the buffer back, or grow it leaving the new characters to the caller.
+     */
+    void setLength(final int length) {
+        ensureCapacity(length);
+        this.length = length;
+    }
+
+    /**
+     * Empty the buffer for the next line, remembering the length of the line just written.
+     */
+    void recycle() {
+        average += (length - average) >> 3;
+        length = 0;
+        lines++;
+        if (chars.length > MIN_CAPACITY && chars.length > average << 2) {
+            chars = new char[Math.max(average << 1, MIN_CAPACITY)];
+        }
+    }
+
+    LineBuffer append(final char c) {
+        ensureCapacity(length + 1);
+        chars[length++] = c;
+        return this;
+    }
+
+    /**
+     * Append a string, or <code>"null"</code> like <code>StringBuffer</code> does.
+     */
+    LineBuffer append(final String str) {
+        if (str == null) {
+            return append("null");
+        }
+        int len = str.length();
+        ensureCapacity(length + len);
+        str.getChars(0, len, chars, length);
+        length += len;
+        return this;
+    }
+
+    LineBuffer append(final char[] str, final int offset, final int len) {
+        ensureCapacity(length + len);
+        System.arraycopy(str, offset, chars, length, len);
+        length += len;
+        return this;
+    }
+
+    /**
+     * Append the decimal representation of a number without creating a string for it.
+     */
+    LineBuffer append(long value) {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                return append("-9223372036854775808");
+            }
+            append('-');
+            value = -value;
+        }
+        return appendDigits(value, digits(value));
+    }
+
+    /**
+     * Append a non-negative number zero-padded to at least <code>width</code> digits.
+     */
+    LineBuffer appendPadded(final long value, final int width) {
+        return appendDigits(value, Math.max(digits(value), width));
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, 0, length);
+    }
+
+    private LineBuffer appendDigits(long value, final int count) {
+        ensureCapacity(length + count);
+        int pos = length + count;
+        while (pos > length) {
+            long next = value / 10;
+            chars[--pos] = (char) ('0' + (int) (value - next * 10));
+            value = next;
+        }
+        length += count;
+        return this;
+    }
+
+    private static int digits(final long value) {
+        long limit = 10;
+        for (int count = 1; count < 19; count++) {
+            if (value < limit) {
+                return count;
+            }
+            limit *= 10;
+        }
+        return 19;
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity > chars.length) {
+            char[] grown = new char[Math.max(capacity, chars.length << 1)];
+            System.arraycopy(chars, 0, grown, 0, length);
+            chars = grown;
+        }
+    }
+}
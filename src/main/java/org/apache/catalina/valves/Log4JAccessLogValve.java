@@ -1,41 +1,140 @@
 package org.apache.catalina.valves;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
 import java.net.InetAddress;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
-
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
-import javax.servlet.http.Cookie;
-import javax.servlet.http.HttpSession;
 
+import org.apache.catalina.AccessLog;
 import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
-import org.apache.log4j.Logger;
-import org.omg.PortableInterceptor.RequestInfo;
 
 /**
  * An implementation of a Tomcat access logging valve that uses log4j instead of writing straight to file. This will
  * allow us to send access logging over Scribe using the {@link org.apache.log4j.net.ScribeAppender}. This will log to
- * log4j at the INFO level. Note that thread name field is currently not supported. The logger's name is set using a
- * property of the valve.
+ * log4j at the INFO level. The logger's name is set using a property of the valve. Log4j 2, or any other
+ * {@link AccessLogBackend}, can be used instead with the <code>backend</code> property.
+ * <p>
+ * With a <code>traceThreshold</code>, requests taking that long or longer are also traced: a record of where their
+ * time went is logged to a logger of its own, see {@link RequestTrace} and {@link AccessLogStageValve}. The valve is
+ * the {@link AccessLog} of its container for that, so it hears when the response is finished.
  *
  * @see AccessLogValve AccessLogValve for details on formatting
  *
  * @author Josh Devins
  */
-public final class Log4JAccessLogValve extends BaseValve {
+public final class Log4JAccessLogValve extends BaseValve implements AccessLog {
+
+    /**
+     * What to do with a line when the async ring buffer is full.
+     */
+    public enum OverflowPolicy {
+
+        /**
+         * wait on the request thread until a consumer frees a slot
+         */
+        BLOCK,
+
+        /**
+         * drop the newest line silently
+         */
+        DROP,
+
+        /**
+         * drop the newest line, count it and report the count to the container log
+         */
+        COUNT
+    }
+
+    /**
+     * When the file sink forces its writes to disk.
+     */
+    public enum FsyncPolicy {
+
+        /**
+         * never, leave it to the operating system
+         */
+        NONE,
+
+        /**
+         * when a file is rotated or closed
+         */
+        ROTATE,
+
+        /**
+         * after every batch written
+         */
+        BATCH
+    }
+
+    /**
+     * What <code>%h</code> writes.
+     */
+    public enum HostResolution {
+
+        /**
+         * the remote address, never looked up
+         */
+        FALSE,
+
+        /**
+         * the remote host as the connector reports it, looked up on the request thread when it has lookups enabled
+         */
+        TRUE,
+
+        /**
+         * the name from a cache filled in the background, the remote address until it has been looked up
+         */
+        CACHED
+    }
 
     /**
-     * AccessLogElement writes the partial message into the buffer.
+     * How often the file sink starts a new file.
+     */
+    public enum Rotation {
+
+        NONE,
+
+        HOURLY,
+
+        DAILY
+    }
+
+    /**
+     * AccessLogElement captures the fields it needs from the request into an entry and later writes the partial
+     * message for that entry into the buffer.
      */
     protected interface AccessLogElement {
 
-        public void addElement(StringBuffer buf, Date date, Request request, Response response, long time);
+        /**
+         * Copy what this element needs out of the request and response of the context. Runs on the request thread.
+         */
+        public void capture(AccessLogEntry entry, CaptureContext context);
+
+        /**
+         * Write this element for a captured entry. May run on another thread than {@link #capture}.
+         */
+        public void addElement(LineBuffer buf, AccessLogEntry entry);
     }
 
     /**
@@ -52,9 +151,12 @@ public final class Log4JAccessLogValve extends BaseValve {
             this.conversion = conversion;
         }
 
-        public void addElement(final StringBuffer buf, final Date date, final Request request, final Response response,
-                               final long time) {
-            long length = response.getContentWritten();
+        public void capture(final AccessLogEntry entry, final CaptureContext context) {
+            entry.bytesSent = context.response().getContentWritten();
+        }
+
+        public void addElement(final LineBuffer buf, final AccessLogEntry entry) {
+            long length = entry.bytesSent;
             if (length <= 0 && conversion) {
                 buf.append('-');
             } else {
@@ -70,91 +172,182 @@ public final class Log4JAccessLogValve extends BaseValve {
 
         private final String header;
 
-        public CookieElement(final String header) {
+        private final int index;
+
+        private final CookieCapture cookie;
+
+        public CookieElement(final String header, final int index) {
             this.header = header;
+            this.index = index;
+            this.cookie = new CookieCapture(new String[] { header }, new int[] { index });
         }
 
-        public void addElement(final StringBuffer buf, final Date date, final Request request, final Response response,
-                               final long time) {
-            String value = "-";
-            Cookie[] c = request.getCookies();
-            if (c != null) {
-                for (Cookie element : c) {
-                    if (header.equals(element.getName())) {
-                        value = element.getValue();
-                        break;
-                    }
-                }
-            }
-            buf.append(value);
+        public String getName() {
+            return header;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public void capture(final AccessLogEntry entry, final CaptureContext context) {
+            cookie.capture(entry, context.request());
+        }
+
+        public void addElement(final LineBuffer buf, final AccessLogEntry entry) {
+            buf.append((String) entry.values[index]);
         }
     }
 
     /**
-     * write date and time, in Common Log Format - %t
+     * write date and time, in Common Log Format - %t, or in a custom format - %{xxx}t
+     * <p>
+     * xxx is a <code>SimpleDateFormat</code> pattern, or <code>sec</code> (seconds since the epoch),
+     * <code>msec</code> (milliseconds since the epoch) or <code>msec_frac</code> (the millisecond fraction), as in
+     * Tomcat's AccessLogValve. Milliseconds in a pattern are written per request, the rest is rendered once per
+     * second. A <code>begin:</code> prefix logs the time the request started, <code>end:</code> or no prefix the time
+     * it finished, which is what this valve has always logged.
      */
     protected class DateAndTimeElement implements AccessLogElement {
 
-        private Date currentDate = new Date(0);
+        private static final int FORMAT = 0;
 
-        private String currentDateString = null;
+        private static final int SEC = 1;
 
-        public void addElement(final StringBuffer buf, final Date date, final Request request, final Response response,
-                               final long time) {
-            if (currentDate != date) {
-                synchronized (this) {
-                    if (currentDate != date) {
-                        StringBuffer current = new StringBuffer(32);
-                        current.append('[');
-                        current.append(dayFormatter.format(date)); // Day
-                        current.append('/');
-                        current.append(lookup(monthFormatter.format(date))); // Month
-                        current.append('/');
-                        current.append(yearFormatter.format(date)); // Year
-                        current.append(':');
-                        current.append(timeFormatter.format(date)); // Time
-                        current.append(' ');
-                        current.append(getTimeZone(date)); // Timezone
-                        current.append(']');
-                        currentDateString = current.toString();
-                        currentDate = date;
-                    }
+        private static final int MSEC = 2;
+
+        private static final int MSEC_FRAC = 3;
+
+        private final boolean begin;
+
+        private final int type;
+
+        private final AccessLogDateFormat format;
+
+        public DateAndTimeElement() {
+            this(null);
+        }
+
+        public DateAndTimeElement(String header) {
+            boolean begin = false;
+            if (header != null) {
+                if (header.equals("begin") || header.startsWith("begin:")) {
+                    begin = true;
+                    header = header.substring(Math.min(header.length(), "begin:".length()));
+                } else if (header.equals("end") || header.startsWith("end:")) {
+                    header = header.substring(Math.min(header.length(), "end:".length()));
                 }
             }
-            buf.append(currentDateString);
+            this.begin = begin;
+
+            if ("sec".equals(header)) {
+                type = SEC;
+                format = null;
+            } else if ("msec".equals(header)) {
+                type = MSEC;
+                format = null;
+            } else if ("msec_frac".equals(header)) {
+                type = MSEC_FRAC;
+                format = null;
+            } else if (header == null || header.length() == 0) {
+                type = FORMAT;
+                format = new AccessLogDateFormat(AccessLogDateFormat.COMMON_LOG_FORMAT, Locale.US,
+                        TimeZone.getDefault());
+            } else {
+                type = FORMAT;
+                format = new AccessLogDateFormat(header, Locale.getDefault(), TimeZone.getDefault());
+            }
+        }
+
+        public void capture(final AccessLogEntry entry, final CaptureContext context) {
+            // the start and end times are always captured by the valve
+        }
+
+        public void addElement(final LineBuffer buf, final AccessLogEntry entry) {
+            long millis = begin ? entry.startTime : entry.endTime;
+            switch(type) {
+                case SEC :
+                    buf.append(millis / 1000);
+                    break;
+                case MSEC :
+                    buf.append(millis);
+                    break;
+                case MSEC_FRAC :
+                    buf.appendPadded(millis % 1000, 3);
+                    break;
+                default:
+                    format.format(buf, millis);
+                    break;
+            }
         }
     }
 
     /**
-     * write time taken to process the request - %D, %T
+     * write time taken to process the request - %D, %T, %{ms}T, %{us}T, %{ns}T
      */
     protected class ElapsedTimeElement implements AccessLogElement {
 
-        private final boolean millis;
+        private final TimeUnit unit;
 
         /**
          * if millis is true, write time in millis - %D
          * if millis is false, write time in seconds - %T
          */
         public ElapsedTimeElement(final boolean millis) {
-            this.millis = millis;
+            this(millis ? TimeUnit.MILLISECONDS : null);
+        }
+
+        /**
+         * write time as a whole number of the given unit, or in seconds with millisecond decimals if unit is null
+         */
+        public ElapsedTimeElement(final TimeUnit unit) {
+            this.unit = unit;
+        }
+
+        public void capture(final AccessLogEntry entry, final CaptureContext context) {
+            // the elapsed time is always captured by the valve
         }
 
-        public void addElement(final StringBuffer buf, final Date date, final Request request, final Response response,
-                               final long time) {
-            if (millis) {
-                buf.append(time);
+        public void addElement(final LineBuffer buf, final AccessLogEntry entry) {
+            if (unit != null) {
+                buf.append(unit.convert(entry.elapsed, TimeUnit.NANOSECONDS));
             } else {
                 // second
+                long time = TimeUnit.NANOSECONDS.toMillis(entry.elapsed);
                 buf.append(time / 1000);
                 buf.append('.');
-                int remains = (int) (time % 1000);
-                buf.append(remains / 100);
-                remains = remains % 100;
-                buf.append(remains / 10);
-                buf.append(remains % 10);
+                buf.appendPadded(time % 1000, 3);
+            }
+        }
+    }
+
+    /**
+     * write time until the response was committed, in millis - %F
+     * <p>
+     * Responses that fit in the output buffer are only committed after the pipeline returns, for those the whole
+     * elapsed time is written.
+     */
+    protected class CommitTimeElement implements AccessLogElement {
+
+        public void capture(final AccessLogEntry entry, final CaptureContext context) {
+            long commitTime = -1;
+            Response response = context.response();
+            if (response != null) {
+                org.apache.coyote.Response coyoteResponse = response.getCoyoteResponse();
+                if (coyoteResponse != null && coyoteResponse.isCommitted()) {
+                    commitTime = coyoteResponse.getCommitTime();
+                }
+            }
+            if (commitTime >= entry.startTime) {
+                entry.commitTime = commitTime - entry.startTime;
+            } else {
+                entry.commitTime = TimeUnit.NANOSECONDS.toMillis(entry.elapsed);
             }
         }
+
+        public void addElement(final LineBuffer buf, final AccessLogEntry entry) {
+            buf.append(entry.commitTime);
+        }
     }
 
     /**
@@ -164,13 +357,27 @@ public final class Log4JAccessLogValve extends BaseValve {
 
         private final String header;
 
-        public HeaderElement(final String header) {
+        private final int index;
+
+        public HeaderElement(final String header, final int index) {
             this.header = header;
+            this.index = index;
+        }
+
+        public String getHeader() {
+            return header;
         }
 
-        public void addElement(final StringBuffer buf, final Date date, final Request request, final Response response,
-                               final long time) {
-            String value = request.getHeader(header);
+        public int getIndex() {
+            return index;
+        }
+
+        public void capture(final AccessLogEntry entry, final CaptureContext context) {
+            entry.values[index] = context.request().getHeader(header);
+        }
+
+        public void addElement(final LineBuffer buf, final AccessLogEntry entry) {
+            String value = (String) entry.values[index];
             if (value == null) {
                 buf.append('-');
             } else {
@@ -184,9 +391,30 @@ public final class Log4JAccessLogValve extends BaseValve {
      */
     protected class HostElement implements AccessLogElement {
 
-        public void addElement(final StringBuffer buf, final Date date, final Request request, final Response response,
-                               final long time) {
-            buf.append(request.getRemoteHost());
+        public void capture(final AccessLogEntry entry, final CaptureContext context) {
+            if (requestAttributesEnabled) {
+                Object host = context.request().getAttribute(AccessLog.REMOTE_HOST_ATTRIBUTE);
+                if (host != null) {
+                    entry.remoteHost = host.toString();
+                    return;
+                }
+            }
+            switch(resolveHosts) {
+                case FALSE :
+                    entry.remoteHost = context.remoteAddr();
+                    break;
+                case CACHED :
+                    HostNameCache cache = hostNames;
+                    entry.remoteHost = cache != null ? cache.lookup(context.remoteAddr(), entry.endTime)
+                            : context.remoteAddr();
+                    break;
+                default:
+                    entry.remoteHost = context.request().getRemoteHost();
+            }
+        }
+
+        public void addElement(final LineBuffer buf, final AccessLogEntry entry) {
+            buf.append(entry.remoteHost);
         }
     }
 
@@ -195,10 +423,15 @@ public final class Log4JAccessLogValve extends BaseValve {
      */
     protected class HttpStatusCodeElement implements AccessLogElement {
 
-        public void addElement(final StringBuffer buf, final Date date, final Request request, final Response response,
-                               final long time) {
-            if (response != null) {
-                buf.append(response.getStatus());
+        public void capture(final AccessLogEntry entry, final CaptureContext context) {
+            if (context.response() != null) {
+                entry.status = context.response().getStatus();
+            }
+        }
+
+        public void addElement(final LineBuffer buf, final AccessLogEntry entry) {
+            if (entry.hasResponse) {
+                buf.append(entry.status);
             } else {
                 buf.append('-');
             }
@@ -212,8 +445,11 @@ public final class Log4JAccessLogValve extends BaseValve {
 
         private String value = null;
 
-        public void addElement(final StringBuffer buf, final Date date, final Request request, final Response response,
-                               final long time) {
+        public void capture(final AccessLogEntry entry, final CaptureContext context) {
+            // the local address does not depend on the request
+        }
+
+        public void addElement(final LineBuffer buf, final AccessLogEntry entry) {
             if (value == null) {
                 synchronized (this) {
                     try {
@@ -232,9 +468,15 @@ public final class Log4JAccessLogValve extends BaseValve {
      */
     protected class LocalPortElement implements AccessLogElement {
 
-        public void addElement(final StringBuffer buf, final Date date, final Request request, final Response response,
-                               final long time) {
-            buf.append(request.getServerPort());
+        public void capture(final AccessLogEntry entry, final CaptureContext context) {
+            Object port = requestAttributesEnabled
+                    ? context.request().getAttribute(AccessLog.SERVER_PORT_ATTRIBUTE) : null;
+            entry.serverPort = port instanceof Number ? ((Number) port).intValue()
+                    : context.request().getServerPort();
+        }
+
+        public void addElement(final LineBuffer buf, final AccessLogEntry entry) {
+            buf.append(entry.serverPort);
         }
     }
 
@@ -243,9 +485,12 @@ public final class Log4JAccessLogValve extends BaseValve {
      */
     protected class LocalServerNameElement implements AccessLogElement {
 
-        public void addElement(final StringBuffer buf, final Date date, final Request request, final Response response,
-                               final long time) {
-            buf.append(request.getServerName());
+        public void capture(final AccessLogEntry entry, final CaptureContext context) {
+            entry.serverName = context.request().getServerName();
+        }
+
+        public void addElement(final LineBuffer buf, final AccessLogEntry entry) {
+            buf.append(entry.serverName);
         }
     }
 
@@ -254,8 +499,11 @@ public final class Log4JAccessLogValve extends BaseValve {
      */
     protected class LogicalUserNameElement implements AccessLogElement {
 
-        public void addElement(final StringBuffer buf, final Date date, final Request request, final Response response,
-                               final long time) {
+        public void capture(final AccessLogEntry entry, final CaptureContext context) {
+            // nothing to capture
+        }
+
+        public void addElement(final LineBuffer buf, final AccessLogEntry entry) {
             buf.append('-');
         }
     }
@@ -265,10 +513,13 @@ public final class Log4JAccessLogValve extends BaseValve {
      */
     protected class MethodElement implements AccessLogElement {
 
-        public void addElement(final StringBuffer buf, final Date date, final Request request, final Response response,
-                               final long time) {
-            if (request != null) {
-                buf.append(request.getMethod());
+        public void capture(final AccessLogEntry entry, final CaptureContext context) {
+            entry.method = context.method();
+        }
+
+        public void addElement(final LineBuffer buf, final AccessLogEntry entry) {
+            if (entry.hasRequest) {
+                buf.append(entry.method);
             }
         }
     }
@@ -278,9 +529,12 @@ public final class Log4JAccessLogValve extends BaseValve {
      */
     protected class ProtocolElement implements AccessLogElement {
 
-        public void addElement(final StringBuffer buf, final Date date, final Request request, final Response response,
-                               final long time) {
-            buf.append(request.getProtocol());
+        public void capture(final AccessLogEntry entry, final CaptureContext context) {
+            entry.protocol = context.protocol();
+        }
+
+        public void addElement(final LineBuffer buf, final AccessLogEntry entry) {
+            buf.append(entry.protocol);
         }
     }
 
@@ -289,12 +543,12 @@ public final class Log4JAccessLogValve extends BaseValve {
      */
     protected class QueryElement implements AccessLogElement {
 
-        public void addElement(final StringBuffer buf, final Date date, final Request request, final Response response,
-                               final long time) {
-            String query = null;
-            if (request != null) {
-                query = request.getQueryString();
-            }
+        public void capture(final AccessLogEntry entry, final CaptureContext context) {
+            entry.queryString = context.queryString();
+        }
+
+        public void addElement(final LineBuffer buf, final AccessLogEntry entry) {
+            String query = entry.queryString;
             if (query != null) {
                 buf.append('?');
                 buf.append(query);
@@ -307,9 +561,12 @@ public final class Log4JAccessLogValve extends BaseValve {
      */
     protected class RemoteAddrElement implements AccessLogElement {
 
-        public void addElement(final StringBuffer buf, final Date date, final Request request, final Response response,
-                               final long time) {
-            buf.append(request.getRemoteAddr());
+        public void capture(final AccessLogEntry entry, final CaptureContext context) {
+            entry.remoteAddr = context.remoteAddr();
+        }
+
+        public void addElement(final LineBuffer buf, final AccessLogEntry entry) {
+            buf.append(entry.remoteAddr);
         }
     }
 
@@ -320,24 +577,32 @@ public final class Log4JAccessLogValve extends BaseValve {
 
         private final String header;
 
-        public RequestAttributeElement(final String header) {
+        private final int index;
+
+        public RequestAttributeElement(final String header, final int index) {
             this.header = header;
+            this.index = index;
         }
 
-        public void addElement(final StringBuffer buf, final Date date, final Request request, final Response response,
-                               final long time) {
+        public void capture(final AccessLogEntry entry, final CaptureContext context) {
             Object value = null;
+            Request request = context.request();
             if (request != null) {
                 value = request.getAttribute(header);
             } else {
                 value = "??";
             }
+            if (value != null && !(value instanceof String)) {
+                // the attribute may change once the request is recycled
+                value = value.toString();
+            }
+            entry.values[index] = value;
+        }
+
+        public void addElement(final LineBuffer buf, final AccessLogEntry entry) {
+            String value = (String) entry.values[index];
             if (value != null) {
-                if (value instanceof String) {
-                    buf.append((String) value);
-                } else {
-                    buf.append(value.toString());
-                }
+                buf.append(value);
             } else {
                 buf.append('-');
             }
@@ -349,18 +614,26 @@ public final class Log4JAccessLogValve extends BaseValve {
      */
     protected class RequestElement implements AccessLogElement {
 
-        public void addElement(final StringBuffer buf, final Date date, final Request request, final Response response,
-                               final long time) {
-            if (request != null) {
-                buf.append(request.getMethod());
+        public void capture(final AccessLogEntry entry, final CaptureContext context) {
+            if (context.request() != null) {
+                entry.method = context.method();
+                entry.requestURI = context.requestURI();
+                entry.queryString = context.queryString();
+                entry.protocol = context.protocol();
+            }
+        }
+
+        public void addElement(final LineBuffer buf, final AccessLogEntry entry) {
+            if (entry.hasRequest) {
+                buf.append(entry.method);
                 buf.append(' ');
-                buf.append(request.getRequestURI());
-                if (request.getQueryString() != null) {
+                buf.append(entry.requestURI);
+                if (entry.queryString != null) {
                     buf.append('?');
-                    buf.append(request.getQueryString());
+                    buf.append(entry.queryString);
                 }
                 buf.append(' ');
-                buf.append(request.getProtocol());
+                buf.append(entry.protocol);
             } else {
                 buf.append("- - ");
             }
@@ -372,10 +645,13 @@ public final class Log4JAccessLogValve extends BaseValve {
      */
     protected class RequestURIElement implements AccessLogElement {
 
-        public void addElement(final StringBuffer buf, final Date date, final Request request, final Response response,
-                               final long time) {
-            if (request != null) {
-                buf.append(request.getRequestURI());
+        public void capture(final AccessLogEntry entry, final CaptureContext context) {
+            entry.requestURI = context.requestURI();
+        }
+
+        public void addElement(final LineBuffer buf, final AccessLogEntry entry) {
+            if (entry.hasRequest) {
+                buf.append(entry.requestURI);
             } else {
                 buf.append('-');
             }
@@ -389,26 +665,35 @@ public final class Log4JAccessLogValve extends BaseValve {
 
         private final String header;
 
-        public ResponseHeaderElement(final String header) {
+        private final int index;
+
+        public ResponseHeaderElement(final String header, final int index) {
             this.header = header;
+            this.index = index;
         }
 
-        public void addElement(final StringBuffer buf, final Date date, final Request request, final Response response,
-                               final long time) {
+        public String getHeader() {
+            return header;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public void capture(final AccessLogEntry entry, final CaptureContext context) {
+            Response response = context.response();
             if (null != response) {
-                String[] values = response.getHeaders(header).toArray(new String[response.getHeaders(header).size()]);
-                if (values.length > 0) {
-                    for (int i = 0; i < values.length; i++) {
-                        String string = values[i];
-                        buf.append(string);
-                        if (i + 1 < values.length) {
-                            buf.append(",");
-                        }
-                    }
-                    return;
-                }
+                entry.values[index] = HeaderCapture.values(response.getCoyoteResponse().getMimeHeaders(), header);
+            }
+        }
+
+        public void addElement(final LineBuffer buf, final AccessLogEntry entry) {
+            String value = (String) entry.values[index];
+            if (value == null) {
+                buf.append('-');
+            } else {
+                buf.append(value);
             }
-            buf.append("-");
         }
     }
 
@@ -419,46 +704,69 @@ public final class Log4JAccessLogValve extends BaseValve {
 
         private final String header;
 
-        public SessionAttributeElement(final String header) {
+        private final int index;
+
+        public SessionAttributeElement(final String header, final int index) {
             this.header = header;
+            this.index = index;
         }
 
-        public void addElement(final StringBuffer buf, final Date date, final Request request, final Response response,
-                               final long time) {
+        public void capture(final AccessLogEntry entry, final CaptureContext context) {
             Object value = null;
-            if (null != request) {
-                HttpSession sess = request.getSession(false);
-                if (null != sess) {
-                    value = sess.getAttribute(header);
+            if (null != context.request()) {
+                Session session = context.session();
+                if (null != session) {
+                    value = session.getSession().getAttribute(header);
                 }
             } else {
                 value = "??";
             }
+            if (value != null && !(value instanceof String)) {
+                // the attribute may change once the request is recycled
+                value = value.toString();
+            }
+            entry.values[index] = value;
+        }
+
+        public void addElement(final LineBuffer buf, final AccessLogEntry entry) {
+            String value = (String) entry.values[index];
             if (value != null) {
-                if (value instanceof String) {
-                    buf.append((String) value);
-                } else {
-                    buf.append(value.toString());
-                }
+                buf.append(value);
             } else {
                 buf.append('-');
             }
         }
     }
 
+    /**
+     * write the number of requests this line stands for when sampling - %W
+     */
+    protected class SampleWeightElement implements AccessLogElement {
+
+        public void capture(final AccessLogEntry entry, final CaptureContext context) {
+            // the weight is always captured by the valve
+        }
+
+        public void addElement(final LineBuffer buf, final AccessLogEntry entry) {
+            buf.append(entry.sampleWeight);
+        }
+    }
+
     /**
      * write user session ID - %S
      */
     protected class SessionIdElement implements AccessLogElement {
 
-        public void addElement(final StringBuffer buf, final Date date, final Request request, final Response response,
-                               final long time) {
-            if (request != null) {
-                if (request.getSession(false) != null) {
-                    buf.append(request.getSessionInternal(false).getIdInternal());
-                } else {
-                    buf.append('-');
-                }
+        public void capture(final AccessLogEntry entry, final CaptureContext context) {
+            Session session = context.session();
+            if (session != null) {
+                entry.sessionId = session.getIdInternal();
+            }
+        }
+
+        public void addElement(final LineBuffer buf, final AccessLogEntry entry) {
+            if (entry.sessionId != null) {
+                buf.append(entry.sessionId);
             } else {
                 buf.append('-');
             }
@@ -476,8 +784,11 @@ public final class Log4JAccessLogValve extends BaseValve {
             this.str = str;
         }
 
-        public void addElement(final StringBuffer buf, final Date date, final Request request, final Response response,
-                               final long time) {
+        public void capture(final AccessLogEntry entry, final CaptureContext context) {
+            // nothing to capture
+        }
+
+        public void addElement(final LineBuffer buf, final AccessLogEntry entry) {
             buf.append(str);
         }
     }
@@ -487,11 +798,13 @@ public final class Log4JAccessLogValve extends BaseValve {
      */
     protected class ThreadNameElement implements AccessLogElement {
 
-        public void addElement(final StringBuffer buf, final Date date, final Request request, final Response response,
-                               final long time) {
-            RequestInfo info = (RequestInfo) request.getCoyoteRequest().getRequestProcessor();
-            if (info != null) {
-                buf.append(((org.apache.coyote.RequestInfo) info).getWorkerThreadName());
+        public void capture(final AccessLogEntry entry, final CaptureContext context) {
+            entry.threadName = workerThreadName(context.request());
+        }
+
+        public void addElement(final LineBuffer buf, final AccessLogEntry entry) {
+            if (entry.threadName != null) {
+                buf.append(entry.threadName);
             } else {
                 buf.append("-");
             }
@@ -503,15 +816,15 @@ public final class Log4JAccessLogValve extends BaseValve {
      */
     protected class UserElement implements AccessLogElement {
 
-        public void addElement(final StringBuffer buf, final Date date, final Request request, final Response response,
-                               final long time) {
-            if (request != null) {
-                String value = request.getRemoteUser();
-                if (value != null) {
-                    buf.append(value);
-                } else {
-                    buf.append('-');
-                }
+        public void capture(final AccessLogEntry entry, final CaptureContext context) {
+            if (context.request() != null) {
+                entry.remoteUser = context.request().getRemoteUser();
+            }
+        }
+
+        public void addElement(final LineBuffer buf, final AccessLogEntry entry) {
+            if (entry.remoteUser != null) {
+                buf.append(entry.remoteUser);
             } else {
                 buf.append('-');
             }
@@ -519,51 +832,34 @@ public final class Log4JAccessLogValve extends BaseValve {
     }
 
     /**
-     * The set of month abbreviations for log messages.
-     */
-    protected static final String months[] = { "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct",
-            "Nov", "Dec" };
-
-    /**
-     * The system timezone.
-     */
-    private TimeZone timezone = null;
-
-    /**
-     * The time zone offset relative to GMT in text form when daylight saving
-     * is not in operation.
+     * How long an idle async consumer sleeps before looking at the ring buffer again.
      */
-    private String timeZoneNoDST = null;
+    private static final long CONSUMER_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
 
     /**
-     * The time zone offset relative to GMT in text form when daylight saving
-     * is in operation.
+     * How many times an async consumer polls an empty ring buffer before it starts sleeping.
      */
-    private String timeZoneDST = null;
+    private static final int CONSUMER_SPINS = 100;
 
     /**
-     * A date formatter to format Dates into a day string in the format
-     * "dd".
+     * How long afterStop() waits for each async consumer to drain the ring buffer.
      */
-    private SimpleDateFormat dayFormatter = null;
+    private static final long CONSUMER_STOP_TIMEOUT = 10000;
 
     /**
-     * A date formatter to format a Date into a month string in the format
-     * "MM".
+     * A line buffer publishes its average line length once every this many lines plus one (a power of two minus one).
      */
-    private SimpleDateFormat monthFormatter = null;
+    private static final int LINE_LENGTH_SAMPLE_MASK = 0xFF;
 
     /**
-     * A date formatter to format a Date into a year string in the format
-     * "yyyy".
+     * How long a blocked request thread sleeps before trying to claim a slot again.
      */
-    private SimpleDateFormat yearFormatter = null;
+    private static final long PRODUCER_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
 
     /**
-     * A date formatter to format a Date into a time in the format
-     * "kk:mm:ss" (kk is a 24-hour representation of the hour).
+     * Prefix of the attributes defining named outputs, <code>output.&lt;name&gt;.pattern</code> and so on.
      */
-    private SimpleDateFormat timeFormatter = null;
+    private static final String OUTPUT_PREFIX = "output.";
 
     /**
      * The pattern used to format our access log lines.
@@ -575,183 +871,1948 @@ public final class Log4JAccessLogValve extends BaseValve {
      */
     protected boolean enabled = true;
 
-    private Logger logger;
-
     /**
      * Array of AccessLogElement, they will be used to make log message.
      */
     protected AccessLogElement[] logElements = null;
 
     /**
-     * Are we doing conditional logging. default false.
+     * Compile the pattern into a {@link CompiledPattern} instead of walking the element array. default true.
      */
-    protected String condition = null;
+    protected boolean compilePattern = true;
 
     /**
-     * The system time when we last updated the Date that this valve
-     * uses for log lines.
+     * logElements compiled, null when compilePattern is off.
      */
-    private Date currentDate = null;
+    private volatile CompiledPattern compiledPattern = null;
 
-    private long currentMillis = 0;
+    /**
+     * The pattern switched to while logging is too expensive, null to always log the full pattern.
+     */
+    protected String fallbackPattern = null;
 
-    private String loggerName;
+    /**
+     * The fallback pattern parsed, null when there is none or it does not apply to the output format.
+     */
+    private volatile AccessLogElement[] fallbackElements = null;
 
     /**
-     * Return whether the attribute name to look for when
-     * performing conditional loggging. If null, every
-     * request is logged.
+     * fallbackElements compiled, null when compilePattern is off.
      */
-    public String getCondition() {
-        return condition;
-    }
+    private volatile CompiledPattern fallbackCompiled = null;
 
     /**
-     * @return Returns the enabled.
+     * Average nanoseconds logging a line may cost a request thread before switching to the fallback pattern, 0 for
+     * no budget.
      */
-    public boolean getEnabled() {
-        return enabled;
-    }
+    protected long formatBudget = 0;
 
-    public String getLoggerName() {
-        return loggerName;
-    }
+    /**
+     * Fraction of busy worker threads from which to switch to the fallback pattern, 0 for no threshold.
+     */
+    protected double degradeUtilization = 0;
 
     /**
-     * Return the format pattern.
+     * Milliseconds between two decisions to switch pattern or not. default 1000.
      */
-    public String getPattern() {
-        return this.pattern;
-    }
+    protected long degradeInterval = 1000;
 
     /**
-     * Log a message summarizing the specified request and response, according
-     * to the format specified by the <code>pattern</code> property.
-     *
-     * @param request
-     *        Request being processed
-     * @param response
-     *        Response being processed
-     *
-     * @exception IOException
-     *            if an input/output error has occurred
-     * @exception ServletException
-     *            if a servlet error has occurred
+     * Decides when to switch to the fallback pattern, null unless started with one.
      */
-    @Override
-    public void invoke(final Request request, final Response response) throws IOException, ServletException {
+    private volatile AccessLogDegrader degrader = null;
 
-        if (started && getEnabled()) {
+    /**
+     * The structured output format, or null to write lines according to the pattern.
+     */
+    protected StructuredFormat.Type outputFormat = null;
 
-            // Pass this request on to the next valve in our pipeline
-            long t1 = System.currentTimeMillis();
+    /**
+     * The fields written in structured output, as comma separated <code>name=pattern</code> pairs.
+     */
+    protected String fields = null;
 
-            if (getNext() != null) {
-                getNext().invoke(request, response);
-            }
+    /**
+     * The fields compiled for the structured output format, null when writing text.
+     */
+    private volatile StructuredFormat structuredFormat = null;
 
-            long t2 = System.currentTimeMillis();
-            long time = t2 - t1;
+    /**
+     * Write entries in the binary format of {@link BinaryAccessLogWriter} to {@link #file} instead of lines to log4j.
+     */
+    protected boolean binary = false;
+
+    /**
+     * The file lines or binary entries are written to, null to log lines to log4j.
+     */
+    protected String file = null;
+
+    /**
+     * Size in bytes of each of the two buffers of the file sink or the binary writer.
+     */
+    protected int fileBufferSize = 1024 * 1024;
+
+    /**
+     * Most milliseconds a line or binary entry waits in its buffer before it is written.
+     */
+    protected long flushInterval = 1000;
+
+    /**
+     * Number of threads compressing the file as gzip, 0 to write it uncompressed. default 0.
+     */
+    protected int compressThreads = 0;
+
+    /**
+     * Number of bytes compressed together into one gzip member. default 128KB.
+     */
+    protected int compressBlockSize = 128 * 1024;
+
+    /**
+     * How often the file is rotated. default none.
+     */
+    protected Rotation rotate = Rotation.NONE;
+
+    /**
+     * Rotate the file once it has grown to this many bytes, 0 for no limit.
+     */
+    protected long rotateSize = 0;
+
+    /**
+     * When the file sink forces its writes to disk.
+     */
+    protected FsyncPolicy fsync = FsyncPolicy.ROTATE;
+
+    /**
+     * The binary writer, null unless the valve was started with the binary output format.
+     */
+    private volatile BinaryAccessLogWriter binaryWriter = null;
+
+    /**
+     * The file sink, null unless the valve was started writing text to a file.
+     */
+    private volatile FileAccessLogSink fileSink = null;
+
+    /**
+     * Are we doing conditional logging. default false.
+     */
+    protected String condition = null;
+
+    /**
+     * The filter expression a request has to match to be logged, see {@link AccessLogFilter}.
+     */
+    protected String filter = null;
+
+    /**
+     * The named outputs logged next to the valve's own pattern, in the order they were first configured.
+     */
+    private final Map<String, AccessLogOutputs.Definition> outputDefinitions =
+            new LinkedHashMap<String, AccessLogOutputs.Definition>();
+
+    /**
+     * The outputs parsed, null when none is defined or the output format is not text.
+     */
+    private volatile AccessLogOutputs outputs = null;
+
+    /**
+     * The backend of each output, null unless started with outputs.
+     */
+    private volatile AccessLogBackend[] outputBackends = null;
+
+    /**
+     * The filter and condition compiled, null when every request is logged.
+     */
+    private volatile AccessLogFilter requestFilter = null;
+
+    private String loggerName;
+
+    /**
+     * What lines are logged to when not writing a file: <code>log4j</code>, <code>log4j2</code> or the class name of
+     * an {@link AccessLogBackend}. default <code>log4j</code>.
+     */
+    protected String backend = "log4j";
+
+    /**
+     * The backend lines are logged to, null unless started without a file.
+     */
+    private volatile AccessLogBackend logBackend = null;
+
+    /**
+     * What <code>%h</code> writes. default {@link HostResolution#TRUE}.
+     */
+    protected HostResolution resolveHosts = HostResolution.TRUE;
+
+    /**
+     * Most addresses whose host name is cached.
+     */
+    protected int resolveHostsCacheSize = 4096;
+
+    /**
+     * Threads looking host names up in the background.
+     */
+    protected int resolveHostsThreads = 2;
+
+    /**
+     * Milliseconds a cached host name is used before it is looked up again.
+     */
+    protected long resolveHostsTtl = 300000;
+
+    /**
+     * The host name cache, null unless host names are cached.
+     */
+    private volatile HostNameCache hostNames = null;
+
+    /**
+     * The share of requests logged, between 0 and 1. default 1.
+     */
+    protected double sampleRate = 1;
+
+    /**
+     * Sampling rates per status class or URI prefix, as comma separated <code>2xx=0.01</code> or
+     * <code>/static/=0.001</code> rules.
+     */
+    protected String sampleRules = null;
+
+    /**
+     * Requests taking this many milliseconds or more are logged whatever the sampling rates, 0 for none.
+     */
+    protected long sampleSlowThreshold = 1000;
+
+    /**
+     * Lines per second adaptive sampling aims at, 0 to stick to the configured rates.
+     */
+    protected long sampleTarget = 0;
+
+    /**
+     * The sampler, null when every request is logged.
+     */
+    private volatile AccessLogSampler sampler = null;
+
+    /**
+     * Keep request counters and latency histograms, registered as an MBean. default false.
+     */
+    protected boolean metrics = false;
+
+    /**
+     * Also break the metrics down by virtual host. default false.
+     */
+    protected boolean metricsByHost = false;
+
+    /**
+     * The metrics, null unless the valve was started with metrics on.
+     */
+    private volatile AccessLogMetrics requestMetrics = null;
+
+    private ObjectName metricsName = null;
+
+    /**
+     * Measure the logging pipeline itself, registered as an MBean. default false.
+     */
+    protected boolean stats = false;
+
+    /**
+     * The pipeline counters, null unless the valve was started with stats on.
+     */
+    private volatile AccessLogStats pipelineStats = null;
+
+    private ObjectName statsName = null;
+
+    /**
+     * Requests taking this many milliseconds or more are traced, 0 for none. default 0.
+     */
+    protected long traceThreshold = 0;
+
+    /**
+     * The logger traces go to, by default the logger name with <code>.trace</code> appended.
+     */
+    protected String traceLoggerName = null;
+
+    /**
+     * The backend traces are logged to, null unless started with a trace threshold.
+     */
+    private volatile AccessLogBackend traceBackend = null;
+
+    /**
+     * Log what a valve like <code>RemoteIpValve</code> left in the {@link AccessLog} request attributes for
+     * <code>%a</code>, <code>%h</code>, <code>%H</code>, <code>%p</code> and the protocol of <code>%r</code>.
+     * default false.
+     */
+    protected boolean requestAttributesEnabled = false;
+
+    /**
+     * The dropped count last written to the container log.
+     */
+    private volatile long reportedDropped = 0;
+
+    /**
+     * Most lines handed to the log4j appenders at once, 0 to log each line as soon as it is finished. default 0.
+     */
+    protected int batchSize = 0;
+
+    /**
+     * Most milliseconds a line waits for its batch to fill. default 10.
+     */
+    protected long batchLinger = 10;
+
+    /**
+     * Hand lines over to background consumers instead of formatting them on the request thread. default false.
+     */
+    protected boolean async = false;
+
+    /**
+     * Number of preallocated slots in the async ring buffer, rounded up to a power of two.
+     */
+    protected int asyncCapacity = 8192;
+
+    /**
+     * Number of background threads formatting and logging async lines.
+     */
+    protected int asyncConsumers = 1;
+
+    /**
+     * What a request thread does when the async ring buffer is full.
+     */
+    protected OverflowPolicy asyncOverflowPolicy = OverflowPolicy.BLOCK;
+
+    /**
+     * The async ring buffer, null unless the valve was started in async mode.
+     */
+    private volatile AccessLogRingBuffer ringBuffer = null;
+
+    private volatile boolean consumersRunning = false;
+
+    private Thread[] consumerThreads = null;
+
+    /**
+     * Lines dropped because the async ring buffer was full, only kept with {@link OverflowPolicy#COUNT}.
+     */
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * Running average line length, used to size new line buffers.
+     */
+    private int averageLineLength = LineBuffer.MIN_CAPACITY / 2;
+
+    /**
+     * The buffer a request thread formats its line into when logging synchronously.
+     */
+    private final ThreadLocal<LineBuffer> localBuffer = new ThreadLocal<LineBuffer>() {
+        @Override
+        protected LineBuffer initialValue() {
+            return newLineBuffer();
+        }
+    };
+
+    /**
+     * The buffer a request thread or an async consumer encodes its line into when writing text to a file.
+     */
+    private final ThreadLocal<ByteLineBuffer> localBytes = new ThreadLocal<ByteLineBuffer>() {
+        @Override
+        protected ByteLineBuffer initialValue() {
+            return new ByteLineBuffer(averageLineLength << 1);
+        }
+    };
+
+    /**
+     * The entry used to capture a request when logging synchronously.
+     */
+    private final ThreadLocal<AccessLogEntry> localEntry = new ThreadLocal<AccessLogEntry>() {
+        @Override
+        protected AccessLogEntry initialValue() {
+            return new AccessLogEntry();
+        }
+    };
+
+    /**
+     * @return Returns the backend lines are logged to.
+     */
+    public String getBackend() {
+        return backend;
+    }
+
+    /**
+     * Async requests are logged when they complete, the valve does not stand in the way of Servlet 3 async
+     * processing.
+     */
+    public Log4JAccessLogValve() {
+        super();
+        setAsyncSupported(true);
+    }
+
+    /**
+     * @return Returns whether lines are formatted and logged by background consumers.
+     */
+    public boolean getAsync() {
+        return async;
+    }
+
+    public int getAsyncCapacity() {
+        return asyncCapacity;
+    }
+
+    public int getAsyncConsumers() {
+        return asyncConsumers;
+    }
+
+    public String getAsyncOverflowPolicy() {
+        return asyncOverflowPolicy.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    public long getBatchLinger() {
+        return batchLinger;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return Returns the number of async lines dropped so far, only counted with the <code>count</code> policy.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return Returns whether the pattern is compiled rather than interpreted element by element.
+     */
+    public boolean getCompilePattern() {
+        return compilePattern;
+    }
+
+    /**
+     * @return Returns the number of bytes compressed together into one gzip member.
+     */
+    public int getCompressBlockSize() {
+        return compressBlockSize;
+    }
+
+    /**
+     * @return Returns the number of threads compressing the file, 0 when it is not compressed.
+     */
+    public int getCompressThreads() {
+        return compressThreads;
+    }
+
+    /**
+     * Return whether the attribute name to look for when
+     * performing conditional loggging. If null, every
+     * request is logged.
+     */
+    public String getCondition() {
+        return condition;
+    }
+
+    /**
+     * @return Returns the number of times the valve switched to the fallback pattern since the start.
+     */
+    public long getDegradeCount() {
+        AccessLogDegrader current = degrader;
+        return current == null ? 0 : current.degradations();
+    }
+
+    /**
+     * @return Returns whether lines are currently written with the fallback pattern.
+     */
+    public boolean getDegraded() {
+        AccessLogDegrader current = degrader;
+        return current != null && current.degraded();
+    }
+
+    /**
+     * @return Returns the milliseconds between two decisions to switch pattern or not.
+     */
+    public long getDegradeInterval() {
+        return degradeInterval;
+    }
+
+    /**
+     * @return Returns the fraction of busy worker threads from which to switch to the fallback pattern.
+     */
+    public double getDegradeUtilization() {
+        return degradeUtilization;
+    }
+
+    /**
+     * @return Returns the enabled.
+     */
+    public boolean getEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return Returns the pattern switched to while logging is too expensive.
+     */
+    public String getFallbackPattern() {
+        return fallbackPattern;
+    }
+
+    /**
+     * @return Returns the fields written in structured output.
+     */
+    public String getFields() {
+        return fields;
+    }
+
+    /**
+     * @return Returns the file lines or binary entries are written to.
+     */
+    public String getFile() {
+        return file;
+    }
+
+    /**
+     * @return Returns the filter expression a request has to match to be logged.
+     */
+    public String getFilter() {
+        return filter;
+    }
+
+    public int getFileBufferSize() {
+        return fileBufferSize;
+    }
+
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    /**
+     * @return Returns the average nanoseconds per line from which to switch to the fallback pattern.
+     */
+    public long getFormatBudget() {
+        return formatBudget;
+    }
+
+    public String getFsync() {
+        return fsync.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    public String getLoggerName() {
+        return loggerName;
+    }
+
+    /**
+     * @return Returns whether request counters and latency histograms are kept.
+     */
+    public boolean getMetrics() {
+        return metrics;
+    }
+
+    public boolean getMetricsByHost() {
+        return metricsByHost;
+    }
+
+    /**
+     * @return Returns <code>text</code>, <code>json</code>, <code>logfmt</code> or <code>binary</code>.
+     */
+    public String getOutputFormat() {
+        if (binary) {
+            return "binary";
+        }
+        return outputFormat == null ? "text" : outputFormat.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Return the format pattern.
+     */
+    public String getPattern() {
+        return this.pattern;
+    }
+
+    public boolean getRequestAttributesEnabled() {
+        return requestAttributesEnabled;
+    }
+
+    public String getResolveHosts() {
+        return resolveHosts.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    public int getResolveHostsCacheSize() {
+        return resolveHostsCacheSize;
+    }
+
+    public int getResolveHostsThreads() {
+        return resolveHostsThreads;
+    }
+
+    public long getResolveHostsTtl() {
+        return resolveHostsTtl;
+    }
+
+    public String getRotate() {
+        return rotate.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    public long getRotateSize() {
+        return rotateSize;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    public String getSampleRules() {
+        return sampleRules;
+    }
+
+    public long getSampleSlowThreshold() {
+        return sampleSlowThreshold;
+    }
+
+    public long getSampleTarget() {
+        return sampleTarget;
+    }
+
+    /**
+     * @return Returns whether the logging pipeline measures itself.
+     */
+    public boolean getStats() {
+        return stats;
+    }
+
+    /**
+     * @return Returns the logger traces go to, null for the default.
+     */
+    public String getTraceLoggerName() {
+        return traceLoggerName;
+    }
+
+    /**
+     * @return Returns the time in milliseconds from which requests are traced, 0 for none.
+     */
+    public long getTraceThreshold() {
+        return traceThreshold;
+    }
+
+    /**
+     * Log a message summarizing the specified request and response, according
+     * to the format specified by the <code>pattern</code> property.
+     *
+     * @param request
+     *        Request being processed
+     * @param response
+     *        Response being processed
+     *
+     * @exception IOException
+     *            if an input/output error has occurred
+     * @exception ServletException
+     *            if a servlet error has occurred
+     */
+    @Override
+    public void invoke(final Request request, final Response response) throws IOException, ServletException {
+
+        // an async request dispatched back into the pipeline is logged by its listener when it completes
+        if (started && getEnabled() && !request.isAsyncDispatching()) {
+
+            // Pass this request on to the next valve in our pipeline
+            long t1 = System.currentTimeMillis();
+            long start = System.nanoTime();
+            RequestTrace trace = traceBackend != null ? RequestTrace.begin(request, t1, start) : null;
+
+            boolean returned = false;
+            try {
+                if (getNext() != null) {
+                    getNext().invoke(request, response);
+                }
+                returned = true;
+            } finally {
+                if (trace != null && !returned) {
+                    // the container does not finish a request the pipeline failed on, drop its trace
+                    trace.end();
+                }
+            }
+
+            if (trace != null) {
+                trace.returned = System.nanoTime();
+            }
+            if (request.isAsyncStarted()) {
+                // the response is not produced yet, log the request once it completes
+                try {
+                    request.getAsyncContext().addListener(new AsyncCompletion(request, response, t1, start,
+                            trace != null ? trace.copy() : null));
+                    if (trace != null) {
+                        trace.end();
+                    }
+                    return;
+                } catch (IllegalStateException e) {
+                    // completed in the meantime, log it now
+                }
+            }
+            logRequest(request, response, t1, System.nanoTime() - start);
+
+        } else {
+
+            if (getNext() != null) {
+                getNext().invoke(request, response);
+            }
+        }
+    }
+
+    /**
+     * Called by the container once the response is finished, which ends the trace of a request.
+     *
+     * @param time
+     *        time the container took, in milliseconds, unused
+     */
+    public void log(final Request request, final Response response, final long time) {
+        if (traceBackend == null) {
+            return;
+        }
+        RequestTrace trace = RequestTrace.current(request);
+        if (trace == null) {
+            return;
+        }
+        long finished = System.nanoTime();
+        trace.end();
+        logTrace(trace, request, response, finished);
+    }
+
+    /**
+     * @param async
+     *        true to format and log lines on background consumers, takes effect on the next start
+     */
+    public void setAsync(final boolean async) {
+        this.async = async;
+    }
+
+    /**
+     * @param asyncCapacity
+     *        number of slots in the async ring buffer, rounded up to a power of two
+     */
+    public void setAsyncCapacity(final int asyncCapacity) {
+        this.asyncCapacity = asyncCapacity;
+    }
+
+    /**
+     * @param asyncConsumers
+     *        number of background threads formatting async lines
+     */
+    public void setAsyncConsumers(final int asyncConsumers) {
+        this.asyncConsumers = asyncConsumers;
+    }
+
+    /**
+     * @param asyncOverflowPolicy
+     *        <code>block</code>, <code>drop</code> or <code>count</code>
+     */
+    public void setAsyncOverflowPolicy(final String asyncOverflowPolicy) {
+        this.asyncOverflowPolicy = OverflowPolicy.valueOf(asyncOverflowPolicy.trim().toUpperCase(Locale.ENGLISH));
+    }
+
+    /**
+     * @param backend
+     *        <code>log4j</code> for log4j 1.2, <code>log4j2</code> for Log4j 2 without a <code>String</code> per line,
+     *        or the class name of an {@link AccessLogBackend}, takes effect on the next start
+     */
+    public void setBackend(final String backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * @param batchLinger
+     *        most milliseconds a line waits for its batch to fill, takes effect on the next start
+     */
+    public void setBatchLinger(final long batchLinger) {
+        this.batchLinger = batchLinger;
+    }
+
+    /**
+     * Hand lines to the log4j 1.2 appenders in batches from a single thread, rather than have every request thread
+     * take the logger's lock. Lines keep the order they were finished in. Only used by the <code>log4j</code> backend.
+     *
+     * @param batchSize
+     *        most lines handed over at once, 0 to log each line as soon as it is finished, takes effect on the next
+     *        start
+     */
+    public void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param compilePattern
+     *        false to fall back to walking the element array for every line, takes effect on the next start
+     */
+    public void setCompilePattern(final boolean compilePattern) {
+        this.compilePattern = compilePattern;
+    }
+
+    /**
+     * @param compressBlockSize
+     *        number of bytes compressed together into one gzip member, larger blocks compress better, takes effect
+     *        on the next start
+     */
+    public void setCompressBlockSize(final int compressBlockSize) {
+        this.compressBlockSize = compressBlockSize;
+    }
+
+    /**
+     * Write the file as a multi-member gzip stream, compressed in blocks by background threads so neither request
+     * threads nor a nightly rotation job pay for it. Name the file <code>*.gz</code> to keep rotated names readable
+     * by tools.
+     *
+     * @param compressThreads
+     *        number of compressing threads, 0 to write the file uncompressed, takes effect on the next start
+     */
+    public void setCompressThreads(final int compressThreads) {
+        this.compressThreads = compressThreads;
+    }
+
+    /**
+     * Set the ServletRequest.attribute to look for to perform
+     * conditional logging. Set to null to log everything.
+     *
+     * @param condition
+     *        Set to null to log everything, takes effect on the next start
+     */
+    public void setCondition(final String condition) {
+        this.condition = condition;
+    }
+
+    /**
+     * @param degradeInterval
+     *        milliseconds between two decisions to switch pattern or not, default 1000, takes effect on the next
+     *        start
+     */
+    public void setDegradeInterval(final long degradeInterval) {
+        this.degradeInterval = degradeInterval;
+    }
+
+    /**
+     * @param degradeUtilization
+     *        fraction of busy worker threads of the connector, <code>0.9</code> say, from which to switch to the
+     *        fallback pattern, 0 for none, takes effect on the next start
+     */
+    public void setDegradeUtilization(final double degradeUtilization) {
+        this.degradeUtilization = degradeUtilization;
+    }
+
+    /**
+     * @param enabled
+     *        The enabled to set.
+     */
+    public void setEnabled(final boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Set a cheaper pattern, <code>common</code> say, the valve switches to while logging costs more than the
+     * <code>formatBudget</code> or the worker pool is busier than <code>degradeUtilization</code>, see
+     * {@link AccessLogDegrader}. Only applies to the valve's own text pattern.
+     *
+     * @param fallbackPattern
+     *        the pattern or an alias, null to always log the full pattern, parsed on the next start
+     */
+    public void setFallbackPattern(final String fallbackPattern) {
+        this.fallbackPattern = fallbackPattern == null ? null : translateAlias(fallbackPattern);
+    }
+
+    /**
+     * Set the fields written in structured output, for example
+     * <code>host=%h, time=%{msec}t, request=%r, status=%s, bytes=%B, agent=%{User-Agent}i</code>. A field made of
+     * a single numeric element is written as a number.
+     *
+     * @param fields
+     *        comma separated <code>name=pattern</code> pairs, parsed on the next start
+     */
+    public void setFields(final String fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * @param file
+     *        the file lines or binary entries are appended to instead of logging to log4j, takes effect on the next
+     *        start
+     */
+    public void setFile(final String file) {
+        this.file = file;
+    }
+
+    /**
+     * @param fileBufferSize
+     *        size in bytes of each of the two buffers of the file sink or binary writer
+     */
+    public void setFileBufferSize(final int fileBufferSize) {
+        this.fileBufferSize = fileBufferSize;
+    }
+
+    /**
+     * @param flushInterval
+     *        most milliseconds a line or binary entry is buffered before it is written to the file
+     */
+    public void setFlushInterval(final long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Set the filter expression a request has to match to be logged, for example
+     * <code>not uri:/health,/static/* or status:5xx or duration&gt;=1s</code>. See {@link AccessLogFilter} for the
+     * predicates.
+     *
+     * @param filter
+     *        the expression, or null to log every request, compiled on the next start
+     */
+    public void setFilter(final String filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * @param fsync
+     *        <code>none</code>, <code>rotate</code> or <code>batch</code>
+     */
+    public void setFsync(final String fsync) {
+        this.fsync = FsyncPolicy.valueOf(fsync.trim().toUpperCase(Locale.ENGLISH));
+    }
+
+    /**
+     * @param formatBudget
+     *        average nanoseconds logging a line may cost a request thread before switching to the fallback pattern,
+     *        0 for no budget, takes effect on the next start
+     */
+    public void setFormatBudget(final long formatBudget) {
+        this.formatBudget = formatBudget;
+    }
+
+    public void setLoggerName(final String loggerName) {
+        this.loggerName = loggerName;
+    }
+
+    /**
+     * @param metrics
+     *        true to keep request counters and latency histograms, registered as an MBean on the next start
+     */
+    public void setMetrics(final boolean metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param metricsByHost
+     *        true to also break the metrics down by virtual host, at up to about 400KB of histograms per host
+     */
+    public void setMetricsByHost(final boolean metricsByHost) {
+        this.metricsByHost = metricsByHost;
+    }
+
+    /**
+     * @param outputFormat
+     *        <code>text</code> to write lines according to the pattern, <code>json</code> or <code>logfmt</code> to
+     *        write the fields, <code>binary</code> to write compact records to the file, see {@link AccessLogDecoder},
+     *        takes effect on the next start
+     */
+    public void setOutputFormat(final String outputFormat) {
+        String name = outputFormat == null ? "text" : outputFormat.trim().toUpperCase(Locale.ENGLISH);
+        this.binary = name.equals("BINARY");
+        this.outputFormat = name.equals("TEXT") || binary ? null : StructuredFormat.Type.valueOf(name);
+    }
+
+    /**
+     * Set the format pattern, first translating any recognized alias.
+     *
+     * @param pattern
+     *        The new pattern, parsed on the next start
+     */
+    public void setPattern(final String pattern) {
+        this.pattern = translateAlias(pattern);
+    }
+
+    /**
+     * Define the named outputs logged next to the valve's own pattern, each from the same capture of the request,
+     * with attributes like <code>output.security.pattern="%h %t &quot;%r&quot; %{X-Forwarded-For}i"</code>,
+     * <code>output.security.loggerName="access.security"</code> and <code>output.security.filter="status:4xx"</code>.
+     * Tomcat hands every attribute without a setter of its own to this method. The patterns and filters are parsed on
+     * the next start.
+     *
+     * @param name
+     *        <code>output.&lt;name&gt;.pattern</code>, <code>.loggerName</code> or <code>.filter</code>
+     * @param value
+     *        the pattern, which may be an alias, the logger name or the filter expression
+     * @return whether the attribute defines an output
+     */
+    public boolean setProperty(final String name, final String value) {
+        int dot = name != null ? name.lastIndexOf('.') : -1;
+        if (dot <= OUTPUT_PREFIX.length() || !name.startsWith(OUTPUT_PREFIX)) {
+            return false;
+        }
+        String output = name.substring(OUTPUT_PREFIX.length(), dot);
+        String key = name.substring(dot + 1);
+        AccessLogOutputs.Definition definition = outputDefinitions.get(output);
+        if (definition == null) {
+            definition = new AccessLogOutputs.Definition(output);
+        }
+        if ("pattern".equals(key)) {
+            definition.pattern = translateAlias(value);
+        } else if ("loggerName".equals(key)) {
+            definition.loggerName = value;
+        } else if ("filter".equals(key)) {
+            definition.filter = value;
+        } else {
+            return false;
+        }
+        outputDefinitions.put(output, definition);
+        return true;
+    }
+
+    /**
+     * @param stats
+     *        true to measure the logging pipeline itself, registered as an MBean on the next start
+     */
+    public void setStats(final boolean stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * @param requestAttributesEnabled
+     *        true to log the remote address, remote host, protocol and port a valve like
+     *        <code>RemoteIpValve</code> set as request attributes, when it set them
+     */
+    public void setRequestAttributesEnabled(final boolean requestAttributesEnabled) {
+        this.requestAttributesEnabled = requestAttributesEnabled;
+    }
+
+    /**
+     * @param resolveHosts
+     *        <code>false</code> to write the remote address, <code>true</code> for the remote host as the connector
+     *        reports it, or <code>cached</code> for host names looked up in the background
+     */
+    public void setResolveHosts(final String resolveHosts) {
+        this.resolveHosts = HostResolution.valueOf(resolveHosts.trim().toUpperCase(Locale.ENGLISH));
+    }
+
+    /**
+     * @param resolveHostsCacheSize
+     *        most addresses whose host name is cached, takes effect on the next start
+     */
+    public void setResolveHostsCacheSize(final int resolveHostsCacheSize) {
+        this.resolveHostsCacheSize = resolveHostsCacheSize;
+    }
+
+    /**
+     * @param resolveHostsThreads
+     *        threads looking host names up in the background, takes effect on the next start
+     */
+    public void setResolveHostsThreads(final int resolveHostsThreads) {
+        this.resolveHostsThreads = resolveHostsThreads;
+    }
+
+    /**
+     * @param resolveHostsTtl
+     *        milliseconds a cached host name is used before it is looked up again, takes effect on the next start
+     */
+    public void setResolveHostsTtl(final long resolveHostsTtl) {
+        this.resolveHostsTtl = resolveHostsTtl;
+    }
+
+    /**
+     * @param rotate
+     *        <code>none</code>, <code>hourly</code> or <code>daily</code>
+     */
+    public void setRotate(final String rotate) {
+        this.rotate = Rotation.valueOf(rotate.trim().toUpperCase(Locale.ENGLISH));
+    }
+
+    /**
+     * @param rotateSize
+     *        rotate the file once it has grown to this many bytes, 0 for no limit
+     */
+    public void setRotateSize(final long rotateSize) {
+        this.rotateSize = rotateSize;
+    }
+
+    /**
+     * @param sampleRate
+     *        the share of requests logged, between 0 and 1, takes effect on the next start
+     */
+    public void setSampleRate(final double sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Set sampling rates per status class or URI prefix, for example
+     * <code>2xx=0.01, 3xx=0.1, /static/=0.001, /health=0</code>. The longest matching URI prefix wins over the
+     * status class, which wins over <code>sampleRate</code>.
+     *
+     * @param sampleRules
+     *        comma separated rules, takes effect on the next start
+     */
+    public void setSampleRules(final String sampleRules) {
+        this.sampleRules = sampleRules;
+    }
+
+    /**
+     * @param sampleSlowThreshold
+     *        log requests taking this many milliseconds or more whatever the sampling rates, 0 for none
+     */
+    public void setSampleSlowThreshold(final long sampleSlowThreshold) {
+        this.sampleSlowThreshold = sampleSlowThreshold;
+    }
+
+    /**
+     * @param sampleTarget
+     *        lines per second to adapt the sampling rates to, 0 to stick to the configured rates
+     */
+    public void setSampleTarget(final long sampleTarget) {
+        this.sampleTarget = sampleTarget;
+    }
+
+    /**
+     * @param traceLoggerName
+     *        logger traces go to, takes effect on the next start
+     */
+    public void setTraceLoggerName(final String traceLoggerName) {
+        this.traceLoggerName = traceLoggerName;
+    }
+
+    /**
+     * @param traceThreshold
+     *        time in milliseconds from which requests are traced, 0 for none, takes effect on the next start
+     */
+    public void setTraceThreshold(final long traceThreshold) {
+        this.traceThreshold = traceThreshold;
+    }
+
+    @Override
+    protected void afterStart() throws LifecycleException {
+
+        // check everything before opening, starting or registering anything
+
+        if (!outputDefinitions.isEmpty()) {
+            if (file != null && file.length() > 0 || binary || outputFormat != null) {
+                throw new LifecycleException("Log4jAccessLogValve: outputs are only logged as text to loggers");
+            }
+            for (AccessLogOutputs.Definition definition : outputDefinitions.values()) {
+                if (definition.pattern == null) {
+                    throw new LifecycleException("Log4jAccessLogValve: no pattern set for output " + definition.name);
+                }
+            }
+        }
+
+        AccessLogSampler createdSampler = null;
+        try {
+            configure();
+            compileFilter();
+            if (sampleRate < 1 || sampleRules != null || sampleTarget > 0) {
+                createdSampler = new AccessLogSampler(sampleRate, sampleRules, sampleSlowThreshold, sampleTarget,
+                        System.currentTimeMillis());
+            }
+        } catch (IllegalArgumentException e) {
+            throw new LifecycleException(e.getMessage(), e);
+        }
+
+        AccessLogOutputs fanOut = outputs;
+        if (file != null && file.length() > 0) {
+            if (fileBufferSize < 1024 || flushInterval < 1) {
+                throw new LifecycleException("Log4jAccessLogValve: fileBufferSize must be at least 1024 and "
+                        + "flushInterval positive");
+            }
+            if (compressThreads < 0 || compressThreads > 0 && compressBlockSize < 1024) {
+                throw new LifecycleException("Log4jAccessLogValve: compressThreads must not be negative and "
+                        + "compressBlockSize at least 1024");
+            }
+        } else if (binary) {
+            throw new LifecycleException("Log4jAccessLogValve: no file set for the binary output format");
+        } else {
+            if (batchSize > 0 && batchLinger < 0) {
+                throw new LifecycleException("Log4jAccessLogValve: batchLinger must not be negative");
+            }
+            // without a pattern of its own the valve needs no logger of its own
+            if ((fanOut == null || fanOut.size() > 0 && fanOut.loggerName(0) == null)
+                    && (loggerName == null || loggerName.length() == 0)) {
+                throw new LifecycleException("Log4jAccessLogValve: no logger name set");
+            }
+            for (int i = 0; fanOut != null && i < fanOut.size(); i++) {
+                String name = fanOut.loggerName(i);
+                if (name != null && name.length() == 0) {
+                    throw new LifecycleException("Log4jAccessLogValve: no logger name set for output "
+                            + fanOut.name(i));
+                }
+            }
+        }
+
+        if (resolveHosts == HostResolution.CACHED
+                && (resolveHostsCacheSize < 1 || resolveHostsThreads < 1 || resolveHostsTtl < 0)) {
+            throw new LifecycleException("Log4jAccessLogValve: resolveHostsCacheSize and resolveHostsThreads "
+                    + "must be positive, resolveHostsTtl not negative");
+        }
+
+        boolean degrade = fallbackPattern != null && fallbackPattern.length() > 0;
+        if (degrade) {
+            if (binary || outputFormat != null || !outputDefinitions.isEmpty()) {
+                throw new LifecycleException("Log4jAccessLogValve: the fallback pattern only replaces the valve's "
+                        + "own text pattern");
+            }
+            if (formatBudget < 0 || degradeUtilization < 0 || degradeUtilization > 1 || degradeInterval < 1) {
+                throw new LifecycleException("Log4jAccessLogValve: formatBudget must not be negative, "
+                        + "degradeUtilization between 0 and 1 and degradeInterval positive");
+            }
+            if (formatBudget == 0 && degradeUtilization == 0) {
+                throw new LifecycleException("Log4jAccessLogValve: a fallback pattern needs a formatBudget or a "
+                        + "degradeUtilization");
+            }
+        }
+
+        if (traceThreshold < 0) {
+            throw new LifecycleException("Log4jAccessLogValve: traceThreshold must not be negative");
+        }
+        String traceName = traceLoggerName;
+        if (traceThreshold > 0 && (traceName == null || traceName.length() == 0)) {
+            if (loggerName == null || loggerName.length() == 0) {
+                throw new LifecycleException("Log4jAccessLogValve: no trace logger name set");
+            }
+            traceName = loggerName + ".trace";
+        }
+
+        if (async && (asyncCapacity < 1 || asyncConsumers < 1)) {
+            throw new LifecycleException("Log4jAccessLogValve: asyncCapacity and asyncConsumers must be positive");
+        }
+
+        // then set everything up, releasing whatever was already set up when a step fails
+
+        try {
+            if (file != null && file.length() > 0) {
+                try {
+                    if (binary) {
+                        binaryWriter = new BinaryAccessLogWriter(file, fileBufferSize, flushInterval, containerLog);
+                    } else {
+                        fileSink = new FileAccessLogSink(file, fileBufferSize, flushInterval, rotate, rotateSize, fsync,
+                                compressThreads, compressBlockSize, containerLog);
+                    }
+                } catch (IOException e) {
+                    throw new LifecycleException("Log4jAccessLogValve: cannot open " + file, e);
+                }
+            } else {
+                if (fanOut == null || fanOut.size() > 0 && fanOut.loggerName(0) == null) {
+                    // create the logger
+                    logBackend = startBackend(loggerName);
+                }
+                if (fanOut != null) {
+                    AccessLogBackend[] backends = new AccessLogBackend[fanOut.size()];
+                    try {
+                        for (int i = 0; i < backends.length; i++) {
+                            String name = fanOut.loggerName(i);
+                            backends[i] = name == null ? logBackend : startBackend(name);
+                        }
+                    } finally {
+                        // also when one fails to start, so the rollback stops the ones started before it
+                        outputBackends = backends;
+                    }
+                }
+            }
+
+            if (metrics) {
+                AccessLogMetrics created = new AccessLogMetrics(metricsByHost);
+                metricsName = registerMBean("AccessLogMetrics",
+                        new StandardMBean(created, AccessLogMetricsMBean.class, false));
+                requestMetrics = created;
+            }
+
+            if (stats) {
+                AccessLogStats created = new AccessLogStats(this);
+                statsName = registerMBean("AccessLogStats",
+                        new StandardMBean(created, AccessLogStatsMBean.class, false));
+                pipelineStats = created;
+            }
+
+            if (resolveHosts == HostResolution.CACHED) {
+                hostNames = new HostNameCache(resolveHostsCacheSize, resolveHostsTtl, resolveHostsThreads,
+                        loggerName != null ? loggerName : file);
+            }
+
+            sampler = createdSampler;
+
+            degrader = degrade ? new AccessLogDegrader(formatBudget, degradeUtilization,
+                    TimeUnit.MILLISECONDS.toNanos(degradeInterval), loggerName != null ? loggerName : file,
+                    containerLog) : null;
+
+            if (traceThreshold > 0) {
+                traceBackend = startBackend(traceName);
+            }
+
+            if (async) {
+                ringBuffer = new AccessLogRingBuffer(asyncCapacity);
+                consumersRunning = true;
+                consumerThreads = new Thread[asyncConsumers];
+                for (int i = 0; i < consumerThreads.length; i++) {
+                    consumerThreads[i] = new Thread(new AsyncConsumer(),
+                            "Log4JAccessLogValve[" + loggerName + "]-" + i);
+                    consumerThreads[i].setDaemon(true);
+                    consumerThreads[i].start();
+                }
+            }
+        } catch (Throwable e) {
+            rollback(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Release what a failed start already opened, started or registered, so no file, thread or MBean outlives it.
+     */
+    private void rollback(final Throwable cause) {
+        try {
+            afterStop();
+        } catch (Throwable e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Let the async consumers drain whatever is left in the ring buffer and wait for them to finish, then close the
+     * file.
+     */
+    @Override
+    protected void afterStop() throws LifecycleException {
+
+        degrader = null;
+
+        requestMetrics = null;
+        if (metricsName != null) {
+            unregisterMBean(metricsName);
+            metricsName = null;
+        }
+
+        if (consumerThreads != null) {
+            consumersRunning = false;
+            for (Thread thread : consumerThreads) {
+                LockSupport.unpark(thread);
+            }
+            for (Thread thread : consumerThreads) {
+                if (thread == null) {
+                    // a failed start did not get to it
+                    break;
+                }
+                try {
+                    thread.join(CONSUMER_STOP_TIMEOUT);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            reportDropped();
+
+            consumerThreads = null;
+            ringBuffer = null;
+        }
+
+        AccessLogBackend lines = logBackend;
+        AccessLogBackend[] backends = outputBackends;
+        if (backends != null) {
+            outputBackends = null;
+            for (AccessLogBackend output : backends) {
+                // null when a failed start did not get to it
+                if (output != null && output != lines) {
+                    output.stop();
+                }
+            }
+        }
+        if (lines != null) {
+            logBackend = null;
+            lines.stop();
+        }
+        AccessLogBackend traces = traceBackend;
+        if (traces != null) {
+            traceBackend = null;
+            traces.stop();
+        }
+
+        BinaryAccessLogWriter writer = binaryWriter;
+        if (writer != null) {
+            binaryWriter = null;
+            try {
+                writer.close();
+            } catch (IOException e) {
+                throw new LifecycleException("Log4jAccessLogValve: cannot close " + file, e);
+            }
+        }
+
+        FileAccessLogSink sink = fileSink;
+        if (sink != null) {
+            fileSink = null;
+            sink.close();
+        }
+
+        HostNameCache cache = hostNames;
+        if (cache != null) {
+            hostNames = null;
+            cache.close();
+        }
+
+        pipelineStats = null;
+        if (statsName != null) {
+            unregisterMBean(statsName);
+            statsName = null;
+        }
+    }
+
+    /**
+     * Build the elements, and what is compiled from them, from the pattern, the fields, the outputs and the output
+     * format when the valve starts.
+     *
+     * @throws IllegalArgumentException
+     *         if the fields or the filter of an output are not valid
+     */
+    protected void configure() {
+        StructuredFormat structured = createStructuredFormat();
+        AccessLogOutputs fanOut = null;
+        AccessLogElement[] elements = null;
+        if (binary) {
+            elements = createBinaryElements();
+        } else if (structured != null) {
+            elements = structured.elements();
+        } else if (!outputDefinitions.isEmpty()) {
+            fanOut = createOutputs();
+            elements = fanOut.elements();
+        } else if (pattern != null) {
+            elements = createLogElements();
+        }
+        AccessLogElement[] fallback = null;
+        if (elements != null && !binary && structured == null && fanOut == null && fallbackPattern != null
+                && fallbackPattern.length() > 0) {
+            fallback = createFallbackElements();
+        }
+        logElements = elements;
+        structuredFormat = structured;
+        outputs = fanOut;
+        compiledPattern = compilePattern && elements != null ? new CompiledPattern(elements) : null;
+        fallbackElements = fallback;
+        fallbackCompiled = compilePattern && fallback != null ? new CompiledPattern(fallback) : null;
+    }
 
-            if (logElements == null || condition != null && null != request.getRequest().getAttribute(condition)) {
-                return;
-            }
+    /**
+     * Compile the filter expression together with the condition, when the valve starts.
+     *
+     * @throws IllegalArgumentException
+     *         if the filter expression is not valid
+     */
+    protected void compileFilter() {
+        AccessLogFilter compiled = null;
+        if (filter != null && filter.trim().length() > 0) {
+            compiled = new AccessLogFilter(filter);
+        }
+        if (condition != null) {
+            compiled = AccessLogFilter.unlessAttribute(condition, compiled);
+        }
+        requestFilter = compiled;
+    }
+
+    /**
+     * parse pattern string and create the array of AccessLogElement
+     */
+    protected AccessLogElement[] createLogElements() {
+
+        List<AccessLogElement> list = new ArrayList<AccessLogElement>();
+        parsePattern(pattern, list);
+        return list.toArray(new AccessLogElement[0]);
+    }
+
+    /**
+     * parse the fallback pattern and create the array of AccessLogElement
+     */
+    protected AccessLogElement[] createFallbackElements() {
 
-            Date date = getDate();
-            StringBuffer result = new StringBuffer();
+        List<AccessLogElement> list = new ArrayList<AccessLogElement>();
+        parsePattern(fallbackPattern, list);
+        return list.toArray(new AccessLogElement[0]);
+    }
 
-            for (AccessLogElement logElement : logElements) {
-                logElement.addElement(result, date, request, response, time);
+    /**
+     * parse the valve's own pattern and the pattern of every output defined into the outputs, sharing the elements
+     * the patterns have in common
+     */
+    protected AccessLogOutputs createOutputs() {
+
+        Map<String, AccessLogElement> shared = new LinkedHashMap<String, AccessLogElement>();
+        List<String> names = new ArrayList<String>();
+        List<String> loggers = new ArrayList<String>();
+        List<AccessLogElement[]> formats = new ArrayList<AccessLogElement[]>();
+        List<AccessLogFilter> filters = new ArrayList<AccessLogFilter>();
+
+        // the valve's own pattern comes first, logged to its own logger
+        if (pattern != null && pattern.length() > 0) {
+            List<AccessLogElement> list = new ArrayList<AccessLogElement>();
+            parsePattern(pattern, list, shared);
+            names.add("");
+            loggers.add(null);
+            formats.add(list.toArray(new AccessLogElement[list.size()]));
+            filters.add(null);
+        }
+        for (AccessLogOutputs.Definition definition : outputDefinitions.values()) {
+            if (definition.pattern == null) {
+                // not complete yet, checked on start
+                continue;
             }
+            List<AccessLogElement> list = new ArrayList<AccessLogElement>();
+            parsePattern(definition.pattern, list, shared);
+            names.add(definition.name);
+            loggers.add(definition.loggerName != null ? definition.loggerName.trim() : "");
+            formats.add(list.toArray(new AccessLogElement[list.size()]));
+            filters.add(definition.filter != null && definition.filter.trim().length() > 0
+                    ? new AccessLogFilter(definition.filter) : null);
+        }
 
-            log(result.toString());
+        return new AccessLogOutputs(shared.values().toArray(new AccessLogElement[shared.size()]),
+                names.toArray(new String[names.size()]), loggers.toArray(new String[loggers.size()]),
+                formats.toArray(new AccessLogElement[formats.size()][]),
+                filters.toArray(new AccessLogFilter[filters.size()]), compilePattern);
+    }
 
-        } else {
+    /**
+     * create the fixed elements capturing what {@link BinaryAccessLogWriter} writes
+     */
+    protected AccessLogElement[] createBinaryElements() {
+
+        AccessLogElement[] elements = new AccessLogElement[BinaryAccessLogWriter.USER_AGENT + 1];
+        elements[0] = new HostElement();
+        elements[1] = new UserElement();
+        elements[2] = new RequestElement();
+        elements[3] = new HttpStatusCodeElement();
+        elements[4] = new ByteSentElement(false);
+        elements[BinaryAccessLogWriter.REFERER] = new HeaderElement("Referer", BinaryAccessLogWriter.REFERER);
+        elements[BinaryAccessLogWriter.USER_AGENT] = new HeaderElement("User-Agent", BinaryAccessLogWriter.USER_AGENT);
+        return elements;
+    }
 
-            if (getNext() != null) {
-                getNext().invoke(request, response);
+    /**
+     * parse the fields string and create the structured format writing them, or null if the output format is text
+     */
+    protected StructuredFormat createStructuredFormat() {
+
+        if (outputFormat == null || fields == null) {
+            return null;
+        }
+
+        List<String> names = new ArrayList<String>();
+        List<AccessLogElement> list = new ArrayList<AccessLogElement>();
+        List<Integer> offsets = new ArrayList<Integer>();
+        List<Boolean> numeric = new ArrayList<Boolean>();
+
+        for (String field : splitFields(fields)) {
+            int eq = field.indexOf('=');
+            String name = eq > 0 ? field.substring(0, eq).trim() : "";
+            if (name.length() == 0) {
+                throw new IllegalArgumentException("Log4jAccessLogValve: field without name: " + field);
             }
+            names.add(name);
+            int offset = list.size();
+            offsets.add(Integer.valueOf(offset));
+            parsePattern(field.substring(eq + 1).trim(), list);
+            numeric.add(Boolean.valueOf(list.size() == offset + 1 && isNumeric(list.get(offset))));
+        }
+        offsets.add(Integer.valueOf(list.size()));
+
+        int[] offsetArray = new int[offsets.size()];
+        for (int i = 0; i < offsetArray.length; i++) {
+            offsetArray[i] = offsets.get(i).intValue();
         }
+        boolean[] numericArray = new boolean[numeric.size()];
+        for (int i = 0; i < numericArray.length; i++) {
+            numericArray[i] = numeric.get(i).booleanValue();
+        }
+        return new StructuredFormat(outputFormat, names.toArray(new String[names.size()]),
+                list.toArray(new AccessLogElement[list.size()]), offsetArray, numericArray);
     }
 
     /**
-     * Set the ServletRequest.attribute to look for to perform
-     * conditional logging. Set to null to log everything.
+     * Copy what the elements need from the request and response into the entry.
      *
-     * @param condition
-     *        Set to null to log everything
+     * @param startTime
+     *        when the request entered this valve, in milliseconds since the epoch
+     * @param elapsed
+     *        time the rest of the pipeline took, in nanoseconds
+     * @param weight
+     *        the number of requests the line stands for
      */
-    public void setCondition(final String condition) {
-        this.condition = condition;
+    protected void capture(final AccessLogEntry entry, final AccessLogElement[] elements, final Request request,
+                           final Response response, final long startTime, final long elapsed, final long weight) {
+        entry.prepare(elements);
+        entry.startTime = startTime;
+        entry.endTime = startTime + TimeUnit.NANOSECONDS.toMillis(elapsed);
+        entry.elapsed = elapsed;
+        entry.sampleWeight = weight;
+        entry.hasRequest = request != null;
+        entry.hasResponse = response != null;
+        AccessLogStats stats = pipelineStats;
+        long begin = stats != null ? System.nanoTime() : 0;
+        CompiledPattern compiled = compiledFor(elements);
+        CaptureContext context = entry.context;
+        context.reset(request, response, requestAttributesEnabled);
+        try {
+            if (compiled != null) {
+                // the protocol may come from a request attribute rather than the raw request line
+                compiled.capture(entry, context, fileSink != null && structuredFormat == null
+                        && !requestAttributesEnabled);
+            } else {
+                for (AccessLogElement logElement : elements) {
+                    logElement.capture(entry, context);
+                }
+            }
+        } finally {
+            context.clear();
+        }
+        if (stats != null) {
+            stats.add(AccessLogStats.CAPTURE_TIME, System.nanoTime() - begin);
+            stats.add(AccessLogStats.CAPTURED, 1);
+        }
     }
 
     /**
-     * @param enabled
-     *        The enabled to set.
+     * Write the line for a captured entry into the buffer.
      */
-    public void setEnabled(final boolean enabled) {
-        this.enabled = enabled;
+    protected void format(final LineBuffer buf, final AccessLogEntry entry) {
+        StructuredFormat structured = structuredFormat;
+        if (structured != null && structured.elements() == entry.elements) {
+            structured.format(buf, entry);
+            return;
+        }
+        CompiledPattern compiled = compiledFor(entry.elements);
+        if (compiled != null) {
+            compiled.format(buf, entry);
+            return;
+        }
+        for (AccessLogElement logElement : entry.elements) {
+            logElement.addElement(buf, entry);
+        }
     }
 
-    public void setLoggerName(final String loggerName) {
-        this.loggerName = loggerName;
+    /**
+     * Log the specified message to the backend at the INFO level.
+     *
+     * @param message
+     *        Message to be logged, only read during the call
+     */
+    protected void log(final CharSequence message) {
+
+        AccessLogBackend lines = logBackend;
+        if (lines != null && lines.isEnabled()) {
+            lines.log(message);
+        }
     }
 
     /**
-     * Set the format pattern, first translating any recognized alias.
+     * Write a captured entry out, as a binary record when the binary writer is open, otherwise as a line written to
+     * the file sink or logged to log4j.
+     */
+    private void write(final LineBuffer buf, final AccessLogEntry entry) {
+        AccessLogStats stats = pipelineStats;
+        long begin = stats != null ? System.nanoTime() : 0;
+
+        BinaryAccessLogWriter writer = binaryWriter;
+        FileAccessLogSink sink = fileSink;
+        CompiledPattern compiled = compiledFor(entry.elements);
+        AccessLogOutputs fanOut = outputs;
+        AccessLogBackend[] backends = outputBackends;
+        if (fanOut != null && backends != null && fanOut.elements() == entry.elements) {
+            for (int i = 0; i < backends.length; i++) {
+                if ((entry.outputs & 1L << i) == 0 || !backends[i].isEnabled()) {
+                    continue;
+                }
+                fanOut.format(i, buf, entry);
+                if (stats != null) {
+                    long formatted = System.nanoTime();
+                    stats.add(AccessLogStats.FORMAT_TIME, formatted - begin);
+                    stats.add(AccessLogStats.FORMATTED, 1);
+                    stats.lineLength(buf.length());
+                    begin = formatted;
+                }
+                backends[i].log(buf);
+                recycle(buf);
+                if (stats != null) {
+                    long logged = System.nanoTime();
+                    stats.add(AccessLogStats.LOG_TIME, logged - begin);
+                    begin = logged;
+                }
+            }
+        } else if (writer != null && binary) {
+            writer.write(entry);
+        } else if (sink != null && compiled != null && structuredFormat == null) {
+            ByteLineBuffer bytes = localBytes.get();
+            compiled.formatBytes(bytes, buf, entry);
+            if (stats != null) {
+                long formatted = System.nanoTime();
+                stats.add(AccessLogStats.FORMAT_TIME, formatted - begin);
+                stats.add(AccessLogStats.FORMATTED, 1);
+                stats.lineLength(bytes.length());
+                begin = formatted;
+            }
+            sink.write(bytes);
+            bytes.recycle();
+        } else {
+            format(buf, entry);
+            if (stats != null) {
+                long formatted = System.nanoTime();
+                stats.add(AccessLogStats.FORMAT_TIME, formatted - begin);
+                stats.add(AccessLogStats.FORMATTED, 1);
+                stats.lineLength(buf.length());
+                begin = formatted;
+            }
+            if (sink != null) {
+                sink.write(buf);
+            } else {
+                log(buf);
+            }
+            recycle(buf);
+        }
+
+        if (stats != null) {
+            stats.add(AccessLogStats.LOG_TIME, System.nanoTime() - begin);
+            stats.add(AccessLogStats.LOGGED, 1);
+        }
+    }
+
+    /**
+     * Log a request the rest of the pipeline is done with.
      *
-     * @param pattern
-     *        The new pattern
+     * @param startTime
+     *        when the request entered this valve, in milliseconds since the epoch
+     * @param elapsed
+     *        time the rest of the pipeline, and for an async request the async processing, took, in nanoseconds
      */
-    public void setPattern(String pattern) {
-        if (pattern == null) {
-            pattern = "";
+    private void logRequest(final Request request, final Response response, final long startTime,
+                            final long elapsed) {
+
+        AccessLogMetrics metrics = requestMetrics;
+        if (metrics != null) {
+            metrics.record(request, response.getStatus(), elapsed);
         }
-        if (pattern.equals(Constants.AccessLog.COMMON_ALIAS)) {
-            pattern = Constants.AccessLog.COMMON_PATTERN;
+
+        AccessLogDegrader degrader = this.degrader;
+        boolean fallback = degrader != null && degrader.degraded();
+        AccessLogElement[] elements = fallback ? fallbackElements : logElements;
+        if (elements == null) {
+            return;
         }
-        if (pattern.equals(Constants.AccessLog.COMBINED_ALIAS)) {
-            pattern = Constants.AccessLog.COMBINED_PATTERN;
+        AccessLogStats stats = pipelineStats;
+        AccessLogFilter requestFilter = this.requestFilter;
+        if (requestFilter != null && !requestFilter.accept(request, response, elapsed)) {
+            if (stats != null) {
+                stats.add(AccessLogStats.FILTERED, 1);
+            }
+            return;
+        }
+        long accepted = -1L;
+        AccessLogOutputs fanOut = outputs;
+        if (fanOut != null && fanOut.elements() == elements) {
+            accepted = fanOut.accept(request, response, elapsed);
+            if (accepted == 0) {
+                if (stats != null) {
+                    stats.add(AccessLogStats.FILTERED, 1);
+                }
+                return;
+            }
+        }
+
+        long weight = 1;
+        AccessLogSampler sampler = this.sampler;
+        if (sampler != null) {
+            weight = sampler.sample(response.getStatus(), request.getRequestURI(), elapsed,
+                    startTime + TimeUnit.NANOSECONDS.toMillis(elapsed));
+            if (weight == 0) {
+                if (stats != null) {
+                    stats.add(AccessLogStats.SAMPLED_OUT, 1);
+                }
+                return;
+            }
+        }
+
+        long begin = degrader != null ? System.nanoTime() : 0;
+        AccessLogRingBuffer ring = ringBuffer;
+        if (ring != null) {
+            long pos = claim(ring);
+            if (pos >= 0) {
+                AccessLogEntry slot = ring.get(pos);
+                capture(slot, elements, request, response, startTime, elapsed, weight);
+                slot.outputs = accepted;
+                ring.publish(pos);
+            } else if (stats != null) {
+                stats.add(AccessLogStats.DROPPED, 1);
+            }
+        } else {
+            AccessLogEntry entry = localEntry.get();
+            capture(entry, elements, request, response, startTime, elapsed, weight);
+            entry.outputs = accepted;
+            try {
+                write(localBuffer.get(), entry);
+            } finally {
+                entry.clear();
+            }
+        }
+
+        if (degrader != null) {
+            long end = System.nanoTime();
+            degrader.record(end - begin, fallback, end, request);
         }
-        this.pattern = pattern;
-        logElements = createLogElements();
     }
 
-    @Override
-    protected void afterStart() throws LifecycleException {
+    /**
+     * Log the trace of a request that took the trace threshold or longer.
+     *
+     * @param finished
+     *        when the response was finished or the async request completed, in <code>nanoTime</code>
+     */
+    private void logTrace(final RequestTrace trace, final Request request, final Response response,
+                          final long finished) {
+        AccessLogBackend traces = traceBackend;
+        if (traces == null || !traces.isEnabled()
+                || finished - trace.start < TimeUnit.MILLISECONDS.toNanos(traceThreshold)) {
+            return;
+        }
+        LineBuffer buf = localBuffer.get();
+        trace.format(buf, request, response, finished, workerThreadName(request));
+        traces.log(buf);
+        recycle(buf);
+    }
+
+    /**
+     * @return the name of the connector thread processing the request, the current thread's when unknown
+     */
+    private static String workerThreadName(final Request request) {
+        org.apache.coyote.Request coyoteRequest = request != null ? request.getCoyoteRequest() : null;
+        org.apache.coyote.RequestInfo info = coyoteRequest != null ? coyoteRequest.getRequestProcessor() : null;
+        String name = info != null ? info.getWorkerThreadName() : null;
+        return name != null ? name : Thread.currentThread().getName();
+    }
+
+    /**
+     * @return the compiled pattern, or compiled fallback pattern, the elements are those of, null when none is
+     */
+    private CompiledPattern compiledFor(final AccessLogElement[] elements) {
+        CompiledPattern compiled = compiledPattern;
+        if (compiled != null && compiled.elements() == elements) {
+            return compiled;
+        }
+        compiled = fallbackCompiled;
+        return compiled != null && compiled.elements() == elements ? compiled : null;
+    }
 
-        // Initialize the timeZone, Date formatters, and currentDate
-        timezone = TimeZone.getDefault();
-        timeZoneNoDST = calculateTimeZoneOffset(timezone.getRawOffset());
+    /**
+     * @return the async ring buffer, null unless running in async mode
+     */
+    AccessLogRingBuffer ringBuffer() {
+        return ringBuffer;
+    }
 
-        int offset = timezone.getDSTSavings();
-        timeZoneDST = calculateTimeZoneOffset(timezone.getRawOffset() + offset);
+    /**
+     * @return the degrader, null unless started with a fallback pattern
+     */
+    AccessLogDegrader degrader() {
+        return degrader;
+    }
 
-        dayFormatter = new SimpleDateFormat("dd");
-        dayFormatter.setTimeZone(timezone);
-        monthFormatter = new SimpleDateFormat("MM");
-        monthFormatter.setTimeZone(timezone);
-        yearFormatter = new SimpleDateFormat("yyyy");
-        yearFormatter.setTimeZone(timezone);
-        timeFormatter = new SimpleDateFormat("HH:mm:ss");
-        timeFormatter.setTimeZone(timezone);
+    /**
+     * @return the file sink, null unless writing text to a file
+     */
+    FileAccessLogSink fileSink() {
+        return fileSink;
+    }
 
-        currentDate = new Date();
+    /**
+     * @return the batcher, null unless logging to log4j in batches
+     */
+    AccessLogBatcher batcher() {
+        AccessLogBackend lines = logBackend;
+        return lines instanceof Log4jBackend ? ((Log4jBackend) lines).batcher() : null;
+    }
 
-        // create the logger
-        if (loggerName == null || loggerName.length() == 0) {
-            throw new LifecycleException("Log4jAccessLogValve: no logger name set");
+    /**
+     * @return a new backend of the configured kind, started for the given logger
+     */
+    private AccessLogBackend startBackend(final String name) throws LifecycleException {
+        AccessLogBackend created = createBackend();
+        try {
+            created.start(name);
+        } catch (RuntimeException e) {
+            throw new LifecycleException("Log4jAccessLogValve: cannot start the " + backend + " backend for "
+                    + name, e);
         }
+        return created;
+    }
 
-        logger = Logger.getLogger(loggerName);
+    /**
+     * The Log4j 2 backend and custom ones are loaded by name, so their dependencies are only needed when selected.
+     *
+     * @return a new backend of the configured kind
+     */
+    private AccessLogBackend createBackend() throws LifecycleException {
+        String name = backend == null ? "log4j" : backend.trim();
+        if ("log4j".equalsIgnoreCase(name)) {
+            return new Log4jBackend(batchSize, batchLinger);
+        }
+        if ("log4j2".equalsIgnoreCase(name)) {
+            name = Log4j2Backend.class.getName();
+        }
+        try {
+            return Class.forName(name).asSubclass(AccessLogBackend.class).getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException e) {
+            throw new LifecycleException("Log4jAccessLogValve: backend class not found " + name, e);
+        } catch (ClassCastException e) {
+            throw new LifecycleException("Log4jAccessLogValve: " + name + " is not an AccessLogBackend", e);
+        } catch (LinkageError e) {
+            throw new LifecycleException("Log4jAccessLogValve: cannot load backend " + name, e);
+        } catch (NoSuchMethodException e) {
+            throw new LifecycleException("Log4jAccessLogValve: backend " + name + " has no no-argument constructor", e);
+        } catch (InvocationTargetException e) {
+            // what the constructor threw, checked or not
+            throw new LifecycleException("Log4jAccessLogValve: cannot create backend " + name, e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new LifecycleException("Log4jAccessLogValve: cannot create backend " + name, e);
+        }
     }
 
     /**
-     * parse pattern string and create the array of AccessLogElement
+     * @return a new line buffer sized for the lines this valve has been writing
      */
-    protected AccessLogElement[] createLogElements() {
+    private LineBuffer newLineBuffer() {
+        return new LineBuffer(averageLineLength << 1);
+    }
+
+    /**
+     * Empty a line buffer once its line has been logged, now and then publishing its running average line length so
+     * buffers created later start out at the right size.
+     */
+    private void recycle(final LineBuffer buf) {
+        buf.recycle();
+        if ((buf.lines() & LINE_LENGTH_SAMPLE_MASK) == 0) {
+            averageLineLength = buf.averageLength();
+        }
+    }
+
+    /**
+     * Claim a slot in the async ring buffer, applying the overflow policy when it is full.
+     *
+     * @return the claimed position, or -1 if the line has to be dropped
+     */
+    private long claim(final AccessLogRingBuffer ring) {
+        long pos = ring.claim();
+        while (pos < 0) {
+            switch(asyncOverflowPolicy) {
+                case BLOCK :
+                    if (!consumersRunning) {
+                        return -1;
+                    }
+                    LockSupport.parkNanos(PRODUCER_WAIT_NANOS);
+                    break;
+                case COUNT :
+                    droppedCount.incrementAndGet();
+                    return -1;
+                default:
+                    return -1;
+            }
+            pos = ring.claim();
+        }
+        return pos;
+    }
+
+    /**
+     * parse a pattern string and add its AccessLogElements to the list
+     */
+    private void parsePattern(final String pattern, final List<AccessLogElement> list) {
+        parsePattern(pattern, list, null);
+    }
+
+    /**
+     * parse a pattern string and add its AccessLogElements to the list, taking the elements from the shared ones
+     * when given, so several patterns parsed with the same map share an element wherever they have the same text
+     */
+    private void parsePattern(final String pattern, final List<AccessLogElement> list,
+                              final Map<String, AccessLogElement> shared) {
 
-        List<AccessLogElement> list = new ArrayList<AccessLogElement>();
         boolean replace = false;
         StringBuffer buf = new StringBuffer();
 
@@ -771,21 +2832,23 @@ public final class Log4JAccessLogValve extends BaseValve {
                     if (j + 1 < pattern.length()) {
                         /* the +1 was to account for } which we increment now */
                         j++;
-                        list.add(createAccessLogElement(name.toString(), pattern.charAt(j)));
+                        list.add(createAccessLogElement(name.toString(), pattern.charAt(j), list.size(), shared));
                         i = j; /* Since we walked more than one character */
                     } else {
                         // D'oh - end of string - pretend we never did this
                         // and do processing the "old way"
-                        list.add(createAccessLogElement(ch));
+                        list.add(createAccessLogElement(null, ch, list.size(), shared));
                     }
                 } else {
-                    list.add(createAccessLogElement(ch));
+                    list.add(createAccessLogElement(null, ch, list.size(), shared));
                 }
                 replace = false;
             } else if (ch == '%') {
                 replace = true;
-                list.add(new StringElement(buf.toString()));
-                buf = new StringBuffer();
+                if (buf.length() > 0) {
+                    list.add(new StringElement(buf.toString()));
+                    buf = new StringBuffer();
+                }
             } else {
                 buf.append(ch);
             }
@@ -794,46 +2857,51 @@ public final class Log4JAccessLogValve extends BaseValve {
         if (buf.length() > 0) {
             list.add(new StringElement(buf.toString()));
         }
-
-        return list.toArray(new AccessLogElement[0]);
     }
 
     /**
-     * Log the specified message to log4j at the INFO level.
-     *
-     * @param message
-     *        Message to be logged
+     * Is this element always written as a number (or '-' when there is none)?
      */
-    protected void log(final String message) {
-
-        if (logger.isInfoEnabled()) {
-            logger.info(message);
+    private boolean isNumeric(final AccessLogElement element) {
+        if (element instanceof DateAndTimeElement) {
+            // msec_frac keeps its leading zeros, which JSON numbers cannot have, so it is written as a string
+            int type = ((DateAndTimeElement) element).type;
+            return type == DateAndTimeElement.SEC || type == DateAndTimeElement.MSEC;
         }
-    }
-
-    private String calculateTimeZoneOffset(long offset) {
-        StringBuffer tz = new StringBuffer();
-        if (offset < 0) {
-            tz.append("-");
-            offset = -offset;
-        } else {
-            tz.append("+");
+        if (element instanceof ByteSentElement) {
+            return !((ByteSentElement) element).conversion;
         }
+        return element instanceof HttpStatusCodeElement || element instanceof ElapsedTimeElement
+                || element instanceof CommitTimeElement || element instanceof LocalPortElement
+                || element instanceof SampleWeightElement;
+    }
 
-        long hourOffset = offset / (1000 * 60 * 60);
-        long minuteOffset = offset / (1000 * 60) % 60;
-
-        if (hourOffset < 10) {
-            tz.append("0");
+    /**
+     * Split the fields string at the commas that are not inside %{...}.
+     */
+    private static List<String> splitFields(final String fields) {
+        List<String> result = new ArrayList<String>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < fields.length(); i++) {
+            char ch = fields.charAt(i);
+            if (ch == '{') {
+                depth++;
+            } else if (ch == '}' && depth > 0) {
+                depth--;
+            } else if (ch == ',' && depth == 0) {
+                addField(result, fields.substring(start, i));
+                start = i + 1;
+            }
         }
-        tz.append(hourOffset);
+        addField(result, fields.substring(start));
+        return result;
+    }
 
-        if (minuteOffset < 10) {
-            tz.append("0");
+    private static void addField(final List<String> result, final String field) {
+        if (field.trim().length() > 0) {
+            result.add(field.trim());
         }
-        tz.append(minuteOffset);
-
-        return tz.toString();
     }
 
     /**
@@ -851,6 +2919,8 @@ public final class Log4JAccessLogValve extends BaseValve {
                 return new ByteSentElement(false);
             case 'D' :
                 return new ElapsedTimeElement(true);
+            case 'F' :
+                return new CommitTimeElement();
             case 'h' :
                 return new HostElement();
             case 'H' :
@@ -879,6 +2949,8 @@ public final class Log4JAccessLogValve extends BaseValve {
                 return new RequestURIElement();
             case 'v' :
                 return new LocalServerNameElement();
+            case 'W' :
+                return new SampleWeightElement();
             case 'I' :
                 return new ThreadNameElement();
             default:
@@ -887,73 +2959,216 @@ public final class Log4JAccessLogValve extends BaseValve {
     }
 
     /**
-     * create an AccessLogElement implementation which needs header string
+     * create an AccessLogElement implementation which needs header string, index is the position of the element
+     * and so the slot of its captured value
      */
-    private AccessLogElement createAccessLogElement(final String header, final char pattern) {
+    private AccessLogElement createAccessLogElement(final String header, final char pattern, final int index) {
         switch(pattern) {
             case 'i' :
-                return new HeaderElement(header);
+                return new HeaderElement(header, index);
+            case 't' :
+                return new DateAndTimeElement(header);
+            case 'T' :
+                if ("ms".equals(header)) {
+                    return new ElapsedTimeElement(TimeUnit.MILLISECONDS);
+                } else if ("us".equals(header)) {
+                    return new ElapsedTimeElement(TimeUnit.MICROSECONDS);
+                } else if ("ns".equals(header)) {
+                    return new ElapsedTimeElement(TimeUnit.NANOSECONDS);
+                }
+                return new ElapsedTimeElement(false);
             case 'c' :
-                return new CookieElement(header);
+                return new CookieElement(header, index);
             case 'o' :
-                return new ResponseHeaderElement(header);
+                return new ResponseHeaderElement(header, index);
             case 'r' :
-                return new RequestAttributeElement(header);
+                return new RequestAttributeElement(header, index);
             case 's' :
-                return new SessionAttributeElement(header);
+                return new SessionAttributeElement(header, index);
             default:
                 return new StringElement("???");
         }
     }
 
     /**
-     * This method returns a Date object that is accurate to within one second.
-     * If a thread calls this method to get a Date and it's been less than 1
-     * second since a new Date was created, this method simply gives out the
-     * same Date again so that the system doesn't spend time creating Date
-     * objects unnecessarily.
-     *
-     * @return Date
+     * create the element for %x, or for %{header}x when a header is given, reusing the one created before for the
+     * same text when elements are shared; a shared element gets the next free value slot rather than its position
      */
-    private Date getDate() {
+    private AccessLogElement createAccessLogElement(final String header, final char pattern, final int index,
+                                                    final Map<String, AccessLogElement> shared) {
+        if (shared == null) {
+            return header == null ? createAccessLogElement(pattern) : createAccessLogElement(header, pattern, index);
+        }
+        String key = header == null ? "%" + pattern : "%{" + header + "}" + pattern;
+        AccessLogElement element = shared.get(key);
+        if (element == null) {
+            element = header == null ? createAccessLogElement(pattern)
+                    : createAccessLogElement(header, pattern, shared.size());
+            shared.put(key, element);
+        }
+        return element;
+    }
 
-        // Only create a new Date once per second, max.
-        long systime = System.currentTimeMillis();
-        if (systime - currentMillis > 1000) {
-            synchronized (this) {
-                if (systime - currentMillis > 1000) {
-                    currentDate = new Date(systime);
-                    currentMillis = systime;
-                }
+    /**
+     * @return the pattern an alias such as <code>common</code> stands for, or the pattern itself
+     */
+    private static String translateAlias(final String pattern) {
+        if (pattern == null) {
+            return "";
+        }
+        if (pattern.equals(Constants.AccessLog.COMMON_ALIAS)) {
+            return Constants.AccessLog.COMMON_PATTERN;
+        }
+        if (pattern.equals(Constants.AccessLog.COMBINED_ALIAS)) {
+            return Constants.AccessLog.COMBINED_PATTERN;
+        }
+        return pattern;
+    }
+
+    /**
+     * Register an MBean of this valve with the platform MBean server, named after the domain of the container, the
+     * type, the host, context and sequence number the valve itself is registered with, and the logger name or file of
+     * the valve. A name already taken by another valve fails the start rather than taking the name over.
+     */
+    private ObjectName registerMBean(final String type, final Object mbean) throws LifecycleException {
+        String domain = getContainer() != null ? getDomain() : null;
+        String name = loggerName != null ? loggerName : file;
+        try {
+            Hashtable<String, String> properties = new Hashtable<String, String>();
+            if (getContainer() != null) {
+                // host=, context=, seq= as the valve's own MBean has them
+                properties.putAll(new ObjectName("Catalina:" + getObjectNameKeyProperties()).getKeyPropertyList());
+            }
+            properties.put("type", type);
+            properties.put("name", ObjectName.quote(String.valueOf(name)));
+            ObjectName objectName = new ObjectName(domain != null ? domain : "Catalina", properties);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                throw new LifecycleException("Log4jAccessLogValve: " + objectName + " is already registered, by "
+                        + "another valve logging to " + name + " in the same container");
+            }
+            server.registerMBean(mbean, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new LifecycleException("Log4jAccessLogValve: cannot register " + type + " MBean", e);
+        }
+    }
+
+    private void unregisterMBean(final ObjectName objectName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            if (containerLog != null) {
+                containerLog.warn("Log4jAccessLogValve: cannot unregister " + objectName, e);
             }
         }
+    }
 
-        return currentDate;
+    /**
+     * Write the number of dropped lines to the container log, if any were dropped since the last report.
+     */
+    private void reportDropped() {
+        long dropped = droppedCount.get();
+        if (dropped != reportedDropped) {
+            if (containerLog != null) {
+                containerLog.warn("Log4jAccessLogValve: " + (dropped - reportedDropped)
+                        + " access log lines dropped because the async buffer was full, " + dropped + " in total");
+            }
+            reportedDropped = dropped;
+        }
     }
 
-    private String getTimeZone(final Date date) {
+    /**
+     * Logs a Servlet 3 async request once it completes, when the status and the bytes sent are final, and with the
+     * time it really took. The listener itself holds the start of the request; it carries over to every new async
+     * cycle of the request.
+     */
+    private class AsyncCompletion implements AsyncListener {
+
+        private final Request request;
+
+        private final Response response;
+
+        private final long startTime;
+
+        private final long start;
+
+        /**
+         * The trace of the request up to when it went async, null when not tracing.
+         */
+        private final RequestTrace trace;
+
+        AsyncCompletion(final Request request, final Response response, final long startTime, final long start,
+                        final RequestTrace trace) {
+            this.request = request;
+            this.response = response;
+            this.startTime = startTime;
+            this.start = start;
+            this.trace = trace;
+        }
+
+        public void onComplete(final AsyncEvent event) {
+            if (started) {
+                long completed = System.nanoTime();
+                logRequest(request, response, startTime, completed - start);
+                if (trace != null) {
+                    logTrace(trace, request, response, completed);
+                }
+            }
+        }
+
+        public void onTimeout(final AsyncEvent event) {
+            // the container completes the request next
+        }
 
-        if (timezone.inDaylightTime(date)) {
-            return timeZoneDST;
+        public void onError(final AsyncEvent event) {
+            // the container completes the request next
         }
 
-        return timeZoneNoDST;
+        public void onStartAsync(final AsyncEvent event) {
+            // startAsync() again drops the listeners of the last cycle
+            event.getAsyncContext().addListener(this);
+        }
     }
 
     /**
-     * Return the month abbreviation for the specified month, which must
-     * be a two-digit String.
-     *
-     * @param month
-     *        Month number ("01" .. "12").
+     * Takes captured entries off the ring buffer, formats them and hands the lines to log4j until the valve is
+     * stopped and the ring buffer is empty.
      */
-    private String lookup(final String month) {
-        int index;
-        try {
-            index = Integer.parseInt(month) - 1;
-        } catch (Throwable t) {
-            index = 0; // Can not happen, in theory
+    private class AsyncConsumer implements Runnable {
+
+        public void run() {
+            LineBuffer result = newLineBuffer();
+            int idle = 0;
+            while (true) {
+                AccessLogRingBuffer ring = ringBuffer;
+                if (ring == null) {
+                    return;
+                }
+                long pos = ring.poll();
+                if (pos < 0) {
+                    if (!consumersRunning) {
+                        return;
+                    }
+                    if (++idle > CONSUMER_SPINS) {
+                        if (asyncOverflowPolicy == OverflowPolicy.COUNT) {
+                            reportDropped();
+                        }
+                        LockSupport.parkNanos(CONSUMER_PARK_NANOS);
+                    }
+                    continue;
+                }
+                idle = 0;
+
+                try {
+                    write(result, ring.get(pos));
+                } finally {
+                    ring.release(pos);
+                }
+            }
         }
-        return months[index];
     }
-}
\ No newline at end of file
+}
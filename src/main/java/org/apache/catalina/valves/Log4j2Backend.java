@@ -0,0 +1,115 @@
+package org.apache.catalina.valves;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ReusableMessage;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.spi.ExtendedLogger;
+
+/**
+ * A backend logging to Log4j 2 without creating any garbage per line.
+ * <p>
+ * Each thread logs through its own {@link LineMessage}, pointed at the valve's line buffer for the duration of the
+ * call. It is a {@link ReusableMessage}, so Log4j 2 copies the text straight from the line buffer into the
+ * <code>StringBuilder</code> of its own reused event: the ring buffer slot of an async logger, or the thread's
+ * mutable event when logging synchronously with thread locals enabled. No <code>String</code> is made for the line.
+ * An appender that keeps the event beyond the call, like <code>AsyncAppender</code>, takes a
+ * {@link LineMessage#memento() memento} instead.
+ * <p>
+ * Log4j 2 turns its thread locals off when it finds the servlet API, as it always does in Tomcat;
+ * <code>-Dlog4j2.is.webapp=false</code> turns them back on.
+ * <p>
+ * Log4j 2 is only needed on the class path when this backend is selected.
+ */
+final class Log4j2Backend implements AccessLogBackend {
+
+    private static final String FQCN = Log4JAccessLogValve.class.getName();
+
+    private final ThreadLocal<LineMessage> messages = new ThreadLocal<LineMessage>() {
+
+        @Override
+        protected LineMessage initialValue() {
+            return new LineMessage();
+        }
+    };
+
+    private ExtendedLogger logger;
+
+    public void start(final String name) {
+        logger = LogManager.getContext(false).getLogger(name);
+    }
+
+    public boolean isEnabled() {
+        return logger.isEnabled(Level.INFO);
+    }
+
+    public void log(final CharSequence line) {
+        LineMessage message = messages.get();
+        message.line = line;
+        try {
+            logger.logMessage(FQCN, Level.INFO, null, message, null);
+        } finally {
+            message.line = null;
+        }
+    }
+
+    public void stop() {
+        // nothing held back, the logger context belongs to the application
+    }
+
+    /**
+     * A message over whatever line is being logged on the owning thread.
+     */
+    static final class LineMessage implements ReusableMessage {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final Object[] NO_PARAMETERS = new Object[0];
+
+        private transient CharSequence line;
+
+        public void formatTo(final StringBuilder buffer) {
+            CharSequence text = line;
+            if (text instanceof LineBuffer) {
+                LineBuffer buf = (LineBuffer) text;
+                buffer.append(buf.array(), 0, buf.length());
+            } else {
+                buffer.append(text);
+            }
+        }
+
+        public String getFormattedMessage() {
+            return String.valueOf(line);
+        }
+
+        public String getFormat() {
+            return getFormattedMessage();
+        }
+
+        public Object[] getParameters() {
+            return NO_PARAMETERS;
+        }
+
+        public Throwable getThrowable() {
+            return null;
+        }
+
+        public Object[] swapParameters(final Object[] emptyReplacement) {
+            return emptyReplacement;
+        }
+
+        public short getParameterCount() {
+            return 0;
+        }
+
+        public Message memento() {
+            return new SimpleMessage(getFormattedMessage());
+        }
+
+        @Override
+        public String toString() {
+            return getFormattedMessage();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.apache.catalina.valves;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The default backend, logging every line to a log4j 1.2 logger, in batches from a single thread when a batch size
+ * is set, see {@link AccessLogBatcher}.
+ */
+final class Log4jBackend implements AccessLogBackend {
+
+    private final int batchSize;
+
+    private final long batchLinger;
+
+    private Logger logger;
+
+    private volatile AccessLogBatcher batcher = null;
+
+    /**
+     * @param batchSize
+     *        most lines handed to the appenders at once, 0 to log each line on the thread that finished it
+     * @param batchLinger
+     *        most milliseconds a line waits for its batch to fill
+     */
+    Log4jBackend(final int batchSize, final long batchLinger) {
+        this.batchSize = batchSize;
+        this.batchLinger = batchLinger;
+    }
+
+    public void start(final String name) {
+        logger = Logger.getLogger(name);
+        if (batchSize > 0) {
+            batcher = new AccessLogBatcher(logger, batchSize, batchLinger);
+        }
+    }
+
+    public boolean isEnabled() {
+        return logger.isInfoEnabled();
+    }
+
+    public void log(final CharSequence line) {
+        // log4j 1.2 keeps the message object in its event, it has to be a copy
+        String message = line.toString();
+        AccessLogBatcher lines = batcher;
+        if (lines != null) {
+            lines.add(message);
+        } else {
+            logger.info(message);
+        }
+    }
+
+    public void stop() {
+        AccessLogBatcher lines = batcher;
+        if (lines != null) {
+            batcher = null;
+            lines.close();
+        }
+    }
+
+    /**
+     * @return the batcher, null unless logging in batches
+     */
+    AccessLogBatcher batcher() {
+        return batcher;
+    }
+}
@@ -0,0 +1,180 @@
+package org.apache.catalina.valves;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+
+/**
+ * Where the time of one slow request went, for the deep trace of {@link Log4JAccessLogValve}.
+ * <p>
+ * Every thread has one trace, reused from one request to the next, so tracing a request only costs a thread local
+ * lookup and a few <code>nanoTime</code> reads: when it enters the valve, when the rest of the pipeline returns, when
+ * it enters and leaves each {@link AccessLogStageValve}, and when the container has finished the response. Only a
+ * request that turns out slow is written out, with the phases in microseconds:
+ * <ul>
+ * <li><code>queue_us</code> from the connector starting on the request to the valve, in milliseconds precision</li>
+ * <li><code>&lt;stage&gt;.start_us</code> from the valve to a stage, the context pipeline say</li>
+ * <li><code>&lt;stage&gt;_us</code> spent in the stage, the filters and the servlet for the context</li>
+ * <li><code>pipeline_us</code> spent in the rest of the pipeline, what the access log line reports</li>
+ * <li><code>commit_us</code> from the valve to the response being committed, in milliseconds precision</li>
+ * <li><code>finish_us</code> from the pipeline returning to the response being finished, or <code>async_us</code>
+ * to an async request completing</li>
+ * </ul>
+ */
+final class RequestTrace {
+
+    /**
+     * Most stages timed per request, any further one is ignored.
+     */
+    static final int MAX_STAGES = 8;
+
+    private static final ThreadLocal<RequestTrace> CURRENT = new ThreadLocal<RequestTrace>() {
+
+        @Override
+        protected RequestTrace initialValue() {
+            return new RequestTrace();
+        }
+    };
+
+    /**
+     * The request being traced, null once the trace is over.
+     */
+    private Request request;
+
+    /**
+     * When the request entered the valve, in milliseconds since the epoch.
+     */
+    long startTime;
+
+    /**
+     * When the request entered the valve, in <code>nanoTime</code>.
+     */
+    long start;
+
+    /**
+     * When the rest of the pipeline returned, in <code>nanoTime</code>.
+     */
+    long returned;
+
+    /**
+     * Whether the request went async, so it ends when it completes rather than when the response is finished.
+     */
+    boolean async;
+
+    private int stages;
+
+    private final String[] stageNames = new String[MAX_STAGES];
+
+    private final long[] stageEnter = new long[MAX_STAGES];
+
+    private final long[] stageExit = new long[MAX_STAGES];
+
+    /**
+     * Start tracing a request on the current thread.
+     */
+    static RequestTrace begin(final Request request, final long startTime, final long start) {
+        RequestTrace trace = CURRENT.get();
+        trace.request = request;
+        trace.startTime = startTime;
+        trace.start = start;
+        trace.returned = 0;
+        trace.async = false;
+        trace.stages = 0;
+        return trace;
+    }
+
+    /**
+     * @return the trace of the request on the current thread, null when it is not traced
+     */
+    static RequestTrace current(final Request request) {
+        RequestTrace trace = CURRENT.get();
+        return trace.request == request && request != null ? trace : null;
+    }
+
+    /**
+     * @return the index of the stage, -1 when there are too many to time
+     */
+    int enter(final String name, final long now) {
+        if (stages == MAX_STAGES) {
+            return -1;
+        }
+        stageNames[stages] = name;
+        stageEnter[stages] = now;
+        stageExit[stages] = 0;
+        return stages++;
+    }
+
+    void exit(final int stage, final long now) {
+        if (stage >= 0) {
+            stageExit[stage] = now;
+        }
+    }
+
+    /**
+     * Stop tracing, the timings are kept until the next request on this thread.
+     */
+    void end() {
+        request = null;
+    }
+
+    /**
+     * @return a trace of its own for an async request, which ends on another thread
+     */
+    RequestTrace copy() {
+        RequestTrace copy = new RequestTrace();
+        copy.startTime = startTime;
+        copy.start = start;
+        copy.returned = returned;
+        copy.async = true;
+        copy.stages = stages;
+        System.arraycopy(stageNames, 0, copy.stageNames, 0, stages);
+        System.arraycopy(stageEnter, 0, copy.stageEnter, 0, stages);
+        System.arraycopy(stageExit, 0, copy.stageExit, 0, stages);
+        return copy;
+    }
+
+    /**
+     * Write the record of a traced request.
+     *
+     * @param finished
+     *        when the response was finished or the async request completed, in <code>nanoTime</code>
+     */
+    void format(final LineBuffer buf, final Request request, final Response response, final long finished,
+                final String threadName) {
+        buf.append('"').append(request.getMethod()).append(' ').append(request.getRequestURI());
+        String query = request.getQueryString();
+        if (query != null) {
+            buf.append('?').append(query);
+        }
+        buf.append(' ').append(request.getProtocol()).append('"');
+        buf.append(" status=").append(response.getStatus());
+        buf.append(" bytes=").append(response.getContentWritten());
+        buf.append(" thread=").append(threadName);
+        buf.append(" total_us=").append(micros(finished - start));
+
+        long received = request.getCoyoteRequest() != null ? request.getCoyoteRequest().getStartTime() : 0;
+        if (received > 0 && received <= startTime) {
+            buf.append(" queue_us=").append((startTime - received) * 1000);
+        }
+        for (int i = 0; i < stages; i++) {
+            buf.append(' ').append(stageNames[i]).append(".start_us=").append(micros(stageEnter[i] - start));
+            buf.append(' ').append(stageNames[i]).append("_us=");
+            if (stageExit[i] != 0) {
+                buf.append(micros(stageExit[i] - stageEnter[i]));
+            } else {
+                buf.append('-');
+            }
+        }
+        buf.append(" pipeline_us=").append(micros(returned - start));
+        org.apache.coyote.Response coyoteResponse = response.getCoyoteResponse();
+        if (coyoteResponse != null && coyoteResponse.isCommitted() && coyoteResponse.getCommitTime() >= startTime) {
+            buf.append(" commit_us=").append((coyoteResponse.getCommitTime() - startTime) * 1000);
+        }
+        buf.append(async ? " async_us=" : " finish_us=").append(micros(finished - returned));
+    }
+
+    private static long micros(final long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
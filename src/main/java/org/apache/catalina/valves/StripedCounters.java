@@ -0,0 +1,87 @@
+package org.apache.catalina.valves;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A set of counters kept in several copies, or stripes, so that threads adding to them do not contend on the same
+ * cache lines. Each thread adds into the stripe its id picks; reading a counter adds its stripes up.
+ * <p>
+ * The stripes lie one after the other in one array, each padded with at least a cache line of unused slots and
+ * rounded up to whole cache lines, so the last counter of a stripe never shares a line with the first of the next.
+ */
+final class StripedCounters {
+
+    /**
+     * Slots per cache line.
+     */
+    private static final int LINE = 8;
+
+    private final int stride;
+
+    private final int stripeMask;
+
+    private final AtomicLongArray slots;
+
+    /**
+     * @param stripes
+     *        number of copies of the counters, a power of two
+     */
+    StripedCounters(final int counters, final int stripes) {
+        stride = stride(counters);
+        stripeMask = stripes - 1;
+        slots = new AtomicLongArray(stripes * stride);
+    }
+
+    /**
+     * @return the number of slots a stripe of the given number of counters takes, padding included
+     */
+    static int stride(final int counters) {
+        return (counters + 2 * LINE - 1) / LINE * LINE;
+    }
+
+    /**
+     * @return a number of stripes, twice the number of processors rounded down to a power of two, but at most
+     *         <code>max</code>
+     */
+    static int stripes(final int max) {
+        return Math.min(max, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+    }
+
+    /**
+     * @return where the stripe of the current thread starts, for adding several counters with
+     *         {@link #add(int, int, long)}
+     */
+    int stripe() {
+        return ((int) Thread.currentThread().getId() & stripeMask) * stride;
+    }
+
+    void add(final int counter, final long delta) {
+        slots.addAndGet(stripe() + counter, delta);
+    }
+
+    void add(final int stripe, final int counter, final long delta) {
+        slots.addAndGet(stripe + counter, delta);
+    }
+
+    long sum(final int counter) {
+        return sum(counter, false);
+    }
+
+    /**
+     * @param reset
+     *        whether to clear the counter on the way, so nothing added meanwhile is lost
+     */
+    long sum(final int counter, final boolean reset) {
+        long sum = 0;
+        for (int i = counter; i < slots.length(); i += stride) {
+            sum += reset ? slots.getAndSet(i, 0) : slots.get(i);
+        }
+        return sum;
+    }
+
+    void reset() {
+        for (int i = 0; i < slots.length(); i++) {
+            slots.set(i, 0);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package org.apache.catalina.valves;
+
+import org.apache.catalina.valves.Log4JAccessLogValve.AccessLogElement;
+
+/**
+ * Writes access log lines as JSON objects or logfmt key/value pairs from a declared list of fields, each field being
+ * formatted by ordinary {@link AccessLogElement}s.
+ * <p>
+ * The field name prefixes (<code>,"status":</code>, <code> status=</code>) are escaped once when the fields are set;
+ * logfmt has no escapes for keys, so names a logfmt parser could not read back are rejected instead.
+ * Values are written by their elements straight into the line buffer and then escaped in place in a single backwards
+ * pass, so no intermediate strings are created. Fields made of one numeric element (<code>%s</code>,
+ * <code>%B</code>, <code>%D</code>, ...) are written as bare numbers.
+ */
+final class StructuredFormat {
+
+    /**
+     * How the fields are written.
+     */
+    enum Type {
+
+        JSON,
+
+        LOGFMT
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Type type;
+
+    /**
+     * All elements of all fields, in order. These are captured like the elements of a pattern.
+     */
+    private final AccessLogElement[] elements;
+
+    /**
+     * The pre-escaped text written before each field.
+     */
+    private final char[][] prefixes;
+
+    /**
+     * For each field, the index of its first element in {@link #elements}, plus the end of the last field.
+     */
+    private final int[] offsets;
+
+    private final boolean[] numeric;
+
+    /**
+     * @param names
+     *        the field names
+     * @param offsets
+     *        for each field the index of its first element, followed by the total number of elements
+     * @param numeric
+     *        which fields are written as numbers
+     * @throws IllegalArgumentException
+     *         if a logfmt field name contains a space, '=', a quote, a backslash or a control character
+     */
+    StructuredFormat(final Type type, final String[] names, final AccessLogElement[] elements, final int[] offsets,
+                     final boolean[] numeric) {
+        this.type = type;
+        this.elements = elements;
+        this.offsets = offsets;
+        this.numeric = numeric;
+
+        prefixes = new char[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            LineBuffer prefix = new LineBuffer(0);
+            if (type == Type.JSON) {
+                prefix.append(i == 0 ? '{' : ',');
+                prefix.append('"');
+                int from = prefix.length();
+                prefix.append(names[i]);
+                escape(prefix, from, false);
+                prefix.append("\":");
+            } else {
+                checkKey(names[i]);
+                if (i > 0) {
+                    prefix.append(' ');
+                }
+                prefix.append(names[i]);
+                prefix.append('=');
+            }
+            prefixes[i] = new char[prefix.length()];
+            System.arraycopy(prefix.array(), 0, prefixes[i], 0, prefixes[i].length);
+        }
+    }
+
+    /**
+     * @return the elements of all fields, to be captured for each request
+     */
+    AccessLogElement[] elements() {
+        return elements;
+    }
+
+    void format(final LineBuffer buf, final AccessLogEntry entry) {
+        boolean json = type == Type.JSON;
+        for (int i = 0; i < prefixes.length; i++) {
+            buf.append(prefixes[i], 0, prefixes[i].length);
+            int from = buf.length();
+            for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+                elements[j].addElement(buf, entry);
+            }
+            if (numeric[i]) {
+                // elements write '-' when there is no number
+                if (json && (buf.length() == from || buf.length() == from + 1 && buf.charAt(from) == '-')) {
+                    buf.setLength(from);
+                    buf.append("null");
+                }
+            } else {
+                escape(buf, from, true);
+            }
+        }
+        if (json) {
+            buf.append(prefixes.length == 0 ? "{}" : "}");
+        }
+    }
+
+    /**
+     * Escape the characters written since <code>from</code> in place, working backwards so each character is moved
+     * only once. With <code>quote</code> the text is also put between quotes: always for JSON, and for logfmt when it
+     * is empty or contains a space, '=', a quote, a backslash or a control character.
+     */
+    private void escape(final LineBuffer buf, final int from, final boolean quote) {
+        boolean json = type == Type.JSON;
+        char[] chars = buf.array();
+        int end = buf.length();
+
+        int extra = 0;
+        boolean special = from == end;
+        for (int i = from; i < end; i++) {
+            char ch = chars[i];
+            if (ch == '"' || ch == '\\') {
+                extra++;
+                special = true;
+            } else if (ch < 0x20) {
+                extra += isShortEscape(ch) ? 1 : 5;
+                special = true;
+            } else if (ch == ' ' || ch == '=') {
+                special = true;
+            }
+        }
+        boolean quoted = quote && (json || special);
+        if (quoted) {
+            extra += 2;
+        }
+        if (extra == 0) {
+            return;
+        }
+
+        buf.setLength(end + extra);
+        chars = buf.array();
+        int pos = end + extra;
+        if (quoted) {
+            chars[--pos] = '"';
+        }
+        for (int i = end - 1; i >= from; i--) {
+            char ch = chars[i];
+            if (ch == '"' || ch == '\\') {
+                chars[--pos] = ch;
+                chars[--pos] = '\\';
+            } else if (ch < 0x20) {
+                if (isShortEscape(ch)) {
+                    chars[--pos] = shortEscape(ch);
+                } else {
+                    chars[--pos] = HEX[ch & 0xF];
+                    chars[--pos] = HEX[ch >> 4];
+                    chars[--pos] = '0';
+                    chars[--pos] = '0';
+                    chars[--pos] = 'u';
+                }
+                chars[--pos] = '\\';
+            } else {
+                chars[--pos] = ch;
+            }
+        }
+        if (quoted) {
+            chars[--pos] = '"';
+        }
+    }
+
+    private static void checkKey(final String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char ch = name.charAt(i);
+            if (ch <= ' ' || ch == '=' || ch == '"' || ch == '\\' || ch == 0x7F) {
+                throw new IllegalArgumentException("Log4jAccessLogValve: logfmt field name with a space, '=', quote, "
+                        + "backslash or control character: " + name);
+            }
+        }
+    }
+
+    private static boolean isShortEscape(final char ch) {
+        return ch == '\n' || ch == '\r' || ch == '\t' || ch == '\b' || ch == '\f';
+    }
+
+    private static char shortEscape(final char ch) {
+        switch(ch) {
+            case '\n' :
+                return 'n';
+            case '\r' :
+                return 'r';
+            case '\t' :
+                return 't';
+            case '\b' :
+                return 'b';
+            default:
+                return 'f';
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.apache.catalina.valves;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.NDC;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AccessLogBatcherTest {
+
+    private final List<LoggingEvent> events = Collections.synchronizedList(new ArrayList<LoggingEvent>());
+
+    private Logger logger;
+
+    @Before
+    public void setUp() {
+        logger = Logger.getLogger("batcher-test");
+        logger.removeAllAppenders();
+        logger.setAdditivity(false);
+        logger.setLevel(Level.INFO);
+        logger.addAppender(new AppenderSkeleton() {
+
+            @Override
+            protected void append(final LoggingEvent event) {
+                if ("boom".equals(event.getMessage())) {
+                    throw new StackOverflowError();
+                }
+                events.add(event);
+            }
+
+            public void close() {
+            }
+
+            public boolean requiresLayout() {
+                return false;
+            }
+        });
+        // the failing appender is reported through LogLog
+        LogLog.setQuietMode(true);
+    }
+
+    @After
+    public void tearDown() {
+        logger.removeAllAppenders();
+        LogLog.setQuietMode(false);
+    }
+
+    @Test(timeout = 10000)
+    public void keepsDispatchingAfterAnAppenderError() {
+        AccessLogBatcher batcher = new AccessLogBatcher(logger, 4, 1);
+        batcher.add("boom");
+        // more than the queue holds, with a dead dispatcher this would wait forever
+        for (int i = 0; i < 200; i++) {
+            batcher.add("line " + i);
+        }
+        batcher.close();
+
+        assertEquals(200, events.size());
+        for (int i = 0; i < 200; i++) {
+            assertEquals("line " + i, events.get(i).getMessage());
+        }
+        assertEquals(0, batcher.dropped());
+    }
+
+    @Test
+    public void keepsTheThreadNameNdcAndMdcOfTheRequestThread() {
+        AccessLogBatcher batcher = new AccessLogBatcher(logger, 4, 1);
+        NDC.push("request-42");
+        MDC.put("trace", "3f2a9c");
+        try {
+            batcher.add("line");
+        } finally {
+            NDC.remove();
+            MDC.remove("trace");
+        }
+        batcher.close();
+
+        assertEquals(1, events.size());
+        LoggingEvent event = events.get(0);
+        assertEquals(Thread.currentThread().getName(), event.getThreadName());
+        assertEquals("request-42", event.getNDC());
+        assertEquals("3f2a9c", event.getMDC("trace"));
+    }
+}
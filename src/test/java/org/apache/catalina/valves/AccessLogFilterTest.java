@@ -0,0 +1,182 @@
+package org.apache.catalina.valves;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.core.StandardEngine;
+import org.junit.Test;
+
+public class AccessLogFilterTest {
+
+    @Test
+    public void matchesStatusClassesRangesAndCodes() {
+        AccessLogFilter filter = new AccessLogFilter("status:4xx,500-503,201");
+        assertTrue(accepts(filter, "GET", "/", 404));
+        assertTrue(accepts(filter, "GET", "/", 499));
+        assertTrue(accepts(filter, "GET", "/", 503));
+        assertTrue(accepts(filter, "GET", "/", 201));
+        assertFalse(accepts(filter, "GET", "/", 200));
+        assertFalse(accepts(filter, "GET", "/", 504));
+    }
+
+    @Test
+    public void matchesMethods() {
+        AccessLogFilter filter = new AccessLogFilter("method:GET,HEAD");
+        assertTrue(accepts(filter, "GET", "/", 200));
+        assertTrue(accepts(filter, "HEAD", "/", 200));
+        assertFalse(accepts(filter, "POST", "/", 200));
+    }
+
+    @Test
+    public void matchesUriPrefixesSuffixesAndExactUris() {
+        AccessLogFilter filter = new AccessLogFilter("uri:/static/*,*.css,/health");
+        assertTrue(accepts(filter, "GET", "/static/img/logo.png", 200));
+        assertTrue(accepts(filter, "GET", "/app/site.css", 200));
+        assertTrue(accepts(filter, "GET", "/health", 200));
+        assertFalse(accepts(filter, "GET", "/healthz", 200));
+        assertFalse(accepts(filter, "GET", "/app/site.js", 200));
+    }
+
+    @Test
+    public void mergesTheUriPredicatesOfAnOr() {
+        AccessLogFilter filter = new AccessLogFilter("uri:/a/* or status:5xx or uri:*.js or uri:/b");
+        assertTrue(accepts(filter, "GET", "/a/x", 200));
+        assertTrue(accepts(filter, "GET", "/x.js", 200));
+        assertTrue(accepts(filter, "GET", "/b", 200));
+        assertTrue(accepts(filter, "GET", "/c", 500));
+        assertFalse(accepts(filter, "GET", "/c", 200));
+    }
+
+    @Test
+    public void matchesPresentHeadersAndAttributes() {
+        AccessLogFilter filter = new AccessLogFilter("header:X-Debug or attribute:org.example.trace");
+        Request request = TestRequests.request("GET", "/", null);
+        assertFalse(filter.accept(request, TestRequests.response(request, 200), 0));
+
+        TestRequests.header(request, "X-Debug", "1");
+        assertTrue(filter.accept(request, TestRequests.response(request, 200), 0));
+
+        request = TestRequests.request("GET", "/", null);
+        request.getCoyoteRequest().setAttribute("org.example.trace", "3f2a9c");
+        assertTrue(filter.accept(request, TestRequests.response(request, 200), 0));
+    }
+
+    @Test
+    public void comparesDurationsInTheirUnits() {
+        AccessLogFilter filter = new AccessLogFilter("duration>500");
+        assertFalse(accepts(filter, TimeUnit.MILLISECONDS.toNanos(500)));
+        assertTrue(accepts(filter, TimeUnit.MILLISECONDS.toNanos(500) + 1));
+
+        filter = new AccessLogFilter("duration >= 1s");
+        assertFalse(accepts(filter, TimeUnit.MILLISECONDS.toNanos(999)));
+        assertTrue(accepts(filter, TimeUnit.SECONDS.toNanos(1)));
+
+        filter = new AccessLogFilter("duration< 250us");
+        assertTrue(accepts(filter, TimeUnit.MICROSECONDS.toNanos(249)));
+        assertFalse(accepts(filter, TimeUnit.MICROSECONDS.toNanos(250)));
+
+        filter = new AccessLogFilter("duration <=20ms");
+        assertTrue(accepts(filter, TimeUnit.MILLISECONDS.toNanos(20)));
+        assertFalse(accepts(filter, TimeUnit.MILLISECONDS.toNanos(20) + 1));
+    }
+
+    @Test
+    public void bindsNotTighterThanAndTighterThanOr() {
+        AccessLogFilter filter = new AccessLogFilter("not uri:/health and method:GET or status:5xx");
+        assertTrue(accepts(filter, "GET", "/", 200));
+        assertFalse(accepts(filter, "GET", "/health", 200));
+        assertFalse(accepts(filter, "POST", "/", 200));
+        assertTrue(accepts(filter, "GET", "/health", 500));
+
+        filter = new AccessLogFilter("!(uri:/health || method:POST) && !status:2xx");
+        assertTrue(accepts(filter, "GET", "/", 404));
+        assertFalse(accepts(filter, "GET", "/", 200));
+        assertFalse(accepts(filter, "POST", "/", 404));
+        assertFalse(accepts(filter, "GET", "/health", 404));
+    }
+
+    @Test
+    public void isCaseInsensitiveInKeywordsAndPredicateNames() {
+        AccessLogFilter filter = new AccessLogFilter("NOT Status:2xx AND Duration>10");
+        Request request = TestRequests.request("GET", "/", null);
+        long elapsed = TimeUnit.MILLISECONDS.toNanos(11);
+        assertTrue(filter.accept(request, TestRequests.response(request, 404), elapsed));
+        assertFalse(filter.accept(request, TestRequests.response(request, 200), elapsed));
+        assertFalse(filter.accept(request, TestRequests.response(request, 404), TimeUnit.MILLISECONDS.toNanos(10)));
+    }
+
+    @Test
+    public void keepsOnlyRequestsWithoutTheConditionAttribute() {
+        AccessLogFilter filter = AccessLogFilter.unlessAttribute("skip", new AccessLogFilter("status:2xx"));
+        Request request = TestRequests.request("GET", "/", null);
+        assertTrue(filter.accept(request, TestRequests.response(request, 200), 0));
+        assertFalse(filter.accept(request, TestRequests.response(request, 404), 0));
+
+        request.getCoyoteRequest().setAttribute("skip", Boolean.TRUE);
+        assertFalse(filter.accept(request, TestRequests.response(request, 200), 0));
+
+        filter = AccessLogFilter.unlessAttribute("skip", null);
+        assertFalse(filter.accept(request, TestRequests.response(request, 200), 0));
+    }
+
+    @Test
+    public void rejectsBadExpressions() {
+        assertRejected("status:abc", "bad status abc");
+        assertRejected("status:5x", "bad status 5x");
+        assertRejected("status:", "expected name:value, got status:");
+        assertRejected("uri", "expected name:value, got uri");
+        assertRejected("host:example.com", "unknown predicate host");
+        assertRejected("method:GET,,POST", "empty value in method:GET,,POST");
+        assertRejected("(status:500", "missing )");
+        assertRejected("status:500 or", "unexpected end");
+        assertRejected("status:500 )", "unexpected )");
+        assertRejected("status:500 method:GET", "unexpected method:GET");
+        assertRejected("duration=5", "expected duration followed by >, >=, < or <=: duration=5");
+        assertRejected("duration>fast", "bad duration fast");
+        assertRejected("", "unexpected end");
+    }
+
+    @Test(expected = LifecycleException.class)
+    public void failsTheStartOnABadFilter() throws Exception {
+        Log4JAccessLogValve valve = new Log4JAccessLogValve();
+        valve.setLoggerName("test");
+        valve.setPattern("common");
+        // only compiled on start
+        valve.setFilter("status:(");
+        StandardEngine engine = new StandardEngine();
+        engine.setName("test");
+        valve.setContainer(engine);
+        valve.init();
+        try {
+            valve.start();
+        } finally {
+            valve.destroy();
+        }
+    }
+
+    private static void assertRejected(final String expression, final String message) {
+        try {
+            new AccessLogFilter(expression);
+            fail(expression);
+        } catch (IllegalArgumentException e) {
+            assertEquals("Log4jAccessLogValve: bad filter, " + message, e.getMessage());
+        }
+    }
+
+    private static boolean accepts(final AccessLogFilter filter, final String method, final String uri,
+                                   final int status) {
+        Request request = TestRequests.request(method, uri, null);
+        return filter.accept(request, TestRequests.response(request, status), 0);
+    }
+
+    private static boolean accepts(final AccessLogFilter filter, final long elapsed) {
+        Request request = TestRequests.request("GET", "/", null);
+        return filter.accept(request, TestRequests.response(request, 200), elapsed);
+    }
+}
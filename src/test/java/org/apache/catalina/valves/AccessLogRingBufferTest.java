@@ -0,0 +1,312 @@
+package org.apache.catalina.valves;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AccessLogRingBufferTest {
+
+    private final List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * Counted down by the appender when it gets its first line.
+     */
+    private final CountDownLatch busy = new CountDownLatch(1);
+
+    /**
+     * Holds the appender, and so the async consumer, until counted down.
+     */
+    private final CountDownLatch gate = new CountDownLatch(1);
+
+    private Logger logger;
+
+    @Before
+    public void setUp() {
+        logger = Logger.getLogger("ring-test");
+        logger.removeAllAppenders();
+        logger.setAdditivity(false);
+        logger.setLevel(Level.INFO);
+        logger.addAppender(new AppenderSkeleton() {
+
+            @Override
+            protected void append(final LoggingEvent event) {
+                busy.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                lines.add(event.getRenderedMessage());
+            }
+
+            public void close() {
+            }
+
+            public boolean requiresLayout() {
+                return false;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        gate.countDown();
+        logger.removeAllAppenders();
+    }
+
+    @Test
+    public void roundsTheCapacityUpToAPowerOfTwo() {
+        assertEquals(1, new AccessLogRingBuffer(1).capacity());
+        assertEquals(8, new AccessLogRingBuffer(5).capacity());
+        assertEquals(8, new AccessLogRingBuffer(8).capacity());
+    }
+
+    @Test
+    public void reusesItsSlotsLapAfterLap() {
+        AccessLogRingBuffer ring = new AccessLogRingBuffer(4);
+        for (int lap = 0; lap < 5; lap++) {
+            long[] claimed = new long[4];
+            for (int i = 0; i < 4; i++) {
+                claimed[i] = ring.claim();
+                assertEquals(lap * 4 + i, claimed[i]);
+                ring.get(claimed[i]).requestURI = "/" + claimed[i];
+            }
+            assertEquals(-1, ring.claim());
+            assertEquals(4, ring.size());
+
+            // a consumer only gets a slot once it and all before it are published
+            ring.publish(claimed[1]);
+            assertEquals(-1, ring.poll());
+            ring.publish(claimed[0]);
+            assertEquals(claimed[0], ring.poll());
+            assertEquals(claimed[1], ring.poll());
+            assertEquals(-1, ring.poll());
+            ring.publish(claimed[2]);
+            ring.publish(claimed[3]);
+
+            // a slot released out of order is free for the next lap only once the ones before it are
+            AccessLogEntry first = ring.get(claimed[0]);
+            ring.release(claimed[1]);
+            assertEquals(-1, ring.claim());
+            ring.release(claimed[0]);
+            assertNull(first.requestURI);
+            for (int i = 2; i < 4; i++) {
+                long pos = ring.poll();
+                assertEquals(claimed[i], pos);
+                assertEquals("/" + pos, ring.get(pos).requestURI);
+                ring.release(pos);
+            }
+            assertEquals(-1, ring.poll());
+            assertEquals(0, ring.size());
+            assertSame(first, ring.get(claimed[0] + 4));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void handsEveryEntryToExactlyOneConsumer() throws Exception {
+        final AccessLogRingBuffer ring = new AccessLogRingBuffer(16);
+        final int perProducer = 20000;
+        final AtomicLong sum = new AtomicLong();
+        final AtomicLong count = new AtomicLong();
+        final Thread[] producers = new Thread[4];
+        Thread[] consumers = new Thread[2];
+        for (int t = 0; t < producers.length; t++) {
+            producers[t] = new Thread() {
+
+                @Override
+                public void run() {
+                    for (int i = 1; i <= perProducer; i++) {
+                        long pos;
+                        while ((pos = ring.claim()) < 0) {
+                            Thread.yield();
+                        }
+                        ring.get(pos).bytesSent = i;
+                        ring.publish(pos);
+                    }
+                }
+            };
+        }
+        for (int t = 0; t < consumers.length; t++) {
+            consumers[t] = new Thread() {
+
+                @Override
+                public void run() {
+                    while (count.get() < producers.length * (long) perProducer) {
+                        long pos = ring.poll();
+                        if (pos < 0) {
+                            Thread.yield();
+                            continue;
+                        }
+                        sum.addAndGet(ring.get(pos).bytesSent);
+                        count.incrementAndGet();
+                        ring.release(pos);
+                    }
+                }
+            };
+        }
+        for (Thread thread : consumers) {
+            thread.start();
+        }
+        for (Thread thread : producers) {
+            thread.start();
+        }
+        for (Thread thread : producers) {
+            thread.join();
+        }
+        for (Thread thread : consumers) {
+            thread.join();
+        }
+
+        assertEquals(producers.length * (long) perProducer, count.get());
+        assertEquals(producers.length * (long) perProducer * (perProducer + 1) / 2, sum.get());
+        assertEquals(0, ring.size());
+    }
+
+    @Test(timeout = 10000)
+    public void blocksTheRequestThreadUntilASlotIsFree() throws Exception {
+        final Log4JAccessLogValve valve = valve("block");
+        fill(valve);
+
+        Thread request = new Thread() {
+
+            @Override
+            public void run() {
+                log(valve, "/4");
+            }
+        };
+        request.start();
+        request.join(200);
+        assertTrue(request.isAlive());
+
+        gate.countDown();
+        request.join();
+        stop(valve);
+        assertEquals(lines("/0", "/1", "/2", "/3", "/4"), lines);
+        assertEquals(0, valve.getDroppedCount());
+    }
+
+    @Test(timeout = 10000)
+    public void dropsTheNewestLinesWhenFull() throws Exception {
+        Log4JAccessLogValve valve = valve("drop");
+        fill(valve);
+        for (int i = 4; i < 10; i++) {
+            log(valve, "/" + i);
+        }
+
+        gate.countDown();
+        stop(valve);
+        assertEquals(lines("/0", "/1", "/2", "/3"), lines);
+        assertEquals(0, valve.getDroppedCount());
+    }
+
+    @Test(timeout = 10000)
+    public void countsTheLinesDroppedWhenFull() throws Exception {
+        Log4JAccessLogValve valve = valve("count");
+        fill(valve);
+        for (int i = 4; i < 10; i++) {
+            log(valve, "/" + i);
+        }
+        assertEquals(6, valve.getDroppedCount());
+
+        gate.countDown();
+        stop(valve);
+        assertEquals(lines("/0", "/1", "/2", "/3"), lines);
+    }
+
+    @Test(timeout = 10000)
+    public void drainsTheRingBeforeStopping() throws Exception {
+        final Log4JAccessLogValve valve = valve("block");
+        fill(valve);
+
+        final List<String> seen = new ArrayList<String>();
+        Thread stopping = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    valve.stop();
+                    // every line is logged by the time stop() returns
+                    seen.addAll(lines);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        stopping.start();
+        stopping.join(200);
+        assertTrue(stopping.isAlive());
+
+        gate.countDown();
+        stopping.join();
+        valve.destroy();
+        assertEquals(lines("/0", "/1", "/2", "/3"), seen);
+    }
+
+    /**
+     * A started async valve with a ring of four slots, logging the request URIs to the test logger.
+     */
+    private static Log4JAccessLogValve valve(final String policy) throws Exception {
+        StandardEngine engine = new StandardEngine();
+        engine.setName("ring-" + policy);
+        Log4JAccessLogValve valve = new Log4JAccessLogValve();
+        valve.setLoggerName("ring-test");
+        valve.setPattern("%U");
+        valve.setAsync(true);
+        valve.setAsyncCapacity(4);
+        valve.setAsyncConsumers(1);
+        valve.setAsyncOverflowPolicy(policy);
+        valve.setContainer(engine);
+        valve.init();
+        valve.start();
+        return valve;
+    }
+
+    /**
+     * Log four lines: one the consumer takes and holds in the appender, then three more filling the other slots.
+     */
+    private void fill(final Log4JAccessLogValve valve) throws InterruptedException {
+        log(valve, "/0");
+        assertTrue(busy.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i < 4; i++) {
+            log(valve, "/" + i);
+        }
+    }
+
+    private static void log(final Log4JAccessLogValve valve, final String uri) {
+        Request request = TestRequests.request("GET", uri, null);
+        try {
+            valve.invoke(request, TestRequests.response(request, 200));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void stop(final Log4JAccessLogValve valve) throws Exception {
+        valve.stop();
+        valve.destroy();
+    }
+
+    private static List<String> lines(final String... lines) {
+        List<String> result = new ArrayList<String>();
+        Collections.addAll(result, lines);
+        return result;
+    }
+}
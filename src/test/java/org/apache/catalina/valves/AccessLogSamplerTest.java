@@ -0,0 +1,116 @@
+package org.apache.catalina.valves;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AccessLogSamplerTest {
+
+    private static final long NOW = 1402579200000L;
+
+    @Test
+    public void keepsEveryRequestAtRateOne() {
+        AccessLogSampler sampler = new AccessLogSampler(1, null, 0, 0, NOW);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(1, sampler.sample(200, "/", 0, NOW));
+        }
+    }
+
+    @Test
+    public void keepsNoSuccessfulRequestAtRateZero() {
+        AccessLogSampler sampler = new AccessLogSampler(0, null, 0, 0, NOW);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, sampler.sample(200, "/", 0, NOW));
+        }
+    }
+
+    @Test
+    public void weighsKeptLinesByTheRequestsTheyStandFor() {
+        AccessLogSampler sampler = new AccessLogSampler(0.25, null, 0, 0, NOW);
+        int kept = 0;
+        for (int i = 0; i < 40000; i++) {
+            long weight = sampler.sample(200, "/", 0, NOW);
+            assertTrue(weight == 0 || weight == 4);
+            if (weight > 0) {
+                kept++;
+            }
+        }
+        // 10000 expected, more than ten standard deviations either way would be a bug
+        assertTrue(String.valueOf(kept), kept > 9000 && kept < 11000);
+    }
+
+    @Test
+    public void alwaysKeepsErrorsAndSlowRequests() {
+        AccessLogSampler sampler = new AccessLogSampler(0, "4xx=0,5xx=0,/api=0", 500, 0, NOW);
+        assertEquals(1, sampler.sample(404, "/api/x", 0, NOW));
+        assertEquals(1, sampler.sample(503, "/api/x", 0, NOW));
+        assertEquals(1, sampler.sample(200, "/api/x", TimeUnit.MILLISECONDS.toNanos(500), NOW));
+        assertEquals(0, sampler.sample(200, "/api/x", TimeUnit.MILLISECONDS.toNanos(499), NOW));
+        assertEquals(0, sampler.sample(399, "/", 0, NOW));
+    }
+
+    @Test
+    public void prefersTheLongestPrefixThenTheStatusClassThenTheDefault() {
+        AccessLogSampler sampler = new AccessLogSampler(0, " 3xx = 1 , /static=0, /static/app=1 ,/api=1", 0, 0, NOW);
+        assertEquals(0, sampler.sample(200, "/", 0, NOW));
+        assertEquals(1, sampler.sample(304, "/", 0, NOW));
+        assertEquals(1, sampler.sample(200, "/api/users", 0, NOW));
+        assertEquals(0, sampler.sample(304, "/static/logo.png", 0, NOW));
+        assertEquals(1, sampler.sample(200, "/static/app/main.js", 0, NOW));
+        assertEquals(0, sampler.sample(200, null, 0, NOW));
+    }
+
+    @Test
+    public void scalesTheRatesDownToTheTarget() {
+        AccessLogSampler sampler = new AccessLogSampler(1, null, 0, 100, NOW);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(1, sampler.sample(200, "/", 0, NOW + i));
+        }
+        // the window is over, the next request works out the scale for the next one
+        sampler.sample(200, "/", 0, NOW + 1000);
+        assertEquals(1001, sampler.getExpectedRate());
+        assertEquals(11, sampler.getScale());
+
+        // staying inside that window, at NOW + 2000 the scale is worked out again
+        for (int i = 0; i < 999; i++) {
+            long weight = sampler.sample(200, "/", 0, NOW + 1001 + i);
+            assertTrue(weight == 0 || weight == 11);
+        }
+        // errors still count once
+        assertEquals(1, sampler.sample(500, "/", 0, NOW + 1500));
+    }
+
+    @Test
+    public void rejectsBadRules() {
+        assertRejected("2xx", "sample rule without rate: 2xx");
+        assertRejected("=0.5", "sample rule without rate: =0.5");
+        assertRejected("6xx=0.5", "unknown sample rule: 6xx=0.5");
+        assertRejected("api=0.5", "unknown sample rule: api=0.5");
+        assertRejected("2xx=often", "bad rate in sample rule: 2xx=often");
+        assertRejected("/api=2", "sample rate not between 0 and 1: 2.0");
+        assertRejected("/api=-0.5", "sample rate not between 0 and 1: -0.5");
+    }
+
+    @Test
+    public void rejectsABadDefaultRate() {
+        try {
+            new AccessLogSampler(1.5, null, 0, 0, NOW);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Log4jAccessLogValve: sample rate not between 0 and 1: 1.5", e.getMessage());
+        }
+    }
+
+    private static void assertRejected(final String rules, final String message) {
+        try {
+            new AccessLogSampler(1, rules, 0, 0, NOW);
+            fail(rules);
+        } catch (IllegalArgumentException e) {
+            assertEquals("Log4jAccessLogValve: " + message, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package org.apache.catalina.valves;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BinaryAccessLogWriterTest {
+
+    private static final long TIME = 1402579200000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void decodesWhatWasWritten() throws IOException {
+        File file = folder.newFile();
+        BinaryAccessLogWriter writer = new BinaryAccessLogWriter(file.getPath(), 1024, 1000, null);
+        writer.write(entry(TIME, "192.168.0.1", null, "GET", "/index.html", "a=1&b=2", 200, 5120,
+                "http://example.com/", "Mozilla/5.0"));
+        // repeated dictionary fields are written as references
+        writer.write(entry(TIME + 1500, "192.168.0.1", "jdoe", "GET", "/caf\u00e9/\ud83d\ude00", null, 304, 0, null,
+                "Mozilla/5.0"));
+        writer.write(entry(TIME - 20, "10.0.0.7", "jdoe", "POST", "/api", null, 500, 12, null, null));
+        writer.close();
+
+        assertEquals(Arrays.asList(
+                "192.168.0.1 - - " + date(TIME) + " \"GET /index.html?a=1&b=2 HTTP/1.1\" 200 5120 "
+                        + "\"http://example.com/\" \"Mozilla/5.0\"",
+                "192.168.0.1 - jdoe " + date(TIME + 1500) + " \"GET /caf\u00e9/\ud83d\ude00 HTTP/1.1\" 304 - "
+                        + "\"-\" \"Mozilla/5.0\"",
+                "10.0.0.7 - jdoe " + date(TIME - 20) + " \"POST /api HTTP/1.1\" 500 12 \"-\" \"-\""),
+                decode("combined", new FileInputStream(file)));
+    }
+
+    @Test
+    public void decodesAsJson() throws IOException {
+        File file = folder.newFile();
+        BinaryAccessLogWriter writer = new BinaryAccessLogWriter(file.getPath(), 1024, 1000, null);
+        AccessLogEntry entry = entry(TIME, "192.168.0.1", null, "GET", "/a\"b\\c", null, 200, 42, null, "tab\there");
+        entry.elapsed = 1234567;
+        entry.sampleWeight = 10;
+        writer.write(entry);
+        writer.close();
+
+        assertEquals(Arrays.asList("{\"host\":\"192.168.0.1\",\"user\":null,\"time\":" + TIME
+                + ",\"method\":\"GET\",\"uri\":\"/a\\\"b\\\\c\",\"query\":null,\"protocol\":\"HTTP/1.1\","
+                + "\"status\":200,\"bytes\":42,\"duration_us\":1234,\"weight\":10,\"referer\":null,"
+                + "\"agent\":\"tab\\u0009here\"}"), decode("json", new FileInputStream(file)));
+    }
+
+    @Test
+    public void startsASegmentEveryTimeTheFileIsOpened() throws IOException {
+        File file = folder.newFile();
+        for (int i = 0; i < 3; i++) {
+            BinaryAccessLogWriter writer = new BinaryAccessLogWriter(file.getPath(), 1024, 1000, null);
+            writer.write(entry(TIME + i, "10.0.0." + i, null, "GET", "/" + i, null, 200, i + 1, null, "agent"));
+            writer.write(entry(TIME + i, "10.0.0." + i, null, "GET", "/" + i, null, 200, i + 1, null, "agent"));
+            writer.close();
+        }
+
+        List<String> lines = decode("common", new FileInputStream(file));
+        assertEquals(6, lines.size());
+        for (int i = 0; i < 3; i++) {
+            String line = "10.0.0." + i + " - - " + date(TIME + i) + " \"GET /" + i + " HTTP/1.1\" 200 " + (i + 1);
+            assertEquals(line, lines.get(i * 2));
+            assertEquals(line, lines.get(i * 2 + 1));
+        }
+    }
+
+    @Test
+    public void writesRecordsLargerThanTheBuffer() throws IOException {
+        File file = folder.newFile();
+        char[] chars = new char[5000];
+        Arrays.fill(chars, 'x');
+        String uri = "/" + new String(chars);
+        BinaryAccessLogWriter writer = new BinaryAccessLogWriter(file.getPath(), 1024, 1000, null);
+        for (int i = 0; i < 100; i++) {
+            writer.write(entry(TIME, "10.0.0.1", null, "GET", i == 50 ? uri : "/" + i, null, 200, i, null, null));
+        }
+        writer.close();
+
+        List<String> lines = decode("common", new FileInputStream(file));
+        assertEquals(100, lines.size());
+        assertTrue(lines.get(50).contains(uri));
+        assertTrue(lines.get(99).contains("\"GET /99 HTTP/1.1\""));
+    }
+
+    @Test
+    public void flushesOnceTheIntervalHasPassed() throws Exception {
+        File file = folder.newFile();
+        BinaryAccessLogWriter writer = new BinaryAccessLogWriter(file.getPath(), 64 * 1024, 10, null);
+        try {
+            writer.write(entry(TIME, "10.0.0.1", null, "GET", "/", null, 200, 1, null, null));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (file.length() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(1, decode("common", new FileInputStream(file)).size());
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void stopsAtATruncatedRecord() throws IOException {
+        File file = folder.newFile();
+        BinaryAccessLogWriter writer = new BinaryAccessLogWriter(file.getPath(), 1024, 1000, null);
+        char[] chars = new char[300];
+        Arrays.fill(chars, 'y');
+        for (int i = 0; i < 20; i++) {
+            // long enough for a length of two varint bytes
+            writer.write(entry(TIME + i, "10.0.0.1", null, "GET", "/" + i + new String(chars), null, 200, i, null,
+                    null));
+        }
+        writer.close();
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        List<String> all = decode("common", new ByteArrayInputStream(bytes));
+
+        int header = BinaryAccessLogWriter.MAGIC.length + 1;
+        for (int length = header; length < bytes.length; length++) {
+            List<String> lines = decode("common", new ByteArrayInputStream(bytes, 0, length));
+            assertTrue(lines.size() < all.size());
+            assertEquals(all.subList(0, lines.size()), lines);
+        }
+    }
+
+    @Test
+    public void rejectsAStringPastTheEndOfItsRecord() throws IOException {
+        File file = folder.newFile();
+        BinaryAccessLogWriter writer = new BinaryAccessLogWriter(file.getPath(), 1024, 1000, null);
+        char[] chars = new char[300];
+        Arrays.fill(chars, 'z');
+        writer.write(entry(TIME, "10.0.0.1", null, "GET", "/" + new String(chars), null, 200, 1, null, null));
+        writer.close();
+        byte[] valid = Files.readAllBytes(file.toPath());
+
+        // a record of six bytes whose host claims 50, which the previous, longer record would still have had
+        assertCorrupt(concat(valid, new byte[] { 6, 0, 0, 0, 0, 1, (byte) (2 * 50 + 1) }),
+                "corrupt access log, string past end of record");
+    }
+
+    @Test
+    public void rejectsNumbersPastTheEndOfTheirRecordOrTooLong() throws IOException {
+        byte[] header = Arrays.copyOf(BinaryAccessLogWriter.MAGIC, BinaryAccessLogWriter.MAGIC.length + 1);
+        header[header.length - 1] = BinaryAccessLogWriter.VERSION;
+
+        // the last of the five numbers continues past the end of the record
+        assertCorrupt(concat(header, new byte[] { 5, 0, 0, 0, 0, (byte) 0x80 }),
+                "corrupt access log, number past end of record");
+        byte[] tooLong = new byte[12];
+        Arrays.fill(tooLong, (byte) 0x80);
+        tooLong[0] = 11;
+        assertCorrupt(concat(header, tooLong), "corrupt access log, number longer than ten bytes");
+        assertCorrupt(concat(header, new byte[] { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x7f }),
+                "corrupt access log, bad record length");
+    }
+
+    @Test
+    public void rejectsAnUnknownVersion() {
+        byte[] bytes = Arrays.copyOf(BinaryAccessLogWriter.MAGIC, BinaryAccessLogWriter.MAGIC.length + 1);
+        bytes[bytes.length - 1] = BinaryAccessLogWriter.VERSION + 1;
+        try {
+            decode("common", new ByteArrayInputStream(bytes));
+            fail();
+        } catch (IOException e) {
+            assertEquals("unsupported access log version " + (BinaryAccessLogWriter.VERSION + 1), e.getMessage());
+        }
+    }
+
+    @Test
+    public void countsUtf8Bytes() {
+        assertEquals(3, BinaryAccessLogWriter.utf8Length("abc"));
+        assertEquals(2, BinaryAccessLogWriter.utf8Length("\u00e9"));
+        assertEquals(3, BinaryAccessLogWriter.utf8Length("\u20ac"));
+        assertEquals(4, BinaryAccessLogWriter.utf8Length("\ud83d\ude00"));
+        // an unpaired surrogate is written as '?'
+        assertEquals(2, BinaryAccessLogWriter.utf8Length("\ud83da"));
+    }
+
+    private static void assertCorrupt(final byte[] bytes, final String message) {
+        try {
+            decode("common", new ByteArrayInputStream(bytes));
+            fail();
+        } catch (IOException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    private static byte[] concat(final byte[] first, final byte[] second) {
+        byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
+    }
+
+    private static AccessLogEntry entry(final long time, final String host, final String user, final String method,
+                                        final String uri, final String query, final int status, final long bytes,
+                                        final String referer, final String agent) {
+        AccessLogEntry entry = new AccessLogEntry();
+        entry.values = new Object[BinaryAccessLogWriter.USER_AGENT + 1];
+        entry.endTime = time;
+        entry.elapsed = 2000000;
+        entry.hasResponse = true;
+        entry.status = status;
+        entry.bytesSent = bytes;
+        entry.sampleWeight = 1;
+        entry.remoteHost = host;
+        entry.remoteUser = user;
+        entry.method = method;
+        entry.requestURI = uri;
+        entry.queryString = query;
+        entry.protocol = "HTTP/1.1";
+        entry.values[BinaryAccessLogWriter.REFERER] = referer;
+        entry.values[BinaryAccessLogWriter.USER_AGENT] = agent;
+        return entry;
+    }
+
+    private static List<String> decode(final String format, final InputStream in) throws IOException {
+        StringWriter out = new StringWriter();
+        try {
+            new AccessLogDecoder(format, out).decode(in);
+        } finally {
+            in.close();
+        }
+        String text = out.toString();
+        return text.isEmpty() ? Collections.<String>emptyList() : Arrays.asList(text.split("\n"));
+    }
+
+    private static String date(final long time) {
+        return new SimpleDateFormat("[dd/MMM/yyyy:HH:mm:ss Z]", Locale.US).format(new Date(time));
+    }
+}
@@ -0,0 +1,52 @@
+package org.apache.catalina.valves;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.apache.catalina.connector.Request;
+import org.junit.Test;
+
+public class CookieCaptureTest {
+
+    private static final String[] NAMES = { "JSESSIONID", "uid", "pref" };
+
+    @Test
+    public void capturesTheFirstCookieOfEachName() {
+        assertArrayEquals(new Object[] { "0123ABCD", "42", "-" },
+                capture("_ga=GA1.2.3; JSESSIONID=0123ABCD ;uid=42; JSESSIONID=later"));
+    }
+
+    @Test
+    public void capturesAcrossSeveralHeaders() {
+        assertArrayEquals(new Object[] { "0123ABCD", "42", "dark" },
+                capture("JSESSIONID=0123ABCD", "a=1; uid=42", "pref=dark; uid=43"));
+    }
+
+    @Test
+    public void keepsSemicolonsInsideQuotedValues() {
+        assertArrayEquals(new Object[] { "\"a;uid=1\"", "42", "\"say \\\"x;y\\\"\"" },
+                capture("JSESSIONID=\"a;uid=1\"; uid=42; pref=\"say \\\"x;y\\\"\""));
+    }
+
+    @Test
+    public void endsAnUnclosedQuotedValueAtTheNextSemicolon() {
+        assertArrayEquals(new Object[] { "\"abc", "42", "-" }, capture("JSESSIONID=\"abc; uid=42"));
+    }
+
+    @Test
+    public void logsMissingAndEmptyCookies() {
+        // a name without '=' has an empty value
+        assertArrayEquals(new Object[] { "", "", "-" }, capture("JSESSIONID=; uid"));
+        assertArrayEquals(new Object[] { "-", "-", "-" }, capture());
+    }
+
+    private static Object[] capture(final String... headers) {
+        Request request = TestRequests.request("GET", "/", null);
+        for (String header : headers) {
+            TestRequests.rawHeader(request, "Cookie", header);
+        }
+        AccessLogEntry entry = new AccessLogEntry();
+        entry.values = new Object[NAMES.length];
+        new CookieCapture(NAMES, new int[] { 0, 1, 2 }).capture(entry, request);
+        return entry.values;
+    }
+}
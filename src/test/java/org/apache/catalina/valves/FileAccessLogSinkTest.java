@@ -0,0 +1,218 @@
+package org.apache.catalina.valves;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.catalina.valves.Log4JAccessLogValve.FsyncPolicy;
+import org.apache.catalina.valves.Log4JAccessLogValve.Rotation;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileAccessLogSinkTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(timeout = 10000)
+    public void writesEverythingWhenClosingIsInterrupted() throws Exception {
+        File file = new File(folder.getRoot(), "interrupted.log");
+        FileAccessLogSink sink = new FileAccessLogSink(file.getPath(), 1 << 16, 60000, Rotation.NONE, 0,
+                FsyncPolicy.ROTATE, 0, 0, null);
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++) {
+            expected.add("line " + i);
+            sink.write(line("line " + i));
+        }
+
+        // the wait for the writer thread returns at once, the writer thread still closes the file once done
+        Thread.currentThread().interrupt();
+        sink.close();
+        assertTrue(Thread.interrupted());
+        Thread writer = thread("Log4JAccessLogValve[interrupted.log]-writer");
+        if (writer != null) {
+            writer.join();
+        }
+
+        assertEquals(expected, read(file));
+    }
+
+    @Test(timeout = 10000)
+    public void rotatesDailyToTheDayTheFileCovers() throws Exception {
+        File file = new File(folder.getRoot(), "daily.log");
+        long lastWritten = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2);
+        String day = new SimpleDateFormat("yyyy-MM-dd").format(new Date(lastWritten));
+        write(file, "old line");
+        file.setLastModified(lastWritten);
+        // the name is taken, the rotated file goes next to it
+        write(new File(folder.getRoot(), "daily.log." + day), "older line");
+
+        FileAccessLogSink sink = new FileAccessLogSink(file.getPath(), 1024, 10, Rotation.DAILY, 0,
+                FsyncPolicy.ROTATE, 0, 0, null);
+        File rotated = new File(folder.getRoot(), "daily.log." + day + ".1");
+        awaitFile(rotated);
+        sink.write(line("new line"));
+        sink.close();
+
+        assertEquals(Arrays.asList("older line"), read(new File(folder.getRoot(), "daily.log." + day)));
+        assertEquals(Arrays.asList("old line"), read(rotated));
+        assertEquals(Arrays.asList("new line"), read(file));
+    }
+
+    @Test(timeout = 10000)
+    public void rotatesHourlyToTheHourTheFileCovers() throws Exception {
+        File file = new File(folder.getRoot(), "hourly.log");
+        long lastWritten = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2);
+        write(file, "old line");
+        file.setLastModified(lastWritten);
+
+        FileAccessLogSink sink = new FileAccessLogSink(file.getPath(), 1024, 10, Rotation.HOURLY, 0,
+                FsyncPolicy.ROTATE, 0, 0, null);
+        File rotated = new File(folder.getRoot(),
+                "hourly.log." + new SimpleDateFormat("yyyy-MM-dd-HH").format(new Date(lastWritten)));
+        awaitFile(rotated);
+        sink.write(line("new line"));
+        sink.close();
+
+        assertEquals(Arrays.asList("old line"), read(rotated));
+        assertEquals(Arrays.asList("new line"), read(file));
+    }
+
+    @Test(timeout = 10000)
+    public void keepsAFileOfTheCurrentPeriod() throws Exception {
+        File file = new File(folder.getRoot(), "current.log");
+        write(file, "old line");
+
+        FileAccessLogSink sink = new FileAccessLogSink(file.getPath(), 1024, 10, Rotation.HOURLY, 0,
+                FsyncPolicy.ROTATE, 0, 0, null);
+        sink.write(line("new line"));
+        sink.close();
+
+        assertEquals(Arrays.asList("current.log"), Arrays.asList(folder.getRoot().list()));
+        assertEquals(Arrays.asList("old line", "new line"), read(file));
+    }
+
+    @Test(timeout = 10000)
+    public void rotatesBySizeBetweenLines() throws Exception {
+        File file = new File(folder.getRoot(), "size.log");
+        FileAccessLogSink sink = new FileAccessLogSink(file.getPath(), 64, 60000, Rotation.NONE, 100,
+                FsyncPolicy.NONE, 0, 0, null);
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 50; i++) {
+            String text = "line " + (char) ('a' + i % 26) + i;
+            expected.add(text);
+            sink.write(line(text));
+        }
+        sink.close();
+
+        List<File> files = files("size.log", "size.log");
+        assertTrue(files.size() > 2);
+        List<String> lines = new ArrayList<String>();
+        for (File part : files) {
+            if (!part.equals(file)) {
+                // rotated once past the size, with no line split over two files
+                assertTrue(part.length() >= 100);
+                assertEquals('\n', Files.readAllBytes(part.toPath())[(int) part.length() - 1]);
+            }
+            lines.addAll(read(part));
+        }
+        assertEquals(expected, lines);
+    }
+
+    @Test(timeout = 10000)
+    public void keepsTheGzipExtensionLastAndEveryRotatedFileWhole() throws Exception {
+        File file = new File(folder.getRoot(), "zipped.log.gz");
+        FileAccessLogSink sink = new FileAccessLogSink(file.getPath(), 64, 60000, Rotation.NONE, 100,
+                FsyncPolicy.NONE, 2, 128, null);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 400; i++) {
+            String text = "line \u00e9\u4e2d" + i;
+            expected.append(text).append('\n');
+            sink.write(line(text));
+        }
+        sink.close();
+
+        List<File> files = files("zipped.log", "zipped.log.gz");
+        assertTrue(files.size() > 2);
+        StringBuilder lines = new StringBuilder();
+        for (File part : files) {
+            assertTrue(part.getName(), part.getName().endsWith(".gz"));
+            if (part.equals(file) && part.length() == 0) {
+                // rotated right after the last lines
+                continue;
+            }
+            // every file a gzip stream of its own, of whole lines
+            byte[] compressed = Files.readAllBytes(part.toPath());
+            assertTrue(GzipBlockCompressorTest.members(compressed) > 0);
+            String text = new String(GzipBlockCompressorTest.gunzip(compressed), UTF_8);
+            assertTrue(text.endsWith("\n"));
+            lines.append(text);
+        }
+        assertEquals(expected.toString(), lines.toString());
+    }
+
+    static LineBuffer line(final String text) {
+        return new LineBuffer(text.length()).append(text);
+    }
+
+    /**
+     * @return the files whose name starts with the prefix, rotated ones in the order they were rotated in, then the
+     *         current one
+     */
+    private List<File> files(final String prefix, final String name) {
+        List<File> files = new ArrayList<File>();
+        for (File file : folder.getRoot().listFiles()) {
+            if (file.getName().startsWith(prefix)) {
+                files.add(file);
+            }
+        }
+        // name.day, name.day.1, ..., name.day.10, name
+        Collections.sort(files, new Comparator<File>() {
+
+            public int compare(final File a, final File b) {
+                int length = a.getName().length() - b.getName().length();
+                return a.getName().equals(name) ? 1 : b.getName().equals(name) ? -1
+                        : length != 0 ? length : a.getName().compareTo(b.getName());
+            }
+        });
+        return files;
+    }
+
+    private static void awaitFile(final File file) throws InterruptedException {
+        while (!file.exists()) {
+            Thread.sleep(5);
+        }
+    }
+
+    private static void write(final File file, final String line) throws IOException {
+        Files.write(file.toPath(), (line + "\n").getBytes(UTF_8));
+    }
+
+    private static List<String> read(final File file) throws IOException {
+        return Files.readAllLines(file.toPath(), UTF_8);
+    }
+
+    private static Thread thread(final String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(name)) {
+                return thread;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,117 @@
+package org.apache.catalina.valves;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GzipBlockCompressorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(timeout = 10000)
+    public void writesAMultiMemberGzipStreamThatReadsBackByteForByte() throws Exception {
+        // text compresses, random bytes grow a little, so blocks of both end up larger than their initial output
+        byte[] data = new byte[50000];
+        Random random = new Random(42);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = i < 30000 ? (byte) ('a' + i % 7 + (i / 1000) % 3) : (byte) random.nextInt();
+        }
+
+        File file = folder.newFile("blocks.log.gz");
+        GzipBlockCompressor compressor = new GzipBlockCompressor(3, 1000, file.getName(), new Runnable() {
+
+            public void run() {
+            }
+        });
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            // buffers cut across blocks, written out as they are done
+            for (int pos = 0; pos < data.length; pos += 777) {
+                compressor.add(ByteBuffer.wrap(data, pos, Math.min(777, data.length - pos)));
+                compressor.writeTo(channel, false);
+            }
+            compressor.flush();
+            compressor.writeTo(channel, true);
+        } finally {
+            channel.close();
+            compressor.close();
+        }
+
+        byte[] compressed = Files.readAllBytes(file.toPath());
+        assertEquals(50, members(compressed));
+        assertArrayEquals(data, gunzip(compressed));
+    }
+
+    /**
+     * Decode a gzip stream member by member, checking the header, the CRC and the length of each.
+     *
+     * @return the number of members
+     */
+    static int members(final byte[] gzip) throws Exception {
+        int members = 0;
+        int pos = 0;
+        while (pos < gzip.length) {
+            assertArrayEquals(new byte[] {0x1f, (byte) 0x8b, 8, 0}, Arrays.copyOfRange(gzip, pos, pos + 4));
+            pos += 10;
+            Inflater inflater = new Inflater(true);
+            inflater.setInput(gzip, pos, gzip.length - pos);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[4096];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(chunk);
+                assertTrue(n > 0 || !inflater.needsInput());
+                out.write(chunk, 0, n);
+            }
+            pos = gzip.length - inflater.getRemaining();
+            inflater.end();
+
+            CRC32 crc = new CRC32();
+            crc.update(out.toByteArray());
+            assertEquals((int) crc.getValue(), intLittleEndian(gzip, pos));
+            assertEquals(out.size(), intLittleEndian(gzip, pos + 4));
+            pos += 8;
+            members++;
+        }
+        return members;
+    }
+
+    static byte[] gunzip(final byte[] gzip) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip));
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[4096];
+            int n;
+            while ((n = in.read(chunk)) > 0) {
+                out.write(chunk, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int intLittleEndian(final byte[] bytes, final int pos) {
+        return bytes[pos] & 0xff | (bytes[pos + 1] & 0xff) << 8 | (bytes[pos + 2] & 0xff) << 16
+                | (bytes[pos + 3] & 0xff) << 24;
+    }
+}
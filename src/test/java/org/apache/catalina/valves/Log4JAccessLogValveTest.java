@@ -0,0 +1,209 @@
+package org.apache.catalina.valves;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class Log4JAccessLogValveTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void releasesWhatAFailedStartAcquired() throws Exception {
+        StandardEngine engine = new StandardEngine();
+        engine.setName("rollback");
+
+        Log4JAccessLogValve first = new Log4JAccessLogValve();
+        first.setLoggerName("rollback");
+        first.setPattern("common");
+        first.setMetrics(true);
+        first.setContainer(engine);
+        first.init();
+        first.start();
+
+        // the same metrics MBean name, registered only after the file is open
+        File file = new File(folder.getRoot(), "rollback.log");
+        Log4JAccessLogValve second = new Log4JAccessLogValve();
+        second.setLoggerName("rollback");
+        second.setPattern("common");
+        second.setFile(file.getPath());
+        second.setMetrics(true);
+        second.setStats(true);
+        second.setContainer(engine);
+        second.init();
+        try {
+            second.start();
+            fail();
+        } catch (LifecycleException e) {
+            // wrapped by the lifecycle
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            assertTrue(cause.getMessage(), cause.getMessage().contains("already registered"));
+        }
+
+        assertEquals(new ArrayList<String>(), threads("Log4JAccessLogValve[rollback.log]"));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        // the first valve's MBean is left alone, the second valve registered none
+        assertEquals(1, server.queryNames(new ObjectName("*:type=AccessLogMetrics,*"), null).size());
+        assertEquals(0, server.queryNames(new ObjectName("*:type=AccessLogStats,*"), null).size());
+
+        first.stop();
+        first.destroy();
+        assertEquals(0, server.queryNames(new ObjectName("*:type=AccessLogMetrics,*"), null).size());
+        second.destroy();
+    }
+
+    @Test
+    public void writesTheSameRequestLineFromStringsAndFromRawBytes() throws Exception {
+        final List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+        Logger logger = Logger.getLogger("request-line-test");
+        logger.removeAllAppenders();
+        logger.setAdditivity(false);
+        logger.setLevel(Level.INFO);
+        logger.addAppender(new AppenderSkeleton() {
+
+            @Override
+            protected void append(final LoggingEvent event) {
+                lines.add(event.getRenderedMessage());
+            }
+
+            public void close() {
+            }
+
+            public boolean requiresLayout() {
+                return false;
+            }
+        });
+
+        // lines logged to log4j are formatted from strings, lines written to a file from the connector's bytes
+        Log4JAccessLogValve strings = new Log4JAccessLogValve();
+        strings.setLoggerName("request-line-test");
+        strings.setPattern("%r|%q|%U");
+        File file = new File(folder.getRoot(), "request-line.log");
+        Log4JAccessLogValve bytes = new Log4JAccessLogValve();
+        bytes.setPattern("%r|%q|%U");
+        bytes.setFile(file.getPath());
+        start(strings, "strings");
+        start(bytes, "bytes");
+        try {
+            for (String query : Arrays.asList(null, "", "a=1")) {
+                Request request = TestRequests.request("GET", "/a", query);
+                strings.invoke(request, TestRequests.response(request, 200));
+                request = TestRequests.request("GET", "/a", query);
+                bytes.invoke(request, TestRequests.response(request, 200));
+            }
+        } finally {
+            stop(strings);
+            stop(bytes);
+            logger.removeAllAppenders();
+        }
+
+        List<String> expected = Arrays.asList("GET /a HTTP/1.1||/a", "GET /a? HTTP/1.1|?|/a",
+                "GET /a?a=1 HTTP/1.1|?a=1|/a");
+        assertEquals(expected, lines);
+        assertEquals(expected, Files.readAllLines(file.toPath(), Charset.forName("UTF-8")));
+    }
+
+    @Test
+    public void reportsABackendThatCannotBeCreated() throws Exception {
+        Throwable cause = failedStart(FailingBackend.class);
+        assertEquals("Log4jAccessLogValve: cannot create backend " + FailingBackend.class.getName(),
+                cause.getMessage());
+        // a checked exception from the constructor, which Class.newInstance() would have let through as it was
+        assertTrue(cause.getCause() instanceof IOException);
+
+        cause = failedStart(NamedBackend.class);
+        assertEquals("Log4jAccessLogValve: backend " + NamedBackend.class.getName()
+                + " has no no-argument constructor", cause.getMessage());
+    }
+
+    private static Throwable failedStart(final Class<?> backend) throws Exception {
+        Log4JAccessLogValve valve = new Log4JAccessLogValve();
+        valve.setLoggerName("backend-test");
+        valve.setPattern("common");
+        valve.setBackend(backend.getName());
+        try {
+            start(valve, "backend-test");
+            fail();
+            return null;
+        } catch (LifecycleException e) {
+            // wrapped by the lifecycle
+            return e.getCause() != null ? e.getCause() : e;
+        } finally {
+            valve.destroy();
+        }
+    }
+
+    private static void start(final Log4JAccessLogValve valve, final String name) throws Exception {
+        StandardEngine engine = new StandardEngine();
+        engine.setName(name);
+        valve.setContainer(engine);
+        valve.init();
+        valve.start();
+    }
+
+    private static void stop(final Log4JAccessLogValve valve) throws Exception {
+        valve.stop();
+        valve.destroy();
+    }
+
+    public static class FailingBackend implements AccessLogBackend {
+
+        public FailingBackend() throws IOException {
+            throw new IOException("no backend today");
+        }
+
+        public void start(final String name) {
+        }
+
+        public boolean isEnabled() {
+            return true;
+        }
+
+        public void log(final CharSequence line) {
+        }
+
+        public void stop() {
+        }
+    }
+
+    public static class NamedBackend extends FailingBackend {
+
+        public NamedBackend(final String name) throws IOException {
+        }
+    }
+
+    private static List<String> threads(final String prefix) {
+        List<String> names = new ArrayList<String>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith(prefix)) {
+                names.add(thread.getName());
+            }
+        }
+        return names;
+    }
+}
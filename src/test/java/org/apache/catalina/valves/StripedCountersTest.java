@@ -0,0 +1,49 @@
+package org.apache.catalina.valves;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class StripedCountersTest {
+
+    @Test
+    public void padsStripesToWholeCacheLinesWithOneToSpare() {
+        assertEquals(16, StripedCounters.stride(1));
+        assertEquals(16, StripedCounters.stride(3));
+        assertEquals(16, StripedCounters.stride(8));
+        assertEquals(24, StripedCounters.stride(9));
+        assertEquals(24, StripedCounters.stride(10));
+    }
+
+    @Test
+    public void addsTheStripesOfAllThreadsUp() throws Exception {
+        final StripedCounters counters = new StripedCounters(3, 4);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        counters.add(0, 1);
+                        int stripe = counters.stripe();
+                        counters.add(stripe, 1, 2);
+                        counters.add(stripe, 2, 3);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(8000, counters.sum(0));
+        assertEquals(16000, counters.sum(1));
+        assertEquals(24000, counters.sum(2, true));
+        assertEquals(0, counters.sum(2));
+        counters.reset();
+        assertEquals(0, counters.sum(0));
+        assertEquals(0, counters.sum(1));
+    }
+}
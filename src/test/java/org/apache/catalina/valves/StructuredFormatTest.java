@@ -0,0 +1,261 @@
+package org.apache.catalina.valves;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+public class StructuredFormatTest {
+
+    private static final String FIELDS = "host=%h, time=%{msec}t, frac=%{msec_frac}t, sec=%{sec}t, request=%r, "
+            + "status=%s, bytes=%B, clf_bytes=%b, duration=%D, agent=%{User-Agent}i, missing=%{X-Missing}i, "
+            + "mixed=%s %B, \"quoted\\name=%U";
+
+    /**
+     * A header value in need of every kind of escape.
+     */
+    private static final String AGENT = "quote\" backslash\\ tab\t newline\n nul\u0000 esc\u001b "
+            + "caf\u00e9 \ud83d\ude00 line separator\u2028";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+
+    private Logger logger;
+
+    @Before
+    public void setUp() {
+        logger = Logger.getLogger("structured-test");
+        logger.removeAllAppenders();
+        logger.setAdditivity(false);
+        logger.setLevel(Level.INFO);
+        logger.addAppender(new AppenderSkeleton() {
+
+            @Override
+            protected void append(final LoggingEvent event) {
+                lines.add(event.getRenderedMessage());
+            }
+
+            public void close() {
+            }
+
+            public boolean requiresLayout() {
+                return false;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        logger.removeAllAppenders();
+    }
+
+    @Test
+    public void writesValidJson() throws Exception {
+        Log4JAccessLogValve valve = valve("json");
+        valve.setLoggerName("structured-test");
+        start(valve);
+        try {
+            // enough requests for some of them to end early in their second, where msec_frac has leading zeros
+            for (int i = 0; i < 200; i++) {
+                invoke(valve);
+            }
+        } finally {
+            stop(valve);
+        }
+
+        assertEquals(200, lines.size());
+        for (String line : lines) {
+            assertFields(parse(line));
+        }
+    }
+
+    @Test
+    public void writesValidJsonToTheFile() throws Exception {
+        File file = new File(folder.getRoot(), "access.log");
+        Log4JAccessLogValve valve = valve("json");
+        valve.setFile(file.getPath());
+        start(valve);
+        try {
+            for (int i = 0; i < 20; i++) {
+                invoke(valve);
+            }
+        } finally {
+            stop(valve);
+        }
+
+        List<String> written = Files.readAllLines(file.toPath(), Charset.forName("UTF-8"));
+        assertEquals(20, written.size());
+        for (String line : written) {
+            assertFields(parse(line));
+        }
+    }
+
+    @Test
+    public void writesNumbersBareAndEmptyFieldsAsStrings() throws Exception {
+        Log4JAccessLogValve valve = new Log4JAccessLogValve();
+        valve.setLoggerName("structured-test");
+        valve.setOutputFormat("json");
+        valve.setFields("status=%s, port=%p, empty=");
+        start(valve);
+        try {
+            Request request = TestRequests.request("GET", "/", null);
+            valve.invoke(request, TestRequests.response(request, 200));
+        } finally {
+            stop(valve);
+        }
+
+        Map<String, Object> fields = parse(lines.get(0));
+        assertEquals(Long.valueOf(200), fields.get("status"));
+        assertEquals(Long.valueOf(8080), fields.get("port"));
+        assertEquals("", fields.get("empty"));
+    }
+
+    @Test
+    public void writesLogfmt() throws Exception {
+        Log4JAccessLogValve valve = new Log4JAccessLogValve();
+        valve.setLoggerName("structured-test");
+        valve.setOutputFormat("logfmt");
+        valve.setFields("status=%s, request=%r, empty=, agent=%{User-Agent}i");
+        start(valve);
+        try {
+            Request request = TestRequests.request("GET", "/", null);
+            TestRequests.header(request, "User-Agent", "say \"hi\"");
+            valve.invoke(request, TestRequests.response(request, 200));
+        } finally {
+            stop(valve);
+        }
+
+        assertEquals("status=200 request=\"GET / HTTP/1.1\" empty=\"\" agent=\"say \\\"hi\\\"\"", lines.get(0));
+    }
+
+    @Test
+    public void rejectsLogfmtNamesParsersCannotReadBack() throws Exception {
+        for (String name : new String[] { "response status", "\"status", "status\\", "sta\ttus", "" }) {
+            Log4JAccessLogValve valve = new Log4JAccessLogValve();
+            valve.setLoggerName("structured-test");
+            valve.setOutputFormat("logfmt");
+            valve.setFields("host=%h, " + name + "=%s");
+            try {
+                start(valve);
+                fail(name);
+            } catch (LifecycleException e) {
+                // wrapped by the lifecycle
+                String message = e.getCause().getMessage();
+                assertTrue(message, message.startsWith(name.length() == 0 ? "Log4jAccessLogValve: field without name"
+                        : "Log4jAccessLogValve: logfmt field name with a space, '=', quote, backslash or control "
+                        + "character: "));
+            } finally {
+                valve.destroy();
+            }
+        }
+    }
+
+    private void assertFields(final Map<String, Object> fields) {
+        assertEquals("192.168.10.21", fields.get("host"));
+        assertTrue(fields.get("time") instanceof Long);
+        // a string, as a number it could have leading zeros
+        String frac = (String) fields.get("frac");
+        assertTrue(frac, frac.matches("[0-9]{3}"));
+        assertEquals(((Long) fields.get("time")).longValue() / 1000, ((Long) fields.get("sec")).longValue());
+        assertEquals(Long.parseLong(frac), ((Long) fields.get("time")).longValue() % 1000);
+        assertEquals("GET /search?q=a%22b HTTP/1.1", fields.get("request"));
+        assertEquals(Long.valueOf(404), fields.get("status"));
+        assertEquals(Long.valueOf(0), fields.get("bytes"));
+        assertEquals("-", fields.get("clf_bytes"));
+        assertTrue(fields.get("duration") instanceof Long);
+        assertEquals(AGENT, fields.get("agent"));
+        assertEquals("-", fields.get("missing"));
+        assertEquals("404 0", fields.get("mixed"));
+        assertEquals("/search", fields.get("\"quoted\\name"));
+        assertEquals(13, fields.size());
+    }
+
+    private static Log4JAccessLogValve valve(final String format) {
+        Log4JAccessLogValve valve = new Log4JAccessLogValve();
+        valve.setOutputFormat(format);
+        valve.setFields(FIELDS);
+        return valve;
+    }
+
+    private static void invoke(final Log4JAccessLogValve valve) throws Exception {
+        Request request = TestRequests.request("GET", "/search", "q=a%22b");
+        TestRequests.header(request, "User-Agent", AGENT);
+        valve.invoke(request, TestRequests.response(request, 404));
+    }
+
+    private static void start(final Log4JAccessLogValve valve) throws Exception {
+        StandardEngine engine = new StandardEngine();
+        engine.setName("test");
+        valve.setContainer(engine);
+        valve.init();
+        valve.start();
+    }
+
+    private static void stop(final Log4JAccessLogValve valve) throws Exception {
+        valve.stop();
+        valve.destroy();
+    }
+
+    /**
+     * Parse a line that must be exactly one flat JSON object.
+     *
+     * @return its fields, strings as strings, numbers as longs and nulls as null
+     */
+    private static Map<String, Object> parse(final String line) throws IOException {
+        Map<String, Object> fields = new LinkedHashMap<String, Object>();
+        JsonParser parser = new JsonFactory().createParser(line);
+        try {
+            assertEquals(line, JsonToken.START_OBJECT, parser.nextToken());
+            JsonToken token;
+            while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                token = parser.nextToken();
+                Object value;
+                if (token == JsonToken.VALUE_STRING) {
+                    value = parser.getText();
+                } else if (token == JsonToken.VALUE_NUMBER_INT) {
+                    value = Long.valueOf(parser.getLongValue());
+                } else {
+                    assertEquals(line, JsonToken.VALUE_NULL, token);
+                    value = null;
+                }
+                assertTrue("duplicate " + name, !fields.containsKey(name));
+                fields.put(name, value);
+            }
+            assertEquals(line, JsonToken.END_OBJECT, token);
+            assertNull(line, parser.nextToken());
+        } finally {
+            parser.close();
+        }
+        return fields;
+    }
+}
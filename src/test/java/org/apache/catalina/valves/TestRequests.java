@@ -0,0 +1,71 @@
+package org.apache.catalina.valves;
+
+import org.apache.catalina.connector.OutputBuffer;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.tomcat.util.buf.MessageBytes;
+
+/**
+ * Stub requests and responses for the tests, built straight on top of coyote objects so no connector is needed.
+ */
+final class TestRequests {
+
+    private TestRequests() {
+    }
+
+    static Request request(final String method, final String uri, final String query) {
+        org.apache.coyote.Request coyoteRequest = new org.apache.coyote.Request();
+        bytes(coyoteRequest.method(), method);
+        bytes(coyoteRequest.requestURI(), uri);
+        coyoteRequest.decodedURI().setString(uri);
+        if (query != null) {
+            bytes(coyoteRequest.queryString(), query);
+        }
+        bytes(coyoteRequest.protocol(), "HTTP/1.1");
+        coyoteRequest.remoteAddr().setString("192.168.10.21");
+        coyoteRequest.serverName().setString("www.example.com");
+        coyoteRequest.setServerPort(8080);
+
+        Request request = new Request() {
+            @Override
+            public String getRemoteHost() {
+                return getRemoteAddr();
+            }
+        };
+        request.setCoyoteRequest(coyoteRequest);
+        return request;
+    }
+
+    static void header(final Request request, final String name, final String value) {
+        request.getCoyoteRequest().getMimeHeaders().addValue(name).setString(value);
+    }
+
+    /**
+     * Add a header as raw bytes, the way the connector leaves it after parsing.
+     */
+    static void rawHeader(final Request request, final String name, final String value) {
+        bytes(request.getCoyoteRequest().getMimeHeaders().addValue(name), value);
+    }
+
+    static Response response(final Request request, final int status) {
+        org.apache.coyote.Response coyoteResponse = new org.apache.coyote.Response();
+        coyoteResponse.setStatus(status);
+
+        Response response = new Response() {
+            {
+                outputBuffer = new OutputBuffer();
+            }
+        };
+        response.setCoyoteResponse(coyoteResponse);
+        response.setRequest(request);
+        return response;
+    }
+
+    /**
+     * Set a request line field as raw bytes, the way the connector leaves it after parsing.
+     */
+    private static void bytes(final MessageBytes field, final String value) {
+        byte[] bytes = value.getBytes();
+        field.setBytes(bytes, 0, bytes.length);
+    }
+}